@@ -0,0 +1,93 @@
+package org.aktin.dwh.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.aktin.dwh.PreferenceKey;
+import org.aktin.dwh.anon.OneWayAnonymizer;
+import org.aktin.dwh.prefs.impl.PropertyFilePreferences;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Pseudonym calculation as performed for every imported patient and encounter.
+ * <p>
+ * The batch benchmarks report the time per pseudonym. Compare {@code batch}
+ * with {@code sequential} to see the speedup of the parallel calculation.
+ * Scaling can be measured by limiting the common pool, e.g. with
+ * {@code -jvmArgsAppend -Djava.util.concurrent.ForkJoinPool.common.parallelism=2}.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AnonymizerBenchmark {
+	@Param({"SHA-1", "SHA-256", "SHA-512", "HmacSHA256"})
+	public String algorithm;
+
+	/** maximum number of cached pseudonyms, 0 disables the cache */
+	@Param({"0", "100000"})
+	public int cacheSize;
+
+	private static final int BATCH = 10000;
+
+	private OneWayAnonymizer anonymizer;
+	private List<String[]> tuples;
+	private byte[][] utf8;
+	private byte[] dest;
+
+	@Setup
+	public void setup(){
+		PropertyFilePreferences prefs = PropertyFilePreferences.empty();
+		prefs.put(PreferenceKey.pseudonymAlgorithm.key(), algorithm);
+		prefs.put(PreferenceKey.pseudonymSalt.key(), "benchmark-salt");
+		prefs.put(OneWayAnonymizer.CACHE_SIZE_KEY, Integer.toString(cacheSize));
+		anonymizer = new OneWayAnonymizer(prefs);
+		utf8 = new byte[][]{"1.2.276.0.76.4.8".getBytes(StandardCharsets.UTF_8), "1234567890".getBytes(StandardCharsets.UTF_8)};
+		dest = new byte[anonymizer.pseudonymLength()];
+		tuples = new ArrayList<>(BATCH);
+		for( int i=0; i<BATCH; i++ ){
+			tuples.add(new String[]{"1.2.276.0.76.4.8", Integer.toString(1000000000 + i)});
+		}
+	}
+
+	@TearDown
+	public void tearDown(){
+		anonymizer.close();
+	}
+
+	@Benchmark
+	public String calculateAbstractPseudonym(){
+		return anonymizer.calculateAbstractPseudonym("1.2.276.0.76.4.8", "1234567890");
+	}
+
+	@Benchmark
+	public int calculateIntoBuffer(){
+		return anonymizer.calculateAbstractPseudonym(dest, 0, utf8);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void sequential(Blackhole bh){
+		for( String[] tuple : tuples ){
+			bh.consume(anonymizer.calculateAbstractPseudonym(tuple));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public List<String> batch(){
+		return anonymizer.calculateAbstractPseudonyms(tuples);
+	}
+}
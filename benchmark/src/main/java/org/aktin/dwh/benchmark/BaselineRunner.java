@@ -0,0 +1,247 @@
+package org.aktin.dwh.benchmark;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Runs all benchmarks and compares the results with a
+ * previously recorded baseline.
+ * <p>
+ * Usage: {@code java -cp target/benchmarks.jar org.aktin.dwh.benchmark.BaselineRunner [--record] [--baseline file] [--tolerance percent] [--threads 1,4,16]}
+ * </p>
+ * <p>
+ * With {@code --record}, the results are written to the baseline file.
+ * Otherwise, every result is compared with the baseline and the program
+ * exits with status 1 if any benchmark is slower than the baseline by more
+ * than the tolerance (default 25 percent). All benchmarks measure average
+ * time per operation, so lower scores are better.
+ * </p>
+ * <p>
+ * Contended benchmarks run with 1, 4 and 16 threads, or with the thread
+ * counts given by {@code --threads}. Thread counts above the number of
+ * available processors are skipped, since oversubscribed threads measure
+ * scheduling rather than contention. Skipped thread counts are reported
+ * with a warning, noted in a recorded baseline and make the program exit
+ * with status 3, unless a regression was found. Record and compare on the
+ * same machine.
+ * </p>
+ */
+public class BaselineRunner {
+	private static final String HEADER = "benchmark,params,threads,score,error,unit";
+
+	/** thread counts for the benchmarks which measure contention */
+	private static final int[] CONTENDED_THREADS = {1, 4, 16};
+	/** exit status if thread counts were skipped */
+	private static final int STATUS_SKIPPED = 3;
+
+	private static class Score{
+		final double score;
+		final double error;
+		final String unit;
+		Score(double score, double error, String unit){
+			this.score = score;
+			this.error = error;
+			this.unit = unit;
+		}
+	}
+
+	private static Options options(String include, int threads){
+		return new OptionsBuilder()
+				.include(include)
+				.threads(threads)
+				.forks(2)
+				.warmupIterations(5)
+				.warmupTime(TimeValue.seconds(1))
+				.measurementIterations(10)
+				.measurementTime(TimeValue.seconds(1))
+				.timeUnit(TimeUnit.NANOSECONDS)
+				.build();
+	}
+
+	private static String key(BenchmarkParams params){
+		String name = params.getBenchmark();
+		// strip package name
+		name = name.substring(BaselineRunner.class.getPackage().getName().length()+1);
+		StringBuilder b = new StringBuilder();
+		for( String p : params.getParamsKeys() ){
+			if( b.length() > 0 ){
+				b.append(';');
+			}
+			b.append(p).append('=').append(params.getParam(p));
+		}
+		return name+","+b+","+params.getThreads();
+	}
+
+	private static void run(String include, int threads, Map<String,Score> results) throws RunnerException{
+		for( RunResult r : new Runner(options(include, threads)).run() ){
+			results.put(key(r.getParams()), new Score(
+					r.getPrimaryResult().getScore(),
+					r.getPrimaryResult().getScoreError(),
+					r.getPrimaryResult().getScoreUnit()));
+		}
+	}
+
+	/**
+	 * Run all benchmarks.
+	 * @param threadCounts thread counts for the contended benchmarks
+	 * @param skipped receives the thread counts which were skipped
+	 * @return scores by key
+	 * @throws RunnerException benchmark failure
+	 */
+	private static Map<String,Score> runAll(int[] threadCounts, List<Integer> skipped) throws RunnerException{
+		Map<String,Score> results = new LinkedHashMap<>();
+		int processors = Runtime.getRuntime().availableProcessors();
+		for( int threads : threadCounts ){
+			if( threads > 1 && threads > processors ){
+				System.out.println("Skipping "+threads+" threads, only "+processors+" processor(s) available");
+				skipped.add(threads);
+				continue;
+			}
+			run(PreferencesBenchmark.class.getSimpleName(), threads, results);
+			run(ImportSummaryBenchmark.class.getSimpleName(), threads, results);
+			run(ErrorCacheBenchmark.class.getSimpleName(), threads, results);
+		}
+		run(AnonymizerBenchmark.class.getSimpleName(), 1, results);
+		run(MarshalBenchmark.class.getSimpleName(), 1, results);
+		return results;
+	}
+
+	private static String skippedNote(List<Integer> skipped){
+		return "thread counts "+skipped+" skipped, only "+Runtime.getRuntime().availableProcessors()+" processor(s) available";
+	}
+
+	private static void write(Path file, Map<String,Score> results, List<Integer> skipped) throws IOException{
+		try( BufferedWriter w = Files.newBufferedWriter(file, StandardCharsets.UTF_8) ){
+			w.write(HEADER);
+			w.newLine();
+			if( !skipped.isEmpty() ){
+				w.write("# "+skippedNote(skipped));
+				w.newLine();
+			}
+			for( Map.Entry<String,Score> e : results.entrySet() ){
+				Score s = e.getValue();
+				w.write(String.format(Locale.ROOT, "%s,%.3f,%.3f,%s", e.getKey(), s.score, s.error, s.unit));
+				w.newLine();
+			}
+		}
+	}
+
+	private static Map<String,Score> read(Path file) throws IOException{
+		Map<String,Score> results = new LinkedHashMap<>();
+		List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+		for( String line : lines ){
+			if( line.isEmpty() || line.equals(HEADER) || line.startsWith("#") ){
+				continue;
+			}
+			String[] f = line.split(",", -1);
+			results.put(f[0]+","+f[1]+","+f[2], new Score(Double.parseDouble(f[3]), Double.parseDouble(f[4]), f[5]));
+		}
+		return results;
+	}
+
+	/**
+	 * Compare results with the baseline and print a report.
+	 * @param baseline baseline scores
+	 * @param results current scores
+	 * @param tolerance allowed slowdown as fraction, e.g. 0.25
+	 * @return list of regressed benchmarks
+	 */
+	private static List<String> compare(Map<String,Score> baseline, Map<String,Score> results, double tolerance){
+		List<String> regressions = new ArrayList<>();
+		System.out.println();
+		System.out.println(String.format(Locale.ROOT, "%-70s %12s %12s %8s", "benchmark", "baseline", "current", "change"));
+		for( Map.Entry<String,Score> e : results.entrySet() ){
+			Score base = baseline.get(e.getKey());
+			Score cur = e.getValue();
+			if( base == null ){
+				System.out.println(String.format(Locale.ROOT, "%-70s %12s %12.3f %8s", e.getKey(), "-", cur.score, "new"));
+				continue;
+			}
+			double change = cur.score / base.score - 1.0;
+			String marker = "";
+			if( change > tolerance ){
+				regressions.add(e.getKey());
+				marker = " REGRESSION";
+			}
+			System.out.println(String.format(Locale.ROOT, "%-70s %12.3f %12.3f %+7.1f%%%s", e.getKey(), base.score, cur.score, change*100, marker));
+		}
+		for( Map.Entry<String,Score> e : baseline.entrySet() ){
+			if( !results.containsKey(e.getKey()) ){
+				System.out.println(String.format(Locale.ROOT, "%-70s %12.3f %12s %8s", e.getKey(), e.getValue().score, "-", "not run"));
+			}
+		}
+		return regressions;
+	}
+
+	public static void main(String[] args) throws RunnerException, IOException{
+		boolean record = false;
+		Path baselineFile = Paths.get("baseline.csv");
+		double tolerance = 0.25;
+		int[] threadCounts = CONTENDED_THREADS;
+		for( int i=0; i<args.length; i++ ){
+			switch( args[i] ){
+			case "--record":
+				record = true;
+				break;
+			case "--baseline":
+				baselineFile = Paths.get(args[++i]);
+				break;
+			case "--tolerance":
+				tolerance = Double.parseDouble(args[++i]) / 100.0;
+				break;
+			case "--threads":
+				threadCounts = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown argument: "+args[i]);
+			}
+		}
+		List<Integer> skipped = new ArrayList<>();
+		Map<String,Score> results = runAll(threadCounts, skipped);
+		if( record ){
+			write(baselineFile, results, skipped);
+			System.out.println("Baseline written to "+baselineFile.toAbsolutePath());
+			exitIfSkipped(skipped);
+			return;
+		}
+		if( !Files.exists(baselineFile) ){
+			System.err.println("No baseline found at "+baselineFile.toAbsolutePath()+", run with --record first");
+			System.exit(2);
+		}
+		List<String> regressions = compare(read(baselineFile), results, tolerance);
+		if( !regressions.isEmpty() ){
+			System.err.println(regressions.size()+" benchmark(s) slower than baseline by more than "+Math.round(tolerance*100)+"%: "+regressions);
+			System.exit(1);
+		}
+		exitIfSkipped(skipped);
+	}
+
+	private static void exitIfSkipped(List<Integer> skipped){
+		if( skipped.isEmpty() ){
+			return;
+		}
+		System.err.println();
+		System.err.println("WARNING: contention was not measured, "+skippedNote(skipped));
+		System.err.println("WARNING: run on a machine with more processors or restrict the thread counts with --threads.");
+		System.exit(STATUS_SKIPPED);
+	}
+}
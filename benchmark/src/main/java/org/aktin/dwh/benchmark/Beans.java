@@ -0,0 +1,45 @@
+package org.aktin.dwh.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+
+import org.aktin.dwh.prefs.impl.PropertyFilePreferences;
+
+/**
+ * Helpers to set up beans outside of the container.
+ */
+final class Beans {
+
+	private Beans(){
+	}
+
+	/**
+	 * Load the preferences used by the unit tests.
+	 * @return preferences
+	 */
+	static PropertyFilePreferences testPreferences(){
+		try( InputStream in = Beans.class.getResourceAsStream("/aktin.properties") ){
+			return new PropertyFilePreferences(in);
+		}catch( IOException e ){
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Set a field which is otherwise filled by dependency injection.
+	 * @param bean bean instance
+	 * @param field field name
+	 * @param value value to inject
+	 */
+	static void inject(Object bean, String field, Object value){
+		try{
+			Field f = bean.getClass().getDeclaredField(field);
+			f.setAccessible(true);
+			f.set(bean, value);
+		}catch( ReflectiveOperationException e ){
+			throw new IllegalStateException("Unable to inject field "+field, e);
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package org.aktin.dwh.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.aktin.dwh.statistics.ErrorCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Adding errors to an {@link ErrorCache} of the size used by the
+ * import summary. With low cardinality, most calls only increment
+ * the repeat count. With high cardinality, most calls evict an entry.
+ * The cache is shared by all benchmark threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ErrorCacheBenchmark {
+	@Param({"low", "high"})
+	public String cardinality;
+
+	private ErrorCache cache;
+	private String[] messages;
+
+	/**
+	 * Position of each thread in the message array
+	 */
+	@State(Scope.Thread)
+	public static class Cursor{
+		int next;
+	}
+
+	@Setup
+	public void setup(){
+		cache = new ErrorCache(20);
+		int distinct = cardinality.equals("low") ? 8 : 4096;
+		messages = new String[distinct];
+		for( int i=0; i<distinct; i++ ){
+			messages[i] = "Validation failed for document "+i+": element not allowed";
+		}
+	}
+
+	@Benchmark
+	public void add(Cursor cursor){
+		cache.add(messages[cursor.next], cursor.next);
+		cursor.next ++;
+		if( cursor.next == messages.length ){
+			cursor.next = 0;
+		}
+	}
+}
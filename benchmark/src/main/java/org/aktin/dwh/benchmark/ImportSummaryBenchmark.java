@@ -0,0 +1,52 @@
+package org.aktin.dwh.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.aktin.dwh.statistics.ImportSummaryImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Counting in a single shared {@link ImportSummaryImpl}. Run with
+ * different thread counts to measure contention, see {@link BaselineRunner}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ImportSummaryBenchmark {
+	private static final String TEMPLATE = "1.2.276.0.76.10.1019";
+	private static final String[] ERRORS = {
+			"Validation failed: missing patient id",
+			"Validation failed: invalid encounter date",
+			"Unable to write to database",
+			"Duplicate document"
+	};
+
+	private ImportSummaryImpl summary;
+
+	@State(Scope.Thread)
+	public static class ErrorIndex{
+		int next;
+	}
+
+	@Setup
+	public void setup(){
+		summary = new ImportSummaryImpl();
+	}
+
+	@Benchmark
+	public void addCreated(){
+		summary.addCreated(TEMPLATE);
+	}
+
+	@Benchmark
+	public void addRejected(ErrorIndex index){
+		int i = (index.next ++) & 3;
+		summary.addRejected(TEMPLATE, i != 0, ERRORS[i]);
+	}
+}
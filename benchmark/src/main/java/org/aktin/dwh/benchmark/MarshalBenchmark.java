@@ -0,0 +1,67 @@
+package org.aktin.dwh.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+import org.aktin.dwh.statistics.ImportSummaryImpl;
+import org.aktin.dwh.statistics.ImportSummarySnapshot;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * JAXB marshalling of a populated {@link ImportSummaryImpl}, as done
+ * for every request to the import statistics resource.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MarshalBenchmark {
+	private ImportSummaryImpl summary;
+	private Marshaller marshaller;
+	private Marshaller snapshotMarshaller;
+	private ByteArrayOutputStream out;
+
+	@Setup
+	public void setup() throws JAXBException{
+		summary = new ImportSummaryImpl();
+		for( int i=0; i<1000; i++ ){
+			summary.addCreated("X");
+			summary.addUpdated("X");
+			summary.addRejected("X", (i&1)==0, "Error "+(char)('A'+i%30)+" in document "+i);
+		}
+		marshaller = JAXBContext.newInstance(ImportSummaryImpl.class).createMarshaller();
+		snapshotMarshaller = JAXBContext.newInstance(ImportSummarySnapshot.class).createMarshaller();
+		out = new ByteArrayOutputStream(8192);
+	}
+
+	@Benchmark
+	public int marshal() throws JAXBException{
+		out.reset();
+		marshaller.marshal(summary, out);
+		return out.size();
+	}
+
+	@Benchmark
+	public int marshalSnapshot() throws JAXBException{
+		out.reset();
+		snapshotMarshaller.marshal(summary.snapshot(), out);
+		return out.size();
+	}
+
+	@Benchmark
+	public int cachedRepresentation() throws IOException{
+		out.reset();
+		summary.getRepresentation().writeXml(out);
+		return out.size();
+	}
+}
@@ -0,0 +1,58 @@
+package org.aktin.dwh.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.aktin.dwh.PreferenceKey;
+import org.aktin.dwh.prefs.impl.PropertyFilePreferences;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Lookups in {@link PropertyFilePreferences}. Run with different
+ * thread counts to measure contention, see {@link BaselineRunner}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PreferencesBenchmark {
+	private PropertyFilePreferences prefs;
+
+	@Setup
+	public void setup(){
+		prefs = Beans.testPreferences();
+		prefs.put("broker.pilot.https.interval", "PT1H");
+		prefs.put("broker.pilot.https.broker", "https://broker.example/");
+	}
+
+	@Benchmark
+	public String getByString(){
+		return prefs.get("mail.smtp.host");
+	}
+
+	@Benchmark
+	public String getByPreferenceKey(){
+		return prefs.get(PreferenceKey.pseudonymSalt);
+	}
+
+	@Benchmark
+	public int forPrefix(Blackhole bh){
+		return prefs.forPrefix("mail.smtp.", (k,v) -> bh.consume(v));
+	}
+
+	@Benchmark
+	public String scopedGet(){
+		return prefs.scope("broker.pilot.https").get("broker");
+	}
+
+	@Benchmark
+	public String concatenatedGet(){
+		String broker = "pilot";
+		return prefs.get("broker."+broker+".https.broker");
+	}
+}
@@ -0,0 +1,47 @@
+package org.aktin.dwh.anon;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.aktin.dwh.Anonymizer;
+
+/**
+ * Anonymizer which calculates pseudonyms for many tuples at once.
+ * <p>
+ * Implemented by {@link OneWayAnonymizer}, which is also available
+ * with this local business interface. Inject this interface (or the
+ * bean class) instead of {@link Anonymizer} to use the parallel batch
+ * calculation through the container proxy.
+ * </p>
+ */
+public interface BatchAnonymizer extends Anonymizer {
+
+	/**
+	 * Calculate pseudonyms for many tuples. The result is the same
+	 * as calling {@link #calculateAbstractPseudonym(String...)} for
+	 * each tuple, which is what the default implementation does.
+	 * @param tuples input tuples
+	 * @return pseudonyms in the order of the tuples
+	 * @throws IllegalStateException e.g. wrapped NoSuchAlgorithmException if the algorithm is not available
+	 */
+	default List<String> calculateAbstractPseudonyms(List<String[]> tuples) throws IllegalStateException{
+		List<String> pseudonyms = new ArrayList<>(tuples.size());
+		for( String[] tuple : tuples ){
+			pseudonyms.add(calculateAbstractPseudonym(tuple));
+		}
+		return pseudonyms;
+	}
+
+	/**
+	 * Use an anonymizer for batches. Anonymizers which do not implement
+	 * this interface calculate the pseudonyms one by one.
+	 * @param anonymizer anonymizer
+	 * @return the anonymizer itself if it implements this interface, otherwise a wrapper
+	 */
+	static BatchAnonymizer of(Anonymizer anonymizer){
+		if( anonymizer instanceof BatchAnonymizer ){
+			return (BatchAnonymizer)anonymizer;
+		}
+		return anonymizer::calculateAbstractPseudonym;
+	}
+}
@@ -0,0 +1,120 @@
+package org.aktin.dwh.anon;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads records from delimited text, e.g. CSV or TSV.
+ * <p>
+ * Fields may be enclosed in double quotes. Quoted fields can contain
+ * delimiters, line breaks and quotes, which are escaped by doubling them.
+ * Records are separated by {@code \n}, {@code \r\n} or {@code \r}.
+ * </p>
+ */
+class DelimitedRecordReader {
+	static final char QUOTE = '"';
+
+	private final Reader in;
+	private final char delimiter;
+	private final char[] buffer;
+	private int pos;
+	private int limit;
+	/** number of records read */
+	private long records;
+
+	private final StringBuilder field;
+	private final List<String> fields;
+
+	DelimitedRecordReader(Reader in, char delimiter){
+		this.in = in;
+		this.delimiter = delimiter;
+		this.buffer = new char[8192];
+		this.field = new StringBuilder();
+		this.fields = new ArrayList<>();
+	}
+
+	private int read() throws IOException{
+		if( pos == limit ){
+			limit = in.read(buffer);
+			pos = 0;
+			if( limit <= 0 ){
+				limit = 0;
+				return -1;
+			}
+		}
+		return buffer[pos++];
+	}
+
+	private int peek() throws IOException{
+		int c = read();
+		if( c != -1 ){
+			pos --;
+		}
+		return c;
+	}
+
+	private void endField(){
+		fields.add(field.toString());
+		field.setLength(0);
+	}
+
+	/**
+	 * Read the next record.
+	 * @return fields of the record or {@code null} at the end of the input
+	 * @throws IOException read error or unterminated quoted field
+	 */
+	String[] next() throws IOException{
+		int c = read();
+		if( c == -1 ){
+			return null;
+		}
+		fields.clear();
+		field.setLength(0);
+		boolean quoted = false;
+		boolean fieldStart = true;
+		while( true ){
+			if( quoted ){
+				if( c == -1 ){
+					throw new IOException("Unterminated quoted field in record "+(records+1));
+				}else if( c == QUOTE ){
+					if( peek() == QUOTE ){
+						field.append(QUOTE);
+						read();
+					}else{
+						quoted = false;
+					}
+				}else{
+					field.append((char)c);
+				}
+			}else if( c == QUOTE && fieldStart ){
+				quoted = true;
+			}else if( c == delimiter ){
+				endField();
+				fieldStart = true;
+				c = read();
+				continue;
+			}else if( c == '\n' || c == '\r' || c == -1 ){
+				if( c == '\r' && peek() == '\n' ){
+					read();
+				}
+				endField();
+				break;
+			}else{
+				field.append((char)c);
+			}
+			fieldStart = false;
+			c = read();
+		}
+		records ++;
+		return fields.toArray(new String[fields.size()]);
+	}
+
+	/**
+	 * @return number of records read
+	 */
+	long getRecordCount(){
+		return records;
+	}
+}
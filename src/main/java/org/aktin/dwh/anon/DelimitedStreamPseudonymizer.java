@@ -0,0 +1,336 @@
+package org.aktin.dwh.anon;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.aktin.dwh.Anonymizer;
+
+/**
+ * Replaces identifier columns of delimited text (e.g. CSV or TSV exports)
+ * with pseudonyms.
+ * <p>
+ * The input is processed as a stream of batches in three stages: parsing,
+ * pseudonym calculation and writing, so that the memory usage does not depend
+ * on the size of the input. If an executor is set via {@link #setExecutor(ExecutorService)},
+ * e.g. the container's {@code ManagedExecutorService}, parsing and calculation
+ * run as tasks of the executor and writing on the calling thread. The stages
+ * then exchange the batches via bounded queues. Otherwise, all stages run on
+ * the calling thread. With a {@link BatchAnonymizer}, e.g. {@link OneWayAnonymizer},
+ * the pseudonyms of a batch are additionally calculated in parallel.
+ * </p>
+ * <p>
+ * The pseudonym for a field value is {@code calculateAbstractPseudonym(value)}.
+ * Empty fields remain empty. Other columns are copied. Fields are quoted in
+ * the output only if necessary. Records are terminated by {@code \n}.
+ * </p>
+ * <p>
+ * Example:
+ * </p>
+ * <pre>
+ * new DelimitedStreamPseudonymizer(anonymizer, ';', "patient_id", "encounter_id").process(in, out);
+ * </pre>
+ */
+public class DelimitedStreamPseudonymizer {
+	/** marks the end of the stream in the queues */
+	private static final List<String[]> END = Collections.emptyList();
+
+	private final BatchAnonymizer anonymizer;
+	private final char delimiter;
+	private final int[] columns;
+	private final String[] columnNames;
+	private boolean header;
+	private int batchSize;
+	private int queueCapacity;
+	/** runs parsing and calculation, {@code null} to process on the calling thread */
+	private ExecutorService executor;
+
+	private DelimitedStreamPseudonymizer(Anonymizer anonymizer, char delimiter, int[] columns, String[] columnNames){
+		this.anonymizer = BatchAnonymizer.of(Objects.requireNonNull(anonymizer));
+		if( delimiter == DelimitedRecordReader.QUOTE || delimiter == '\n' || delimiter == '\r' ){
+			throw new IllegalArgumentException("Invalid delimiter");
+		}
+		this.delimiter = delimiter;
+		this.columns = columns;
+		this.columnNames = columnNames;
+		this.batchSize = 1024;
+		this.queueCapacity = 4;
+	}
+
+	/**
+	 * Pseudonymize columns by position. The input has no header
+	 * unless specified via {@link #setHeader(boolean)}.
+	 * @param anonymizer anonymizer to calculate the pseudonyms
+	 * @param delimiter field delimiter, e.g. {@code ','} or {@code '\t'}
+	 * @param columns zero based column indices
+	 */
+	public DelimitedStreamPseudonymizer(Anonymizer anonymizer, char delimiter, int... columns){
+		this(anonymizer, delimiter, columns.clone(), null);
+	}
+
+	/**
+	 * Pseudonymize columns by name. The first record of the input
+	 * must be a header with the column names and is copied unchanged.
+	 * @param anonymizer anonymizer to calculate the pseudonyms
+	 * @param delimiter field delimiter, e.g. {@code ','} or {@code '\t'}
+	 * @param columnNames names of the columns in the header
+	 */
+	public DelimitedStreamPseudonymizer(Anonymizer anonymizer, char delimiter, String... columnNames){
+		this(anonymizer, delimiter, null, columnNames.clone());
+		this.header = true;
+	}
+
+	/**
+	 * Specify whether the first record is a header, which is
+	 * copied unchanged. Always enabled if the columns are
+	 * specified by name.
+	 * @param header header present
+	 */
+	public void setHeader(boolean header){
+		this.header = header || columnNames != null;
+	}
+
+	/**
+	 * Number of records passed between the stages at once. Default 1024.
+	 * @param batchSize batch size
+	 */
+	public void setBatchSize(int batchSize){
+		if( batchSize < 1 ){
+			throw new IllegalArgumentException("Batch size must be positive");
+		}
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Number of batches which can wait between two stages. Default 4.
+	 * @param queueCapacity capacity
+	 */
+	public void setQueueCapacity(int queueCapacity){
+		if( queueCapacity < 1 ){
+			throw new IllegalArgumentException("Queue capacity must be positive");
+		}
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * Run parsing and pseudonym calculation concurrently with the
+	 * writing. Two tasks are submitted per {@link #process(Reader, Writer)}
+	 * call. The executor is not shut down.
+	 * @param executor executor, e.g. a managed executor service,
+	 *  or {@code null} to process on the calling thread (default)
+	 */
+	public void setExecutor(ExecutorService executor){
+		this.executor = executor;
+	}
+
+	/**
+	 * Pseudonymize the input. The streams are not closed.
+	 * @param in delimited input
+	 * @param out destination for the delimited output, flushed on success
+	 * @return number of records written, excluding the header
+	 * @throws IOException error reading or writing, parse error
+	 *  or failed pseudonym calculation
+	 */
+	public long process(Reader in, Writer out) throws IOException{
+		DelimitedRecordReader reader = new DelimitedRecordReader(in, delimiter);
+		int[] cols = columns;
+		if( header ){
+			String[] names = reader.next();
+			if( names == null ){
+				return 0;
+			}
+			if( columnNames != null ){
+				cols = resolveColumns(names);
+			}
+			writeRecord(out, names);
+		}
+		if( executor == null ){
+			return processSequential(reader, out, cols);
+		}
+		final int[] target = cols;
+		BlockingQueue<List<String[]>> parsed = new ArrayBlockingQueue<>(queueCapacity);
+		BlockingQueue<List<String[]>> hashed = new ArrayBlockingQueue<>(queueCapacity);
+		Future<?> parser = null;
+		Future<?> hasher = null;
+		try{
+			parser = executor.submit( () -> {
+				parse(reader, parsed);
+				return null;
+			});
+			hasher = executor.submit( () -> {
+				hash(parsed, hashed, target);
+				return null;
+			});
+			long count = write(hashed, out);
+			// the hasher must be checked first. If it failed,
+			// the parser may still be waiting for free space.
+			hasher.get();
+			parser.get();
+			out.flush();
+			return count;
+		}catch( InterruptedException e ){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while pseudonymizing");
+		}catch( ExecutionException e ){
+			Throwable cause = e.getCause();
+			if( cause instanceof IOException ){
+				throw (IOException)cause;
+			}else if( cause instanceof UncheckedIOException ){
+				throw ((UncheckedIOException)cause).getCause();
+			}
+			throw new IOException("Pseudonymization failed", cause);
+		}finally{
+			// stop the tasks if writing failed, no effect after completion
+			if( hasher != null ){
+				hasher.cancel(true);
+			}
+			if( parser != null ){
+				parser.cancel(true);
+			}
+		}
+	}
+
+	private long processSequential(DelimitedRecordReader reader, Writer out, int[] cols) throws IOException{
+		long count = 0;
+		List<String[]> batch = new ArrayList<>(batchSize);
+		String[] record;
+		do{
+			record = reader.next();
+			if( record != null ){
+				batch.add(record);
+			}
+			if( batch.size() == batchSize || (record == null && !batch.isEmpty()) ){
+				try{
+					for( int col : cols ){
+						pseudonymize(batch, col);
+					}
+				}catch( RuntimeException e ){
+					throw new IOException("Pseudonymization failed", e);
+				}
+				for( String[] r : batch ){
+					writeRecord(out, r);
+				}
+				count += batch.size();
+				batch.clear();
+			}
+		}while( record != null );
+		out.flush();
+		return count;
+	}
+
+	private int[] resolveColumns(String[] names) throws IOException{
+		List<String> header = Arrays.asList(names);
+		int[] cols = new int[columnNames.length];
+		for( int i=0; i<cols.length; i++ ){
+			cols[i] = header.indexOf(columnNames[i]);
+			if( cols[i] == -1 ){
+				throw new IOException("Column not found in header: "+columnNames[i]);
+			}
+		}
+		return cols;
+	}
+
+	private void parse(DelimitedRecordReader reader, BlockingQueue<List<String[]>> parsed) throws IOException, InterruptedException{
+		try{
+			List<String[]> batch = new ArrayList<>(batchSize);
+			String[] record;
+			while( (record = reader.next()) != null ){
+				batch.add(record);
+				if( batch.size() == batchSize ){
+					parsed.put(batch);
+					batch = new ArrayList<>(batchSize);
+				}
+			}
+			if( !batch.isEmpty() ){
+				parsed.put(batch);
+			}
+		}finally{
+			// also signal the end if parsing failed
+			parsed.put(END);
+		}
+	}
+
+	private void hash(BlockingQueue<List<String[]>> parsed, BlockingQueue<List<String[]>> hashed, int[] cols) throws InterruptedException{
+		try{
+			List<String[]> batch;
+			while( (batch = parsed.take()) != END ){
+				for( int col : cols ){
+					pseudonymize(batch, col);
+				}
+				hashed.put(batch);
+			}
+		}finally{
+			hashed.put(END);
+		}
+	}
+
+	private void pseudonymize(List<String[]> batch, int col){
+		List<String[]> tuples = new ArrayList<>(batch.size());
+		List<String[]> targets = new ArrayList<>(batch.size());
+		for( String[] record : batch ){
+			if( col < record.length && !record[col].isEmpty() ){
+				tuples.add(new String[]{record[col]});
+				targets.add(record);
+			}
+		}
+		List<String> pseudonyms = anonymizer.calculateAbstractPseudonyms(tuples);
+		for( int i=0; i<targets.size(); i++ ){
+			targets.get(i)[col] = pseudonyms.get(i);
+		}
+	}
+
+	private long write(BlockingQueue<List<String[]>> hashed, Writer out) throws IOException, InterruptedException{
+		long count = 0;
+		List<String[]> batch;
+		while( (batch = hashed.take()) != END ){
+			for( String[] record : batch ){
+				writeRecord(out, record);
+			}
+			count += batch.size();
+		}
+		return count;
+	}
+
+	private void writeRecord(Writer out, String[] record) throws IOException{
+		for( int i=0; i<record.length; i++ ){
+			if( i != 0 ){
+				out.write(delimiter);
+			}
+			writeField(out, record[i]);
+		}
+		out.write('\n');
+	}
+
+	private void writeField(Writer out, String value) throws IOException{
+		boolean quote = false;
+		for( int i=0; i<value.length() && !quote; i++ ){
+			char c = value.charAt(i);
+			quote = (c == delimiter || c == DelimitedRecordReader.QUOTE || c == '\n' || c == '\r');
+		}
+		if( !quote ){
+			out.write(value);
+			return;
+		}
+		out.write(DelimitedRecordReader.QUOTE);
+		for( int i=0; i<value.length(); i++ ){
+			char c = value.charAt(i);
+			if( c == DelimitedRecordReader.QUOTE ){
+				out.write(c);
+			}
+			out.write(c);
+		}
+		out.write(DelimitedRecordReader.QUOTE);
+	}
+}
@@ -1,68 +1,405 @@
 package org.aktin.dwh.anon;
 
-import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Base64;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
-import javax.ejb.Stateless;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.Local;
+import javax.ejb.LocalBean;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Singleton;
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+import javax.enterprise.event.Observes;
+import javax.enterprise.event.Reception;
 import javax.inject.Inject;
 
 import org.aktin.Preferences;
 import org.aktin.dwh.Anonymizer;
 import org.aktin.dwh.PreferenceKey;
+import org.aktin.dwh.prefs.impl.PreferenceType;
+import org.aktin.dwh.prefs.impl.PreferencesChangedEvent;
+import org.aktin.dwh.prefs.impl.SnapshotPreferences;
 
-// technically, singleton is not needed,
-// but we need some bean qualifier to allow external dependencies
-// to inject this class
-@Stateless
-public class OneWayAnonymizer implements Anonymizer {
+/**
+ * Calculates pseudonyms with a salted one way hash function.
+ * <p>
+ * The algorithm is configured via {@link PreferenceKey#pseudonymAlgorithm}.
+ * Supported are message digests like {@code SHA-1} (default), {@code SHA-256}
+ * and {@code SHA-512}, which hash the salt followed by the input, and HMAC
+ * algorithms like {@code HmacSHA256}, which use the salt as key. The algorithm
+ * is resolved during initialization, so that invalid names fail the deployment
+ * instead of the first pseudonym calculation. Changing the algorithm changes
+ * all pseudonyms.
+ * </p>
+ * <p>
+ * Optionally, calculated pseudonyms can be cached for inputs which
+ * occur repeatedly. The cache is enabled by setting {@value #CACHE_SIZE_KEY}
+ * to the maximum number of entries. Entries expire after {@value #CACHE_TTL_KEY}
+ * (default 10 minutes). In a container, they are removed from memory shortly
+ * after by the default managed scheduled executor.
+ * Changes of the algorithm or salt discard all cached entries.
+ * </p>
+ */
+// singleton session bean, so that the cache and settings are shared and
+// existing @EJB and JNDI clients keep working. Calculations run concurrently,
+// the container serializes reloads of the settings with write locks.
+// The no-interface view makes the observer and the methods beyond
+// Anonymizer business methods.
+@Singleton
+@LocalBean
+@Local({Anonymizer.class, BatchAnonymizer.class})
+@Lock(LockType.READ)
+public class OneWayAnonymizer implements BatchAnonymizer {
+	/** preference with the maximum number of cached pseudonyms, {@code 0} (default) disables the cache */
+	public static final String CACHE_SIZE_KEY = "pseudonym.cache.size";
+	/** preference with the time after which cached pseudonyms expire */
+	public static final String CACHE_TTL_KEY = "pseudonym.cache.ttl";
+	private static final Duration DEFAULT_CACHE_TTL = Duration.ofMinutes(10);
+
+	/** minimum number of tuples to calculate in parallel */
+	private static final int PARALLEL_THRESHOLD = 1024;
+	private static final CharSequence[] NO_SEGMENTS = {};
 
 	@Inject
 	private Preferences prefs;
+	/** removes expired cache entries, {@code null} outside of a container */
+	@Resource
+	private ManagedScheduledExecutorService scheduler;
+
+	/**
+	 * Hasher and cache for the algorithm and salt read from the
+	 * preferences. Replaced as a whole when the preferences change.
+	 */
+	private static class Settings{
+		final PseudonymHasher hasher;
+		/** cache or {@code null} if disabled */
+		final PseudonymCache cache;
+		/** removal of expired entries, {@code null} if not scheduled */
+		final ScheduledFuture<?> purge;
+		Settings(PseudonymHasher hasher, PseudonymCache cache, ScheduledFuture<?> purge){
+			this.hasher = hasher;
+			this.cache = cache;
+			this.purge = purge;
+		}
+
+		String hash(CharSequence[] strings){
+			if( cache == null ){
+				return hasher.hash(strings);
+			}
+			String key = String.join("/", strings);
+			String pseudonym = cache.get(key);
+			if( pseudonym == null ){
+				pseudonym = hasher.hash(strings);
+				cache.put(key, pseudonym);
+			}
+			return pseudonym;
+		}
+
+		void close(){
+			if( purge != null ){
+				purge.cancel(false);
+			}
+			if( cache != null ){
+				cache.clear();
+			}
+		}
+	}
+
+	/** current settings, {@code null} before initialization, after close or if the settings are invalid */
+	private volatile Settings settings;
+	/** reason why the settings could not be loaded, {@code null} if loaded */
+	private volatile IllegalStateException failure;
+
+	/**
+	 * Constructor for CDI
+	 */
+	public OneWayAnonymizer(){
+	}
+
+	/**
+	 * Create an anonymizer outside of a CDI container. Changes of the
+	 * preferences are noticed only for {@link SnapshotPreferences}.
+	 * Expired cache entries are not removed in the background.
+	 * @param prefs preferences with algorithm and salt
+	 */
+	public OneWayAnonymizer(Preferences prefs){
+		this.prefs = prefs;
+		if( prefs instanceof SnapshotPreferences ){
+			((SnapshotPreferences)prefs).addChangeListener(this::preferencesChanged);
+		}
+		initialize();
+	}
+
+	/**
+	 * Resolve the configured algorithm and salt.
+	 * @throws IllegalStateException if the algorithm is not available
+	 */
+	@PostConstruct
+	public void initialize() throws IllegalStateException{
+		reload();
+	}
+
+	/**
+	 * Get the current settings
+	 * @return settings
+	 * @throws IllegalStateException if the configured algorithm is not available
+	 */
+	private Settings getSettings() throws IllegalStateException{
+		Settings s = settings;
+		if( s == null ){
+			IllegalStateException e = failure;
+			if( e == null ){
+				throw new IllegalStateException("Anonymizer not initialized or closed");
+			}
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+		return s;
+	}
+
+	/**
+	 * Replace the settings with the values from the preferences. If the
+	 * settings are invalid, calculations fail until the next reload.
+	 * @throws IllegalStateException if the configured algorithm is not available
+	 */
+	private void reload() throws IllegalStateException{
+		Settings s;
+		try{
+			s = loadSettings();
+		}catch( IllegalStateException e ){
+			failure = e;
+			replaceSettings(null);
+			throw e;
+		}
+		failure = null;
+		replaceSettings(s);
+	}
+
+	private void replaceSettings(Settings s){
+		Settings prev = settings;
+		settings = s;
+		if( prev != null ){
+			// forget identifiers cached for the previous settings
+			prev.close();
+		}
+	}
+
+	private Settings loadSettings() throws IllegalStateException{
+		String algo = prefs.get(PreferenceKey.pseudonymAlgorithm);
+		if( algo == null ){
+			// default to SHA-1
+			algo = "SHA-1";
+		}
+		String salt = prefs.get(PreferenceKey.pseudonymSalt);
+		if( salt == null ){
+			salt = ""; // default to no salt
+		}
+		PseudonymHasher hasher;
+		try{
+			hasher = new PseudonymHasher(algo, salt);
+		}catch( GeneralSecurityException e ){
+			throw new IllegalStateException("Pseudonym algorithm not available: "+algo, e);
+		}
+		Integer size = PreferenceType.INTEGER.get(prefs, CACHE_SIZE_KEY);
+		PseudonymCache cache = null;
+		ScheduledFuture<?> purge = null;
+		if( size != null && size > 0 ){
+			Duration ttl = PreferenceType.DURATION.get(prefs, CACHE_TTL_KEY);
+			if( ttl == null ){
+				ttl = DEFAULT_CACHE_TTL;
+			}
+			cache = new PseudonymCache(size, ttl.toMillis());
+			if( scheduler != null ){
+				// expired entries stay in memory for at most a quarter of the ttl
+				long interval = Math.max(ttl.toMillis() / 4, 1000);
+				purge = scheduler.scheduleWithFixedDelay(cache::purge, interval, interval, TimeUnit.MILLISECONDS);
+			}
+		}
+		return new Settings(hasher, cache, purge);
+	}
+
+	/**
+	 * Reload the settings if the pseudonym preferences were changed.
+	 * Waits for running calculations to complete.
+	 * @param event change event
+	 * @throws IllegalStateException if the changed algorithm is not available
+	 */
+	@Lock(LockType.WRITE)
+	public void preferencesChanged(@Observes(notifyObserver=Reception.IF_EXISTS) PreferencesChangedEvent event) throws IllegalStateException{
+		if( event.affects(PreferenceKey.pseudonymAlgorithm) || event.affects(PreferenceKey.pseudonymSalt)
+				|| event.affects(CACHE_SIZE_KEY) || event.affects(CACHE_TTL_KEY) ){
+			reload();
+		}
+	}
+
+	/**
+	 * @return number of pseudonyms found in the cache since the last change of the settings
+	 */
+	public long getCacheHits(){
+		Settings s = settings;
+		return (s == null || s.cache == null) ? 0 : s.cache.getHits();
+	}
+
+	/**
+	 * @return number of pseudonyms not found in the cache since the last change of the settings
+	 */
+	public long getCacheMisses(){
+		Settings s = settings;
+		return (s == null || s.cache == null) ? 0 : s.cache.getMisses();
+	}
+
+	/**
+	 * @return number of cached pseudonyms, including expired entries not yet removed
+	 */
+	public int getCacheSize(){
+		Settings s = settings;
+		return (s == null || s.cache == null) ? 0 : s.cache.size();
+	}
+
+	/**
+	 * Clear the cache and stop removing expired entries.
+	 * Called by the container before the bean is destroyed.
+	 */
+	@PreDestroy
+	@Lock(LockType.WRITE)
+	public void close(){
+		failure = null;
+		replaceSettings(null);
+	}
+
 	/**
 	 * Calculate a one way hash function for the given input.
 	 * The algorithm is as follows:
 	 * <ol>
 	 *  <li>Concatenate the arguments with a slash (/) as separator.</li>
 	 *  <li>Encode the input arguments with UTF-8 encoding
-	 *  <li>Generate a 160bit SHA-1 checksum</li>
+	 *  <li>Generate a 160bit SHA-1 checksum of the salt followed by the input
+	 *   (or another digest or HMAC, see the class description)</li>
 	 *  <li>Produce bas64 encoding with url-safe alphabet</li>
 	 * </ol>
-	 * The resulting string length will be less than 30 characters.
+	 * With SHA-1, the resulting string length will be less than 30 characters.
+	 * <p>
+	 * The digest and salt are prepared only once, the calculation
+	 * itself does not allocate intermediate objects.
+	 * </p>
 	 * 
 	 * @param strings input
 	 * @return string hash
-	 * @throws IllegalStateException e.g. wrapped NoSuchAlgorithmException if the algorithm is not available 
+	 * @throws IllegalStateException e.g. wrapped NoSuchAlgorithmException if a changed algorithm is not available 
 	 */
 	@Override
 	public String calculateAbstractPseudonym(String ...strings) throws IllegalStateException{
-		MessageDigest digest;
-		String algo = prefs.get(PreferenceKey.pseudonymAlgorithm);
-		if( algo == null ){
-			// default to SHA-1
-			algo = "SHA-1";
-		}
-		try {
-			digest = MessageDigest.getInstance(algo);
-		} catch (NoSuchAlgorithmException e) {
-			// should not happen. SHA-1 is guaranteed to be included in the JRE
-			throw new IllegalStateException("Digest algorithm not available",e);
-		}
-		String salt = prefs.get(PreferenceKey.pseudonymSalt);
-		if( salt == null ){
-			salt = ""; // default to no salt
+		return getSettings().hash(strings);
+	}
+
+	/**
+	 * Calculate pseudonyms for many tuples, e.g. to process an export.
+	 * Large batches are split across the common fork-join pool. Every
+	 * worker thread uses its own digest. The algorithm, salt and cache
+	 * are read once for the whole batch.
+	 * <p>
+	 * The result is the same as calling {@link #calculateAbstractPseudonym(String...)}
+	 * for each tuple.
+	 * </p>
+	 * @param tuples input tuples
+	 * @return pseudonyms in the order of the tuples
+	 * @throws IllegalStateException e.g. wrapped NoSuchAlgorithmException if the algorithm is not available
+	 */
+	@Override
+	public List<String> calculateAbstractPseudonyms(List<String[]> tuples) throws IllegalStateException{
+		Stream<String[]> stream = tuples.stream();
+		if( tuples.size() >= PARALLEL_THRESHOLD ){
+			stream = stream.parallel();
 		}
-		// join arguments
-		String composite = salt + String.join("/", strings);
-		// logging
-		// encode to bytes
-		ByteBuffer input = Charset.forName("UTF-8").encode(composite);
-		// calculate digest and encode with base64
-		digest.update(input);
-		String result = Base64.getUrlEncoder().encodeToString(digest.digest());
-		return result;
+		return calculateAbstractPseudonyms(stream);
+	}
+
+	/**
+	 * Calculate pseudonyms for a stream of tuples. The stream is
+	 * processed in parallel if it is a parallel stream.
+	 * @param tuples input tuples
+	 * @return pseudonyms in the encounter order of the stream
+	 * @throws IllegalStateException e.g. wrapped NoSuchAlgorithmException if the algorithm is not available
+	 * @see #calculateAbstractPseudonyms(List)
+	 */
+	public List<String> calculateAbstractPseudonyms(Stream<String[]> tuples) throws IllegalStateException{
+		Settings s = getSettings();
+		return tuples.map(s::hash).collect(Collectors.toList());
 	}
 
+	/**
+	 * Calculate a pseudonym for character sequences, e.g. slices of a
+	 * parser buffer, without converting them to strings first. The result
+	 * is the same as for {@link #calculateAbstractPseudonym(String...)}
+	 * with the corresponding strings. The cache is not used.
+	 * @param segments input
+	 * @return pseudonym
+	 * @throws IllegalStateException e.g. wrapped NoSuchAlgorithmException if a changed algorithm is not available
+	 */
+	public String calculateAbstractPseudonym(CharSequence... segments) throws IllegalStateException{
+		return getSettings().hasher.hash(segments);
+	}
+
+	/**
+	 * Calculate a pseudonym and write it to a buffer as ASCII characters.
+	 * No objects are allocated. The result is the same as for
+	 * {@link #calculateAbstractPseudonym(String...)} with the corresponding
+	 * strings. The cache is not used.
+	 * @param dest destination buffer, must have room for {@link #pseudonymLength()} bytes
+	 * @param offset first position to write in the buffer
+	 * @param segments input
+	 * @return number of bytes written
+	 * @throws IllegalStateException e.g. wrapped NoSuchAlgorithmException if a changed algorithm is not available
+	 * @throws IndexOutOfBoundsException if the buffer is too small
+	 */
+	public int calculateAbstractPseudonym(byte[] dest, int offset, CharSequence... segments) throws IllegalStateException{
+		return getSettings().hasher.hash(dest, offset, segments);
+	}
+
+	/**
+	 * Calculate the pseudonym for empty input and write it to a buffer.
+	 * Resolves the ambiguity of the {@code CharSequence} and {@code byte[]}
+	 * overloads without segments. The result is the same as for
+	 * {@link #calculateAbstractPseudonym(String...)} without arguments.
+	 * @param dest destination buffer, must have room for {@link #pseudonymLength()} bytes
+	 * @param offset first position to write in the buffer
+	 * @return number of bytes written
+	 * @throws IllegalStateException e.g. wrapped NoSuchAlgorithmException if a changed algorithm is not available
+	 * @throws IndexOutOfBoundsException if the buffer is too small
+	 */
+	public int calculateAbstractPseudonym(byte[] dest, int offset) throws IllegalStateException{
+		return getSettings().hasher.hash(dest, offset, NO_SEGMENTS);
+	}
+
+	/**
+	 * Calculate a pseudonym for UTF-8 encoded input and write it to a
+	 * buffer as ASCII characters. No objects are allocated. The result
+	 * is the same as for {@link #calculateAbstractPseudonym(String...)}
+	 * with the decoded strings. The cache is not used.
+	 * @param dest destination buffer, must have room for {@link #pseudonymLength()} bytes
+	 * @param offset first position to write in the buffer
+	 * @param segments UTF-8 encoded input
+	 * @return number of bytes written
+	 * @throws IllegalStateException e.g. wrapped NoSuchAlgorithmException if a changed algorithm is not available
+	 * @throws IndexOutOfBoundsException if the buffer is too small
+	 */
+	public int calculateAbstractPseudonym(byte[] dest, int offset, byte[]... segments) throws IllegalStateException{
+		return getSettings().hasher.hash(dest, offset, segments);
+	}
+
+	/**
+	 * Length of the pseudonyms for the current algorithm, e.g.
+	 * 28 characters for SHA-1.
+	 * @return number of characters
+	 */
+	public int pseudonymLength(){
+		return getSettings().hasher.length();
+	}
 }
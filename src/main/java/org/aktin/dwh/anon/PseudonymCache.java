@@ -0,0 +1,155 @@
+package org.aktin.dwh.anon;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of calculated pseudonyms, keyed by the joined input.
+ * <p>
+ * The cache is split into independently locked segments. The segment
+ * capacities add up to the maximum size, small caches use fewer
+ * segments. Each segment evicts its oldest entry when full. Entries expire a fixed
+ * time after they were added, regardless of later hits, so that
+ * identifiers are not kept longer than configured. Expired entries
+ * are never returned and are removed from memory by {@link #purge()}.
+ * </p>
+ */
+final class PseudonymCache {
+	private static final int MAX_SEGMENTS = 16;
+	/** minimum capacity of a segment, unless the cache is smaller */
+	private static final int MIN_SEGMENT_SIZE = 8;
+
+	private final Segment[] segments;
+	private final long ttlNanos;
+	private final LongAdder hits;
+	private final LongAdder misses;
+
+	private static class Cached{
+		final String pseudonym;
+		final long expires;
+		Cached(String pseudonym, long expires){
+			this.pseudonym = pseudonym;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * Entries in insertion order, which is also the order of expiry.
+	 */
+	private static class Segment extends LinkedHashMap<String, Cached>{
+		private static final long serialVersionUID = 1L;
+		private final int capacity;
+		Segment(int capacity){
+			this.capacity = capacity;
+		}
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+			return size() > capacity;
+		}
+	}
+
+	/**
+	 * Create a cache.
+	 * @param maxSize maximum number of entries, at least 1
+	 * @param ttlMillis time in milliseconds after which entries expire
+	 */
+	PseudonymCache(int maxSize, long ttlMillis){
+		int count = Math.min(MAX_SEGMENTS, Integer.highestOneBit(Math.max(1, maxSize / MIN_SEGMENT_SIZE)));
+		// distribute the remainder so that the total equals maxSize
+		int capacity = maxSize / count;
+		int remainder = maxSize % count;
+		this.segments = new Segment[count];
+		for( int i=0; i<count; i++ ){
+			segments[i] = new Segment(i < remainder ? capacity + 1 : capacity);
+		}
+		this.ttlNanos = ttlMillis * 1000000;
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+	}
+
+	private Segment segmentFor(String key){
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		// number of segments is a power of two
+		return segments[h & (segments.length - 1)];
+	}
+
+	/**
+	 * Get a cached pseudonym.
+	 * @param key joined input
+	 * @return pseudonym or {@code null} if not cached or expired
+	 */
+	String get(String key){
+		Segment segment = segmentFor(key);
+		Cached e;
+		synchronized( segment ){
+			e = segment.get(key);
+			if( e != null && e.expires - System.nanoTime() <= 0 ){
+				segment.remove(key);
+				e = null;
+			}
+		}
+		if( e == null ){
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		return e.pseudonym;
+	}
+
+	void put(String key, String pseudonym){
+		Segment segment = segmentFor(key);
+		Cached e = new Cached(pseudonym, System.nanoTime() + ttlNanos);
+		synchronized( segment ){
+			// remove first to keep the insertion order equal to the expiry order
+			segment.remove(key);
+			segment.put(key, e);
+		}
+	}
+
+	/**
+	 * Remove expired entries.
+	 */
+	void purge(){
+		long now = System.nanoTime();
+		for( Segment segment : segments ){
+			synchronized( segment ){
+				Iterator<Cached> i = segment.values().iterator();
+				while( i.hasNext() && i.next().expires - now <= 0 ){
+					i.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove all entries.
+	 */
+	void clear(){
+		for( Segment segment : segments ){
+			synchronized( segment ){
+				segment.clear();
+			}
+		}
+	}
+
+	int size(){
+		int size = 0;
+		for( Segment segment : segments ){
+			synchronized( segment ){
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	long getHits(){
+		return hits.sum();
+	}
+
+	long getMisses(){
+		return misses.sum();
+	}
+}
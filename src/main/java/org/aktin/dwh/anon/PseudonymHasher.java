@@ -0,0 +1,314 @@
+package org.aktin.dwh.anon;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Calculates pseudonyms for a fixed algorithm and salt.
+ * <p>
+ * Two modes are supported. For message digest algorithms (e.g. {@code SHA-1},
+ * {@code SHA-256}, {@code SHA-512}), the salt is prepended to the input
+ * as described below. For HMAC algorithms (name starting with {@code Hmac},
+ * e.g. {@code HmacSHA256}), the UTF-8 encoded salt is used as key and only
+ * the joined arguments are authenticated. Any algorithm available from the
+ * installed security providers can be used.
+ * </p>
+ * <p>
+ * In digest mode, the result is identical to hashing the UTF-8 encoding of
+ * {@code salt + String.join("/", strings)} and encoding the digest
+ * with the url-safe base64 alphabet. The composite string is never
+ * built. Instead, every thread keeps a digest and buffers which are
+ * reused for all calls: the digest is reset and primed with the
+ * pre-encoded salt bytes, then the arguments are encoded directly
+ * into a small buffer which is flushed into the digest. Apart from
+ * the resulting string, no objects are allocated per call.
+ * In HMAC mode, the per-thread {@link Mac} is initialized with the
+ * key once and reset automatically after every calculation.
+ * </p>
+ * <p>
+ * Unpaired surrogates are encoded as {@code ?}, like the replacement
+ * of the JDK encoder. If the salt ends with a high surrogate, it may
+ * form a pair with the first argument. For these salts, the composite
+ * string is encoded as a whole (digest mode only).
+ * </p>
+ */
+final class PseudonymHasher {
+	/** size of the encoding buffer, must be at least 4 */
+	private static final int BUFFER_SIZE = 256;
+	private static final byte SEPARATOR = '/';
+	private static final byte REPLACEMENT = '?';
+	/** encoding of {@code null} segments */
+	private static final byte[] NULL = {'n','u','l','l'};
+
+	private final String algorithm;
+	private final String salt;
+	private final byte[] saltBytes;
+	/** whether HMAC is used instead of a salted digest */
+	private final boolean hmac;
+	/** whether the salt cannot be encoded separately from the arguments */
+	private final boolean composite;
+	private final ThreadLocal<State> state;
+
+	/**
+	 * Per thread state. Subclasses wrap the hash function.
+	 */
+	private abstract static class State{
+		final byte[] buffer;
+		final byte[] hash;
+		final byte[] base64;
+		State(int length){
+			this.buffer = new byte[BUFFER_SIZE];
+			this.hash = new byte[length];
+			this.base64 = new byte[4 * ((length + 2) / 3)];
+		}
+		/** prepare for a new calculation */
+		abstract void start();
+		abstract void update(byte[] input, int offset, int len);
+		/**
+		 * Finish the calculation and write the result to {@link #hash}
+		 * @throws GeneralSecurityException calculation failed
+		 */
+		abstract void finish() throws GeneralSecurityException;
+	}
+
+	private static class DigestState extends State{
+		final MessageDigest digest;
+		final byte[] salt;
+		DigestState(MessageDigest digest, byte[] salt){
+			super(digest.getDigestLength());
+			this.digest = digest;
+			this.salt = salt;
+		}
+		@Override
+		void start(){
+			digest.reset();
+			digest.update(salt);
+		}
+		@Override
+		void update(byte[] input, int offset, int len){
+			digest.update(input, offset, len);
+		}
+		@Override
+		void finish() throws DigestException{
+			digest.digest(hash, 0, hash.length);
+		}
+	}
+
+	private static class MacState extends State{
+		final Mac mac;
+		MacState(Mac mac){
+			super(mac.getMacLength());
+			this.mac = mac;
+		}
+		@Override
+		void start(){
+			// reset by the previous call to doFinal
+		}
+		@Override
+		void update(byte[] input, int offset, int len){
+			mac.update(input, offset, len);
+		}
+		@Override
+		void finish() throws ShortBufferException{
+			mac.doFinal(hash, 0);
+		}
+	}
+
+	/**
+	 * Create a hasher.
+	 * @param algorithm digest or HMAC algorithm, e.g. {@code SHA-1} or {@code HmacSHA256}
+	 * @param salt salt, prepended to the input or used as HMAC key
+	 * @throws GeneralSecurityException algorithm not supported or
+	 *  salt not usable as key (e.g. empty salt for HMAC)
+	 */
+	PseudonymHasher(String algorithm, String salt) throws GeneralSecurityException{
+		this.algorithm = algorithm;
+		this.salt = salt;
+		this.saltBytes = salt.getBytes(StandardCharsets.UTF_8);
+		this.hmac = algorithm.regionMatches(true, 0, "Hmac", 0, 4);
+		this.composite = !hmac && !salt.isEmpty() && Character.isHighSurrogate(salt.charAt(salt.length()-1));
+		// fail early if the algorithm or key is not usable
+		createState();
+		this.state = ThreadLocal.withInitial(() -> {
+			try {
+				return createState();
+			} catch (GeneralSecurityException e) {
+				// checked during construction
+				throw new IllegalStateException("Pseudonym algorithm not available", e);
+			}
+		});
+	}
+
+	private State createState() throws GeneralSecurityException{
+		State s;
+		if( hmac ){
+			Mac mac = Mac.getInstance(algorithm);
+			if( saltBytes.length == 0 ){
+				throw new NoSuchAlgorithmException("Salt required as key for "+algorithm);
+			}
+			mac.init(new SecretKeySpec(saltBytes, algorithm));
+			s = new MacState(mac);
+		}else{
+			s = new DigestState(MessageDigest.getInstance(algorithm), saltBytes);
+		}
+		if( s.hash.length == 0 ){
+			throw new NoSuchAlgorithmException("Unknown output length for "+algorithm);
+		}
+		return s;
+	}
+
+	String getAlgorithm(){
+		return algorithm;
+	}
+
+	/**
+	 * @return number of characters of every pseudonym
+	 */
+	int length(){
+		return state.get().base64.length;
+	}
+
+	/**
+	 * Calculate the pseudonym.
+	 * @param segments input, {@code null} elements are treated as {@code "null"}
+	 * @return url-safe base64 encoded digest
+	 */
+	String hash(CharSequence... segments){
+		State s = calculate(segments);
+		int len = Base64.getUrlEncoder().encode(s.hash, s.base64);
+		return new String(s.base64, 0, len, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Calculate the pseudonym and write the ASCII characters
+	 * of the base64 encoding to a buffer.
+	 * @param dest destination buffer
+	 * @param offset first position to write in the buffer
+	 * @param segments input, {@code null} elements are treated as {@code "null"}
+	 * @return number of bytes written, see {@link #length()}
+	 * @throws IndexOutOfBoundsException if the buffer is too small
+	 */
+	int hash(byte[] dest, int offset, CharSequence... segments){
+		return copyTo(calculate(segments), dest, offset);
+	}
+
+	/**
+	 * Calculate the pseudonym of UTF-8 encoded input and write the
+	 * ASCII characters of the base64 encoding to a buffer.
+	 * @param dest destination buffer
+	 * @param offset first position to write in the buffer
+	 * @param segments UTF-8 encoded input, {@code null} elements are treated as {@code "null"}
+	 * @return number of bytes written, see {@link #length()}
+	 * @throws IndexOutOfBoundsException if the buffer is too small
+	 */
+	int hash(byte[] dest, int offset, byte[]... segments){
+		State s = state.get();
+		// a high surrogate at the end of the salt is always
+		// unpaired, as the segments contain no surrogates
+		s.start();
+		for( int i=0; i<segments.length; i++ ){
+			if( i != 0 ){
+				s.buffer[0] = SEPARATOR;
+				s.update(s.buffer, 0, 1);
+			}
+			byte[] segment = segments[i];
+			if( segment == null ){
+				s.update(NULL, 0, NULL.length);
+			}else{
+				s.update(segment, 0, segment.length);
+			}
+		}
+		finish(s);
+		return copyTo(s, dest, offset);
+	}
+
+	private static int copyTo(State s, byte[] dest, int offset){
+		int len = Base64.getUrlEncoder().encode(s.hash, s.base64);
+		System.arraycopy(s.base64, 0, dest, offset, len);
+		return len;
+	}
+
+	private State calculate(CharSequence[] segments){
+		State s = state.get();
+		if( composite ){
+			// salt and first argument are encoded together
+			MessageDigest digest = ((DigestState)s).digest;
+			digest.reset();
+			digest.update((salt + String.join("/", segments)).getBytes(StandardCharsets.UTF_8));
+		}else{
+			s.start();
+			int pos = 0;
+			for( int i=0; i<segments.length; i++ ){
+				if( i != 0 ){
+					if( pos == BUFFER_SIZE ){
+						s.update(s.buffer, 0, pos);
+						pos = 0;
+					}
+					s.buffer[pos++] = SEPARATOR;
+				}
+				CharSequence segment = segments[i];
+				pos = encode(segment == null ? "null" : segment, s, pos);
+			}
+			s.update(s.buffer, 0, pos);
+		}
+		finish(s);
+		return s;
+	}
+
+	private static void finish(State s){
+		try {
+			s.finish();
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Unable to calculate pseudonym", e);
+		}
+	}
+
+	/**
+	 * Encode characters with UTF-8 into the buffer of the state.
+	 * Full buffers are passed to the hash function.
+	 * @param str characters
+	 * @param s state with buffer and hash function
+	 * @param pos current position in the buffer
+	 * @return new position in the buffer
+	 */
+	private static int encode(CharSequence str, State s, int pos){
+		byte[] buffer = s.buffer;
+		int len = str.length();
+		for( int i=0; i<len; i++ ){
+			if( pos > BUFFER_SIZE - 4 ){
+				s.update(buffer, 0, pos);
+				pos = 0;
+			}
+			char c = str.charAt(i);
+			if( c < 0x80 ){
+				buffer[pos++] = (byte)c;
+			}else if( c < 0x800 ){
+				buffer[pos++] = (byte)(0xC0 | (c >> 6));
+				buffer[pos++] = (byte)(0x80 | (c & 0x3F));
+			}else if( Character.isSurrogate(c) ){
+				if( Character.isHighSurrogate(c) && i+1 < len && Character.isLowSurrogate(str.charAt(i+1)) ){
+					int cp = Character.toCodePoint(c, str.charAt(++i));
+					buffer[pos++] = (byte)(0xF0 | (cp >> 18));
+					buffer[pos++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+					buffer[pos++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+					buffer[pos++] = (byte)(0x80 | (cp & 0x3F));
+				}else{
+					buffer[pos++] = REPLACEMENT;
+				}
+			}else{
+				buffer[pos++] = (byte)(0xE0 | (c >> 12));
+				buffer[pos++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+				buffer[pos++] = (byte)(0x80 | (c & 0x3F));
+			}
+		}
+		return pos;
+	}
+}
@@ -9,6 +9,8 @@ import java.util.logging.Logger;
 import javax.activation.DataHandler;
 import javax.activation.DataSource;
 import javax.annotation.PostConstruct;
+import javax.enterprise.event.Observes;
+import javax.enterprise.event.Reception;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import javax.mail.Address;
@@ -17,8 +19,6 @@ import javax.mail.MessagingException;
 import javax.mail.PasswordAuthentication;
 import javax.mail.Session;
 import javax.mail.Transport;
-import javax.mail.internet.AddressException;
-import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
@@ -29,9 +29,12 @@ import javax.naming.NamingException;
 import org.aktin.Preferences;
 import org.aktin.dwh.EmailService;
 import org.aktin.dwh.PreferenceKey;
+import org.aktin.dwh.prefs.impl.PreferenceType;
+import org.aktin.dwh.prefs.impl.PreferencesChangedEvent;
 
 /**
  * Implementation of {@link EmailService} which sends emails via the wildfly JNDI email session. 
+ * The session, addresses and locale are rebuilt when the corresponding preferences change.
  * @author R.W.Majeed
  *
  */
@@ -42,15 +45,41 @@ public class EmailServiceImpl implements EmailService {
 	@Inject
 	private Preferences prefs;
 
-	private Address[] emailRecipients;
-	private Address[] replyTo;
-
-	private Session mailSession;
+	/**
+	 * Configuration derived from the preferences. Replaced as a
+	 * whole, so that a message is never created with a mix of
+	 * old and new settings.
+	 */
+	private static class MailConfig{
+		Address[] emailRecipients;
+		Address[] replyTo;
+		Session mailSession;
+		Locale locale;
+	}
 
-	private Locale locale;
+	private volatile MailConfig config;
 
 	@PostConstruct
 	public void initialize(){
+		config = loadConfig();
+	}
+
+	/**
+	 * Rebuild the configuration if preferences used by this service were changed.
+	 * @param event change event
+	 */
+	void preferencesChanged(@Observes(notifyObserver=Reception.IF_EXISTS) PreferencesChangedEvent event){
+		if( event.affects("mail.")
+				|| event.affects(PreferenceKey.emailSession)
+				|| event.affects(PreferenceKey.email)
+				|| event.affects(PreferenceKey.languageTag) ){
+			log.info("Email preferences changed, reloading configuration");
+			config = loadConfig();
+		}
+	}
+
+	private MailConfig loadConfig(){
+		MailConfig config = new MailConfig();
 		// load mail session
 		String jndiName = prefs.get(PreferenceKey.emailSession);
 		if( jndiName != null && jndiName.contentEquals("local")==false ) {
@@ -58,7 +87,7 @@ public class EmailServiceImpl implements EmailService {
 			log.info("Mail session via JNDI: "+jndiName);
 			try {
 				InitialContext ctx = new InitialContext();
-				mailSession = (Session)ctx.lookup(jndiName);
+				config.mailSession = (Session)ctx.lookup(jndiName);
 			} catch (NamingException e) {
 				throw new IllegalStateException("Unable to load email session", e);
 			}
@@ -70,7 +99,7 @@ public class EmailServiceImpl implements EmailService {
 			// this will also include mail.smtps.* properties
 			prefs.forPrefix("mail.", props::setProperty);
 			
-			mailSession = Session.getInstance(props, new Authenticator() {
+			config.mailSession = Session.getInstance(props, new Authenticator() {
 				@Override
 				protected PasswordAuthentication getPasswordAuthentication() {
 					return new PasswordAuthentication(prefs.get("mail.user"), prefs.get("mail.x.password"));
@@ -81,25 +110,28 @@ public class EmailServiceImpl implements EmailService {
 
 		// default recipients
 		try {
-			emailRecipients = InternetAddress.parse(prefs.get(PreferenceKey.email));
+			config.emailRecipients = PreferenceType.INTERNET_ADDRESSES.get(prefs, PreferenceKey.email.key());
 			// reply to address
-			replyTo = InternetAddress.parse(prefs.get("mail.x.replyto"));
-		} catch (AddressException e) {
+			config.replyTo = PreferenceType.INTERNET_ADDRESSES.get(prefs, "mail.x.replyto");
+		} catch (IllegalArgumentException e) {
 			throw new IllegalStateException("Error parsing email addresses from preferences", e);
 		}
+		if( config.emailRecipients == null ){
+			throw new IllegalStateException("Email recipients undefined: "+PreferenceKey.email.key());
+		}
 		// determine language
 		String langTag = prefs.get(PreferenceKey.languageTag);
 		if( langTag == null ){
 			langTag = "de-DE"; // default to German
 		}
-		locale = Locale.forLanguageTag(langTag);
-		log.info("Using locale "+locale);
-
+		config.locale = Locale.forLanguageTag(langTag);
+		log.info("Using locale "+config.locale);
+		return config;
 	}
 
 	@Override
 	public Locale getLocale() {
-		return locale;
+		return config.locale;
 	}
 
 	@Override
@@ -145,7 +177,7 @@ public class EmailServiceImpl implements EmailService {
 	 * @throws MessagingException error sending the email
 	 */
 	private void transportSend(MimeMessage msg) throws MessagingException {
-		if( emailRecipients.length == 0 ) {
+		if( msg.getAllRecipients() == null ) {
 			// email sending disabled
 			log.info("Email sending disabled (no recipient). Message dropped: "+msg.getSubject());
 			return;
@@ -154,14 +186,14 @@ public class EmailServiceImpl implements EmailService {
 		Transport.send(msg);
 	}
 	private MimeMessage createMessage(String subject) throws MessagingException{
-		return createMessage(subject, this.emailRecipients);
+		return createMessage(subject, config);
 	}
 	
-	private MimeMessage createMessage(String subject, Address[] recipients) throws MessagingException{
-		MimeMessage msg = new MimeMessage(mailSession);
+	private MimeMessage createMessage(String subject, MailConfig config) throws MessagingException{
+		MimeMessage msg = new MimeMessage(config.mailSession);
 		msg.setFrom();
-		msg.setRecipients(RecipientType.TO, recipients);
-		msg.setReplyTo(replyTo);
+		msg.setRecipients(RecipientType.TO, config.emailRecipients);
+		msg.setReplyTo(config.replyTo);
 		msg.setSubject(subject, "UTF-8");
 		msg.setSentDate(new Date());
 		return msg;
@@ -0,0 +1,380 @@
+package org.aktin.dwh.prefs.impl;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+import javax.enterprise.inject.Alternative;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+
+/**
+ * Preferences stored in a database table, layered over the
+ * values from {@link PropertyFilePreferences}. Values in the
+ * database take precedence over the properties file.
+ * <p>
+ * All rows are loaded into memory at startup, so that {@link #get(String)}
+ * never accesses the database. The table is polled periodically
+ * for rows with a version greater than the last known version.
+ * Values changed via {@link #put(String, String)} are visible
+ * immediately and written to the database in a single batch
+ * during the next refresh.
+ * </p>
+ * <p>
+ * Several application servers may share the table. Writers lock the
+ * reserved row {@value #VERSION_ROW} before determining the next
+ * version, so that versions are committed in increasing order and
+ * no server misses a row written by another. This requires the
+ * isolation level {@code READ COMMITTED} (the default of most
+ * databases).
+ * </p>
+ * <p>
+ * Expected table (a {@code NULL} value removes the override):
+ * </p>
+ * <pre>
+ * CREATE TABLE aktin_preferences(
+ *   pref_key VARCHAR(255) NOT NULL PRIMARY KEY,
+ *   pref_value VARCHAR(4000),
+ *   version BIGINT NOT NULL
+ * )
+ * </pre>
+ * <p>
+ * This bean is an alternative and must be enabled in the
+ * {@code beans.xml} of the application to replace the
+ * file based preferences. It then publishes the change events
+ * instead of the file based preferences.
+ * </p>
+ */
+@Alternative
+@Singleton
+public class JdbcPreferences extends SnapshotPreferences {
+	private static final Logger log = Logger.getLogger(JdbcPreferences.class.getName());
+	/** preference with the JNDI name of the data source */
+	public static final String DATASOURCE_KEY = "db.datasource";
+	/** preference with the interval between refreshes, default {@code PT30S} */
+	public static final String INTERVAL_KEY = "preferences.jdbc.interval";
+
+	/** key of the row which serializes writers */
+	static final String VERSION_ROW = "@version";
+
+	private static final String SELECT_ALL = "SELECT pref_key, pref_value, version FROM aktin_preferences";
+	private static final String SELECT_CHANGED = SELECT_ALL+" WHERE version > ? AND pref_key <> ?";
+	private static final String LOCK_VERSION = "UPDATE aktin_preferences SET version=version WHERE pref_key=?";
+	private static final String COUNT_KEY = "SELECT COUNT(*) FROM aktin_preferences WHERE pref_key=?";
+	private static final String SELECT_VERSION = "SELECT COALESCE(MAX(version),0) FROM aktin_preferences";
+	private static final String UPDATE = "UPDATE aktin_preferences SET pref_value=?, version=? WHERE pref_key=?";
+	private static final String INSERT = "INSERT INTO aktin_preferences(pref_key, pref_value, version) VALUES(?,?,?)";
+
+	@Inject
+	private PropertyFilePreferences file;
+	private DataSource ds;
+
+	/** values loaded from the database, only accessed during refresh */
+	private Map<String,String> stored;
+	/** highest version loaded from the database, -1 before the first load */
+	private long version;
+	/** whether the {@link #VERSION_ROW} is known to exist */
+	private boolean versionRow;
+	/** values changed locally which are not yet written to the database */
+	private final ConcurrentHashMap<String,String> pending;
+
+	/** file snapshot used for the current values */
+	private PreferenceSnapshot base;
+	private final Consumer<PreferencesChangedEvent> fileListener = this::fileChanged;
+
+	@Resource
+	private ManagedScheduledExecutorService scheduler;
+	/** background refresh, {@code null} if not scheduled */
+	private ScheduledFuture<?> refreshTask;
+
+	/**
+	 * Constructor for CDI. The data source is retrieved
+	 * via JNDI during {@link #initialize()}.
+	 */
+	protected JdbcPreferences(){
+		this.stored = Collections.emptyMap();
+		this.version = -1;
+		this.pending = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Create database preferences and load all values. No background
+	 * refresh is performed, call {@link #refresh()} to update the values.
+	 * @param file file based preferences used as defaults
+	 * @param ds data source
+	 * @throws SQLException error loading the values
+	 */
+	public JdbcPreferences(PropertyFilePreferences file, DataSource ds) throws SQLException{
+		this();
+		this.file = file;
+		this.ds = ds;
+		refresh();
+		file.addChangeListener(fileListener);
+		file.setPublishEvents(false);
+	}
+
+	/**
+	 * Load the preferences from the data source configured
+	 * via {@value #DATASOURCE_KEY} and start the background refresh.
+	 * @throws IllegalStateException if the data source is not configured or not found
+	 */
+	@PostConstruct
+	public void initialize(){
+		String jndiName = file.get(DATASOURCE_KEY);
+		if( jndiName == null || jndiName.trim().isEmpty() ){
+			throw new IllegalStateException("Preference "+DATASOURCE_KEY+" with the JNDI name of the data source is required for database preferences");
+		}
+		try {
+			ds = (DataSource)new InitialContext().lookup(jndiName);
+		} catch (NamingException e) {
+			throw new IllegalStateException("Unable to find data source "+jndiName, e);
+		}
+		try{
+			refresh();
+		}catch( SQLException e ){
+			throw new IllegalStateException("Unable to load preferences from database", e);
+		}
+		file.addChangeListener(fileListener);
+		// observers are notified by this instance, which includes the file changes
+		file.setPublishEvents(false);
+		if( Boolean.parseBoolean(file.get(METRICS_KEY)) ){
+			enableAccessStatistics();
+		}
+		Duration interval = PreferenceType.DURATION.get(file, INTERVAL_KEY);
+		if( interval == null ){
+			interval = Duration.ofSeconds(30);
+		}
+		refreshTask = scheduler.scheduleWithFixedDelay(this::refreshQuietly, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Publish changes of the underlying properties file immediately,
+	 * without waiting for the next refresh.
+	 * @param event change event of the properties file
+	 */
+	private synchronized void fileChanged(PreferencesChangedEvent event){
+		publish();
+	}
+
+	/**
+	 * Combine file, database and pending values into a new snapshot.
+	 * The snapshot is recomputed if a concurrent put publishes first,
+	 * so that its value is never lost.
+	 */
+	private void publish(){
+		PreferenceSnapshot b = file.getSnapshot();
+		update( s -> b.withAll(stored).withAll(pending) );
+		base = b;
+	}
+
+	private void refreshQuietly(){
+		try{
+			refresh();
+		}catch( SQLException e ){
+			log.log(Level.WARNING, "Unable to refresh preferences from database", e);
+		}
+	}
+
+	/**
+	 * Write pending changes and load rows which were changed in the
+	 * database since the last refresh. Also picks up changes of the
+	 * underlying properties file.
+	 * @throws SQLException database error, the previous values remain active
+	 */
+	public synchronized void refresh() throws SQLException{
+		boolean changed = false;
+		try( Connection dbc = ds.getConnection() ){
+			flush(dbc);
+			long current = queryVersion(dbc);
+			if( current > version ){
+				Map<String,String> map = new HashMap<>(stored);
+				try( PreparedStatement ps = dbc.prepareStatement(SELECT_CHANGED) ){
+					ps.setLong(1, version);
+					ps.setString(2, VERSION_ROW);
+					try( ResultSet rs = ps.executeQuery() ){
+						while( rs.next() ){
+							String value = rs.getString(2);
+							if( value == null ){
+								map.remove(rs.getString(1));
+							}else{
+								map.put(rs.getString(1), value);
+							}
+						}
+					}
+				}
+				stored = Collections.unmodifiableMap(map);
+				version = current;
+				changed = true;
+			}
+		}
+		if( changed || base != file.getSnapshot() ){
+			publish();
+		}
+	}
+
+	private static long queryVersion(Connection dbc) throws SQLException{
+		try( Statement st = dbc.createStatement();
+				ResultSet rs = st.executeQuery(SELECT_VERSION) ){
+			rs.next();
+			return rs.getLong(1);
+		}
+	}
+
+	/**
+	 * Create the {@link #VERSION_ROW} if it does not exist.
+	 * @param dbc database connection in auto commit mode
+	 * @throws SQLException database error
+	 */
+	private void createVersionRow(Connection dbc) throws SQLException{
+		if( versionRow ){
+			return;
+		}
+		if( countKey(dbc, VERSION_ROW) == 0 ){
+			try( PreparedStatement ps = dbc.prepareStatement(INSERT) ){
+				ps.setString(1, VERSION_ROW);
+				ps.setNull(2, Types.VARCHAR);
+				ps.setLong(3, 0);
+				ps.executeUpdate();
+			}catch( SQLException e ){
+				// fails on the primary key if created concurrently by another server
+				if( countKey(dbc, VERSION_ROW) == 0 ){
+					throw e;
+				}
+			}
+		}
+		versionRow = true;
+	}
+
+	private static int countKey(Connection dbc, String key) throws SQLException{
+		try( PreparedStatement ps = dbc.prepareStatement(COUNT_KEY) ){
+			ps.setString(1, key);
+			try( ResultSet rs = ps.executeQuery() ){
+				rs.next();
+				return rs.getInt(1);
+			}
+		}
+	}
+
+	/**
+	 * Lock the {@link #VERSION_ROW} until the end of the transaction
+	 * and determine the next version. Other writers wait for the lock,
+	 * so they see the version committed by this transaction.
+	 * @param dbc database connection within a transaction
+	 * @return next version
+	 * @throws SQLException database error
+	 */
+	private long lockNextVersion(Connection dbc) throws SQLException{
+		try( PreparedStatement ps = dbc.prepareStatement(LOCK_VERSION) ){
+			ps.setString(1, VERSION_ROW);
+			if( ps.executeUpdate() == 0 ){
+				versionRow = false;
+				throw new SQLException("Row "+VERSION_ROW+" missing in preference table");
+			}
+		}
+		return queryVersion(dbc) + 1;
+	}
+
+	/**
+	 * Write all pending changes in a single transaction. Entries are
+	 * removed from {@link #pending} only after a successful commit and
+	 * only if they were not changed again meanwhile.
+	 * @param dbc database connection
+	 * @throws SQLException database error
+	 */
+	private void flush(Connection dbc) throws SQLException{
+		if( pending.isEmpty() ){
+			return;
+		}
+		Map<String,String> batch = new HashMap<>(pending);
+		List<String> keys = new ArrayList<>(batch.keySet());
+		createVersionRow(dbc);
+		boolean autoCommit = dbc.getAutoCommit();
+		dbc.setAutoCommit(false);
+		try{
+			long next = lockNextVersion(dbc);
+			int[] updated;
+			try( PreparedStatement ps = dbc.prepareStatement(UPDATE) ){
+				for( String key : keys ){
+					ps.setString(1, batch.get(key));
+					ps.setLong(2, next);
+					ps.setString(3, key);
+					ps.addBatch();
+				}
+				updated = ps.executeBatch();
+			}
+			try( PreparedStatement ps = dbc.prepareStatement(INSERT) ){
+				int inserts = 0;
+				for( int i=0; i<keys.size(); i++ ){
+					if( updated[i] == 0 ){
+						ps.setString(1, keys.get(i));
+						ps.setString(2, batch.get(keys.get(i)));
+						ps.setLong(3, next);
+						ps.addBatch();
+						inserts ++;
+					}
+				}
+				if( inserts > 0 ){
+					ps.executeBatch();
+				}
+			}
+			dbc.commit();
+		}catch( SQLException e ){
+			dbc.rollback();
+			throw e;
+		}finally{
+			dbc.setAutoCommit(autoCommit);
+		}
+		batch.forEach(pending::remove);
+		log.info("Wrote "+batch.size()+" preferences to database");
+	}
+
+	/**
+	 * Change a preference value. The value is visible immediately
+	 * and written to the database during the next {@link #refresh()}.
+	 * @param key preference key
+	 * @param value value, not {@code null}
+	 */
+	public void put(String key, String value){
+		Objects.requireNonNull(value);
+		pending.put(key, value);
+		update( s -> s.with(key, value) );
+	}
+
+	/**
+	 * Stop the background refresh and write pending changes.
+	 */
+	@PreDestroy
+	public void close(){
+		file.removeChangeListener(fileListener);
+		file.setPublishEvents(true);
+		disableAccessStatistics();
+		if( refreshTask != null ){
+			refreshTask.cancel(false);
+			refreshTask = null;
+		}
+		refreshQuietly();
+	}
+}
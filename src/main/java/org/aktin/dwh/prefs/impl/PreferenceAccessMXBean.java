@@ -0,0 +1,36 @@
+package org.aktin.dwh.prefs.impl;
+
+import java.util.Map;
+
+/**
+ * Management interface for preference access statistics.
+ * Registered with the platform MBean server if access
+ * statistics are enabled via {@value SnapshotPreferences#METRICS_KEY}.
+ */
+public interface PreferenceAccessMXBean {
+
+	/**
+	 * @return number of lookups per key with a value, for a limited number of keys
+	 */
+	Map<String, Long> getReadCounts();
+
+	/**
+	 * @return number of {@code forPrefix} and scope queries per prefix, for a limited number of prefixes
+	 */
+	Map<String, Long> getPrefixQueryCounts();
+
+	/**
+	 * @return total number of lookups, including lookups of missing keys
+	 */
+	long getTotalReads();
+
+	/**
+	 * @return number of lookups for keys without value
+	 */
+	long getMissingLookups();
+
+	/**
+	 * Reset all counters to zero.
+	 */
+	void reset();
+}
@@ -0,0 +1,112 @@
+package org.aktin.dwh.prefs.impl;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts preference lookups per key. The counters are striped
+ * via {@link LongAdder}, so that concurrent lookups of the same
+ * key do not contend on a single memory location.
+ * <p>
+ * Lookups are counted per key only for keys with a value, and for at
+ * most {@value #MAX_KEYS} keys and prefixes. Other lookups are counted
+ * only in the totals, so that arbitrary keys cannot inflate the maps.
+ * </p>
+ */
+class PreferenceAccessStatistics implements PreferenceAccessMXBean {
+	/** maximum number of keys and prefixes counted individually */
+	static final int MAX_KEYS = 1000;
+
+	private final ConcurrentHashMap<String, LongAdder> reads;
+	private final ConcurrentHashMap<String, LongAdder> prefixQueries;
+	private final LongAdder total;
+	private final LongAdder missing;
+
+	PreferenceAccessStatistics(){
+		reads = new ConcurrentHashMap<>();
+		prefixQueries = new ConcurrentHashMap<>();
+		total = new LongAdder();
+		missing = new LongAdder();
+	}
+
+	private static void increment(ConcurrentHashMap<String, LongAdder> map, String key){
+		LongAdder a = map.get(key);
+		if( a == null ){
+			if( map.size() >= MAX_KEYS ){
+				// concurrent inserts may exceed the limit by the number of threads
+				return;
+			}
+			a = map.computeIfAbsent(key, k -> new LongAdder());
+		}
+		a.increment();
+	}
+
+	/**
+	 * Record a lookup
+	 * @param key preference key
+	 * @param value value found, or {@code null}
+	 */
+	void recordGet(String key, String value){
+		total.increment();
+		if( value == null ){
+			missing.increment();
+		}else{
+			increment(reads, key);
+		}
+	}
+
+	/**
+	 * Record a lookup within a scope
+	 * @param prefix prefix of the scope, including the trailing dot
+	 * @param key preference key relative to the scope
+	 * @param value value found, or {@code null}
+	 */
+	void recordGet(String prefix, String key, String value){
+		total.increment();
+		if( value == null ){
+			missing.increment();
+		}else{
+			increment(reads, prefix.concat(key));
+		}
+	}
+
+	void recordPrefix(String prefix){
+		increment(prefixQueries, prefix);
+	}
+
+	private static Map<String, Long> toMap(ConcurrentHashMap<String, LongAdder> map){
+		Map<String, Long> result = new TreeMap<>();
+		map.forEach( (k,v) -> result.put(k, v.sum()) );
+		return result;
+	}
+
+	@Override
+	public Map<String, Long> getReadCounts() {
+		return toMap(reads);
+	}
+
+	@Override
+	public Map<String, Long> getPrefixQueryCounts() {
+		return toMap(prefixQueries);
+	}
+
+	@Override
+	public long getTotalReads() {
+		return total.sum();
+	}
+
+	@Override
+	public long getMissingLookups() {
+		return missing.sum();
+	}
+
+	@Override
+	public void reset() {
+		reads.clear();
+		prefixQueries.clear();
+		total.reset();
+		missing.reset();
+	}
+}
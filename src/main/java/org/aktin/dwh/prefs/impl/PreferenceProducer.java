@@ -1,22 +1,84 @@
 package org.aktin.dwh.prefs.impl;
 
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+
 import javax.enterprise.inject.Produces;
 import javax.enterprise.inject.spi.InjectionPoint;
 import javax.inject.Inject;
+import javax.mail.internet.InternetAddress;
 
 import org.aktin.Preference;
 import org.aktin.Preferences;
 import org.aktin.dwh.PreferenceKey;
 
+/**
+ * Produces preference values for injection points annotated with
+ * {@link Preference}. Besides strings, typed values are supported
+ * for the types defined in {@link PreferenceType}. Typed values
+ * are parsed once per preference snapshot. Invalid values are
+ * reported during deployment by {@link PreferenceValidationExtension}.
+ */
 public class PreferenceProducer {
 
 	@Inject
 	private Preferences prefs;
 
+	private static PreferenceKey getKey(InjectionPoint p){
+		return p.getAnnotated().getAnnotation(Preference.class).key();
+	}
+
+	private <T> T getTyped(InjectionPoint p, PreferenceType<T> type){
+		return type.get(prefs, getKey(p).key());
+	}
+
 	@Produces
 	@Preference(key=PreferenceKey.commonName)
 	public String getPreferenceString(InjectionPoint p){
-		PreferenceKey key = p.getAnnotated().getAnnotation(Preference.class).key();
+		PreferenceKey key = getKey(p);
 		return prefs.get(key.key());
 	}
+
+	@Produces
+	@Preference(key=PreferenceKey.commonName)
+	public Integer getPreferenceInteger(InjectionPoint p){
+		return getTyped(p, PreferenceType.INTEGER);
+	}
+
+	@Produces
+	@Preference(key=PreferenceKey.commonName)
+	public Long getPreferenceLong(InjectionPoint p){
+		return getTyped(p, PreferenceType.LONG);
+	}
+
+	@Produces
+	@Preference(key=PreferenceKey.commonName)
+	public Duration getPreferenceDuration(InjectionPoint p){
+		return getTyped(p, PreferenceType.DURATION);
+	}
+
+	@Produces
+	@Preference(key=PreferenceKey.commonName)
+	public Boolean getPreferenceBoolean(InjectionPoint p){
+		return getTyped(p, PreferenceType.BOOLEAN);
+	}
+
+	@Produces
+	@Preference(key=PreferenceKey.commonName)
+	public List<String> getPreferenceList(InjectionPoint p){
+		return getTyped(p, PreferenceType.STRING_LIST);
+	}
+
+	@Produces
+	@Preference(key=PreferenceKey.commonName)
+	public Locale getPreferenceLocale(InjectionPoint p){
+		return getTyped(p, PreferenceType.LOCALE);
+	}
+
+	@Produces
+	@Preference(key=PreferenceKey.commonName)
+	public InternetAddress[] getPreferenceAddresses(InjectionPoint p){
+		return getTyped(p, PreferenceType.INTERNET_ADDRESSES);
+	}
 }
@@ -0,0 +1,440 @@
+package org.aktin.dwh.prefs.impl;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import org.aktin.dwh.PreferenceKey;
+
+/**
+ * Immutable set of preference values. Instances are never
+ * modified after construction and can therefore be read
+ * by any number of threads without synchronization.
+ * Changes are made by creating a new snapshot and publishing
+ * it in place of the old one.
+ * <p>
+ * Keys and values are kept in two sorted arrays, so that
+ * prefix queries only visit the matching entries. Exact lookups
+ * use a compact open addressing table of array positions. Keys
+ * are interned and equal values share a single instance, which
+ * keeps the footprint small for large preference sets. Values for
+ * the well known {@link PreferenceKey}s are resolved once during
+ * construction. Typed values are parsed on first access and
+ * cached for the lifetime of the snapshot, as are the
+ * {@link ScopedPreferences} created from it.
+ * </p>
+ */
+final class PreferenceSnapshot {
+	/** marker for cached values which are not set */
+	private static final Object MISSING = new Object();
+
+	/** sorted and interned keys */
+	private final String[] keys;
+	/** values in the same order as {@link #keys}, equal values share one instance */
+	private final String[] sortedValues;
+	/**
+	 * Open addressing hash table with linear probing. Contains
+	 * the position in {@link #keys} plus one, zero marks empty slots.
+	 * Its length is a power of two and at least twice the number of keys.
+	 */
+	private final int[] index;
+	private final Set<String> keySet;
+	private final EnumMap<PreferenceKey, String> known;
+	/** parsed values, indexed by {@link PreferenceType#index()} */
+	private final List<ConcurrentHashMap<String, Object>> parsed;
+	/** scopes by prefix */
+	private final ConcurrentHashMap<String, ScopedPreferences> scopes;
+
+	/**
+	 * Create a snapshot.
+	 * @param keys sorted keys without duplicates
+	 * @param values values for the keys
+	 * @param index hash table for the keys, or {@code null} for new keys.
+	 *  Keys with an existing hash table are already interned.
+	 */
+	private PreferenceSnapshot(String[] keys, String[] values, int[] index){
+		this.keys = keys;
+		this.sortedValues = values;
+		if( index == null ){
+			for( int i=0; i<keys.length; i++ ){
+				keys[i] = keys[i].intern();
+			}
+			index = buildIndex(keys);
+		}
+		// share equal values
+		Map<String,String> pool = new HashMap<>();
+		for( int i=0; i<values.length; i++ ){
+			String v = pool.putIfAbsent(values[i], values[i]);
+			if( v != null ){
+				values[i] = v;
+			}
+		}
+		this.index = index;
+		this.keySet = new KeySet();
+		this.known = new EnumMap<>(PreferenceKey.class);
+		for( PreferenceKey key : PreferenceKey.values() ){
+			String value = get(key.key());
+			if( value != null ){
+				known.put(key, value);
+			}
+		}
+		List<ConcurrentHashMap<String, Object>> caches = new ArrayList<>(PreferenceType.count());
+		for( int i=0; i<PreferenceType.count(); i++ ){
+			caches.add(new ConcurrentHashMap<>());
+		}
+		this.parsed = caches;
+		this.scopes = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Create a snapshot with the given values.
+	 * @param values values
+	 * @return snapshot
+	 */
+	static PreferenceSnapshot of(Map<String,String> values){
+		String[] keys = values.keySet().toArray(new String[values.size()]);
+		Arrays.sort(keys);
+		String[] sorted = new String[keys.length];
+		for( int i=0; i<keys.length; i++ ){
+			sorted[i] = values.get(keys[i]);
+		}
+		return new PreferenceSnapshot(keys, sorted, null);
+	}
+
+	/**
+	 * Parse a properties file into a new snapshot.
+	 * @param properties reader for the properties file
+	 * @return snapshot
+	 * @throws IOException error reading or parsing the properties
+	 */
+	static PreferenceSnapshot load(Reader properties) throws IOException{
+		Properties props = new Properties();
+		props.load(properties);
+		Map<String,String> map = new HashMap<>(props.size()*2);
+		for( String key : props.stringPropertyNames() ){
+			map.put(key, props.getProperty(key));
+		}
+		return of(map);
+	}
+
+	private static int hash(String key){
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	private static int[] buildIndex(String[] keys){
+		int capacity = 2;
+		while( capacity < keys.length * 2 ){
+			capacity <<= 1;
+		}
+		int[] table = new int[capacity];
+		int mask = capacity - 1;
+		for( int i=0; i<keys.length; i++ ){
+			int h = hash(keys[i]) & mask;
+			while( table[h] != 0 ){
+				h = (h + 1) & mask;
+			}
+			table[h] = i + 1;
+		}
+		return table;
+	}
+
+	/**
+	 * Find the position of a key.
+	 * @param key key
+	 * @return position in {@link #keys} or {@code -1} if not found
+	 */
+	private int indexOf(String key){
+		int mask = index.length - 1;
+		for( int h = hash(key) & mask; ; h = (h + 1) & mask ){
+			int i = index[h] - 1;
+			if( i < 0 ){
+				return -1;
+			}
+			String k = keys[i];
+			if( k == key || k.equals(key) ){
+				return i;
+			}
+		}
+	}
+
+	String get(String key){
+		int i = indexOf(key);
+		if( i < 0 ){
+			return null;
+		}
+		return sortedValues[i];
+	}
+
+	String get(PreferenceKey key){
+		return known.get(key);
+	}
+
+	/**
+	 * Get a typed value. The value is parsed on first access, later
+	 * calls return the cached result. Parse errors are cached as well.
+	 * @param key preference key
+	 * @param type value type
+	 * @return parsed value or {@code null} if the preference is not set
+	 * @throws IllegalArgumentException if the value cannot be parsed
+	 */
+	<T> T get(String key, PreferenceType<T> type) throws IllegalArgumentException{
+		ConcurrentHashMap<String, Object> cache = parsed.get(type.index());
+		Object value = cache.get(key);
+		if( value == null ){
+			value = cache.computeIfAbsent(key, k -> parse(k, type));
+		}
+		if( value == MISSING ){
+			return null;
+		}else if( value instanceof IllegalArgumentException ){
+			IllegalArgumentException e = (IllegalArgumentException)value;
+			throw new IllegalArgumentException(e.getMessage(), e.getCause());
+		}
+		@SuppressWarnings("unchecked")
+		T t = (T)value;
+		return type.copyOf(t);
+	}
+
+	private Object parse(String key, PreferenceType<?> type){
+		try{
+			Object value = type.parse(key, get(key));
+			if( value == null ){
+				return MISSING;
+			}
+			return value;
+		}catch( IllegalArgumentException e ){
+			return e;
+		}
+	}
+
+	boolean containsKey(String key){
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * @return immutable view of the keys, in ascending order
+	 */
+	Set<String> keySet(){
+		return keySet;
+	}
+
+	/**
+	 * Find the first index of a key which is greater or
+	 * equal to the given prefix.
+	 * @param prefix prefix
+	 * @return index in {@link #keys}, may be {@code keys.length}
+	 */
+	private int lowerBound(String prefix){
+		int i = Arrays.binarySearch(keys, prefix);
+		if( i < 0 ){
+			// not found, use insertion point
+			i = -(i + 1);
+		}
+		return i;
+	}
+
+	/**
+	 * Call the action for every key starting with the given prefix,
+	 * in ascending key order.
+	 * @param prefix key prefix
+	 * @param action action to receive key and value
+	 * @return number of matching keys
+	 */
+	int forPrefix(String prefix, BiConsumer<String, String> action){
+		int count = 0;
+		for( int i=lowerBound(prefix); i<keys.length && keys[i].startsWith(prefix); i++ ){
+			action.accept(keys[i], sortedValues[i]);
+			count ++;
+		}
+		return count;
+	}
+
+	/**
+	 * Get the scope for a prefix. The scope is created on first
+	 * access and shared by all later calls for this snapshot.
+	 * @param parent prefix of this snapshot, empty for the top level
+	 * @param prefix prefix relative to this snapshot, including the trailing dot
+	 * @return scope
+	 */
+	ScopedPreferences scope(String parent, String prefix){
+		ScopedPreferences scope = scopes.get(prefix);
+		if( scope == null ){
+			scope = scopes.computeIfAbsent(prefix, p -> new ScopedPreferences(parent+p, slice(p)));
+		}
+		return scope;
+	}
+
+	/**
+	 * Create a snapshot with all values for keys starting with
+	 * the given prefix. The prefix is removed from the keys.
+	 * @param prefix prefix
+	 * @return snapshot
+	 */
+	private PreferenceSnapshot slice(String prefix){
+		int from = lowerBound(prefix);
+		int to = from;
+		while( to < keys.length && keys[to].startsWith(prefix) ){
+			to ++;
+		}
+		// removing a common prefix retains the order
+		String[] k = new String[to - from];
+		for( int i=0; i<k.length; i++ ){
+			k[i] = keys[from + i].substring(prefix.length());
+		}
+		return new PreferenceSnapshot(k, Arrays.copyOfRange(sortedValues, from, to), null);
+	}
+
+	/**
+	 * Determine the distinct first segments of all keys which
+	 * contain a dot.
+	 * @return sorted segments
+	 */
+	NavigableSet<String> childNames(){
+		NavigableSet<String> names = new TreeSet<>();
+		for( String key : keys ){
+			int dot = key.indexOf('.');
+			if( dot > 0 ){
+				names.add(key.substring(0, dot));
+			}
+		}
+		return Collections.unmodifiableNavigableSet(names);
+	}
+
+	/**
+	 * Determine the keys with different values in another snapshot.
+	 * @param other other snapshot
+	 * @return keys which were added, removed or changed
+	 */
+	NavigableSet<String> changedKeys(PreferenceSnapshot other){
+		NavigableSet<String> changed = new TreeSet<>();
+		int i = 0, j = 0;
+		// merge both sorted key arrays
+		while( i < keys.length || j < other.keys.length ){
+			int c;
+			if( i == keys.length ){
+				c = 1;
+			}else if( j == other.keys.length ){
+				c = -1;
+			}else{
+				c = keys[i].compareTo(other.keys[j]);
+			}
+			if( c < 0 ){
+				changed.add(keys[i++]);
+			}else if( c > 0 ){
+				changed.add(other.keys[j++]);
+			}else{
+				if( !Objects.equals(sortedValues[i], other.sortedValues[j]) ){
+					changed.add(keys[i]);
+				}
+				i++;
+				j++;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Create a copy of this snapshot with a single value changed.
+	 * @param key preference key
+	 * @param value new value
+	 * @return new snapshot, this snapshot is not modified. If the value
+	 *  is already present, this snapshot is returned.
+	 */
+	PreferenceSnapshot with(String key, String value){
+		Objects.requireNonNull(value);
+		int i = indexOf(key);
+		if( i >= 0 ){
+			if( value.equals(sortedValues[i]) ){
+				return this;
+			}
+			// same keys, the index can be shared
+			String[] v = sortedValues.clone();
+			v[i] = value;
+			return new PreferenceSnapshot(keys, v, index);
+		}
+		int pos = -(Arrays.binarySearch(keys, key) + 1);
+		String[] k = new String[keys.length + 1];
+		String[] v = new String[k.length];
+		System.arraycopy(keys, 0, k, 0, pos);
+		System.arraycopy(sortedValues, 0, v, 0, pos);
+		k[pos] = key;
+		v[pos] = value;
+		System.arraycopy(keys, pos, k, pos + 1, keys.length - pos);
+		System.arraycopy(sortedValues, pos, v, pos + 1, keys.length - pos);
+		return new PreferenceSnapshot(k, v, null);
+	}
+
+	/**
+	 * Create a copy of this snapshot with multiple values changed.
+	 * @param overrides values which replace or extend the values of this snapshot
+	 * @return new snapshot, this snapshot is not modified. If there
+	 *  are no overrides, this snapshot is returned.
+	 */
+	PreferenceSnapshot withAll(Map<String,String> overrides){
+		if( overrides.isEmpty() ){
+			return this;
+		}
+		PreferenceSnapshot o = of(overrides);
+		String[] k = new String[keys.length + o.keys.length];
+		String[] v = new String[k.length];
+		int i = 0, j = 0, n = 0;
+		// merge both sorted key arrays, overrides win
+		while( i < keys.length || j < o.keys.length ){
+			int c;
+			if( i == keys.length ){
+				c = 1;
+			}else if( j == o.keys.length ){
+				c = -1;
+			}else{
+				c = keys[i].compareTo(o.keys[j]);
+			}
+			if( c < 0 ){
+				k[n] = keys[i];
+				v[n++] = sortedValues[i++];
+			}else{
+				if( c == 0 ){
+					i++;
+				}
+				k[n] = o.keys[j];
+				v[n++] = o.sortedValues[j++];
+			}
+		}
+		return new PreferenceSnapshot(Arrays.copyOf(k, n), Arrays.copyOf(v, n), null);
+	}
+
+	/**
+	 * Immutable view of the keys. Lookups use the hash index.
+	 */
+	private class KeySet extends AbstractSet<String>{
+		@Override
+		public Iterator<String> iterator() {
+			// does not support remove
+			return Arrays.asList(keys).iterator();
+		}
+
+		@Override
+		public int size() {
+			return keys.length;
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return (o instanceof String) && indexOf((String)o) >= 0;
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package org.aktin.dwh.prefs.impl;
+
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import javax.mail.internet.InternetAddress;
+
+import org.aktin.Preferences;
+
+/**
+ * Conversion of preference strings to typed values.
+ * <p>
+ * Use {@link #get(Preferences, String)} to retrieve a typed value.
+ * For {@link SnapshotPreferences}, every value is parsed only
+ * once per preference snapshot and the result is cached.
+ * </p>
+ * <p>
+ * Blank values are treated as missing and produce {@code null},
+ * except for lists which produce an empty list or array.
+ * </p>
+ *
+ * @param <T> value type
+ */
+public final class PreferenceType<T> {
+
+	/**
+	 * Parser for a single non-null value.
+	 * @param <T> value type
+	 */
+	@FunctionalInterface
+	private interface Parser<T>{
+		T parse(String value) throws Exception;
+	}
+
+	/**
+	 * Copies a cached value before it is given to a caller.
+	 * @param <T> value type
+	 */
+	@FunctionalInterface
+	private interface Copier<T>{
+		T copy(T value);
+	}
+
+	private static final List<PreferenceType<?>> all = new ArrayList<>();
+
+	/** integer numbers */
+	public static final PreferenceType<Integer> INTEGER = new PreferenceType<>(Integer.class, false, Integer::valueOf);
+	/** long numbers */
+	public static final PreferenceType<Long> LONG = new PreferenceType<>(Long.class, false, Long::valueOf);
+	/**
+	 * Durations either in ISO-8601 notation (e.g. {@code PT1M})
+	 * or as plain number of milliseconds.
+	 */
+	public static final PreferenceType<Duration> DURATION = new PreferenceType<>(Duration.class, false, PreferenceType::parseDuration);
+	/** booleans, only {@code true} and {@code false} are accepted (case insensitive) */
+	public static final PreferenceType<Boolean> BOOLEAN = new PreferenceType<>(Boolean.class, false, PreferenceType::parseBoolean);
+	/** comma separated lists, entries are trimmed and empty entries dropped */
+	public static final PreferenceType<List<String>> STRING_LIST = new PreferenceType<>(listType(String.class), true, PreferenceType::parseList);
+	/** IETF BCP 47 language tags */
+	public static final PreferenceType<Locale> LOCALE = new PreferenceType<>(Locale.class, false, PreferenceType::parseLocale);
+	/** comma separated email addresses, every caller receives its own copies of the mutable addresses */
+	public static final PreferenceType<InternetAddress[]> INTERNET_ADDRESSES = new PreferenceType<>(InternetAddress[].class, true, InternetAddress::parse, PreferenceType::copyAddresses);
+
+	private final int index;
+	private final Type type;
+	private final boolean parseBlank;
+	private final Parser<T> parser;
+	/** copies mutable values, {@code null} for immutable values */
+	private final Copier<T> copier;
+
+	private PreferenceType(Type type, boolean parseBlank, Parser<T> parser){
+		this(type, parseBlank, parser, null);
+	}
+
+	private PreferenceType(Type type, boolean parseBlank, Parser<T> parser, Copier<T> copier){
+		this.type = type;
+		this.parseBlank = parseBlank;
+		this.parser = parser;
+		this.copier = copier;
+		synchronized( all ){
+			this.index = all.size();
+			all.add(this);
+		}
+	}
+
+	/**
+	 * Find the preference type for a given Java type.
+	 * @param type Java type, e.g. of an injection point
+	 * @return preference type or {@code null} if the type is not supported
+	 */
+	public static PreferenceType<?> forType(Type type){
+		for( PreferenceType<?> t : all ){
+			if( t.type.equals(type) ){
+				return t;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Number of defined types, used to size per-type caches.
+	 * @return count
+	 */
+	static int count(){
+		return all.size();
+	}
+
+	int index(){
+		return index;
+	}
+
+	/**
+	 * @return Java type of the parsed values
+	 */
+	public Type getType(){
+		return type;
+	}
+
+	/**
+	 * Parse a value.
+	 * @param key preference key, used for error messages
+	 * @param value string value, may be {@code null}
+	 * @return parsed value or {@code null} if the value is missing
+	 * @throws IllegalArgumentException if the value cannot be parsed
+	 */
+	public T parse(String key, String value) throws IllegalArgumentException{
+		if( value == null ){
+			return null;
+		}else if( parseBlank == false && value.trim().isEmpty() ){
+			return null;
+		}
+		try{
+			return parser.parse(value.trim());
+		}catch( Exception e ){
+			throw new IllegalArgumentException("Invalid value for preference "+key+": "+value, e);
+		}
+	}
+
+	/**
+	 * Retrieve a typed preference value. For {@link SnapshotPreferences}
+	 * and {@link ScopedPreferences}, the parsed value is cached until
+	 * the preferences change.
+	 * @param prefs preferences
+	 * @param key preference key
+	 * @return parsed value or {@code null} if the preference is not set
+	 * @throws IllegalArgumentException if the value cannot be parsed
+	 */
+	public T get(Preferences prefs, String key) throws IllegalArgumentException{
+		if( prefs instanceof SnapshotPreferences ){
+			return ((SnapshotPreferences)prefs).get(key, this);
+		}else if( prefs instanceof ScopedPreferences ){
+			return ((ScopedPreferences)prefs).get(key, this);
+		}else{
+			return parse(key, prefs.get(key));
+		}
+	}
+
+	/**
+	 * Create a copy of a cached value if it is mutable.
+	 * @param value cached value
+	 * @return value which can be given to callers
+	 */
+	T copyOf(T value){
+		if( value == null || copier == null ){
+			return value;
+		}
+		return copier.copy(value);
+	}
+
+	private static InternetAddress[] copyAddresses(InternetAddress[] addresses){
+		InternetAddress[] copy = new InternetAddress[addresses.length];
+		for( int i=0; i<copy.length; i++ ){
+			copy[i] = (InternetAddress)addresses[i].clone();
+		}
+		return copy;
+	}
+
+	private static Duration parseDuration(String value){
+		if( value.startsWith("P") || value.startsWith("-P") ){
+			return Duration.parse(value);
+		}else{
+			return Duration.ofMillis(Long.parseLong(value));
+		}
+	}
+
+	private static Boolean parseBoolean(String value){
+		if( value.equalsIgnoreCase("true") ){
+			return Boolean.TRUE;
+		}else if( value.equalsIgnoreCase("false") ){
+			return Boolean.FALSE;
+		}else{
+			throw new IllegalArgumentException("Boolean value expected");
+		}
+	}
+
+	private static List<String> parseList(String value){
+		List<String> list = new ArrayList<>();
+		for( String item : value.split(",") ){
+			item = item.trim();
+			if( !item.isEmpty() ){
+				list.add(item);
+			}
+		}
+		return Collections.unmodifiableList(list);
+	}
+
+	private static Locale parseLocale(String value){
+		Locale locale = Locale.forLanguageTag(value);
+		if( locale.getLanguage().isEmpty() ){
+			throw new IllegalArgumentException("Language tag expected");
+		}
+		return locale;
+	}
+
+	private static Type listType(Type element){
+		return new ParameterizedType() {
+			@Override
+			public Type[] getActualTypeArguments() {
+				return new Type[]{element};
+			}
+			@Override
+			public Type getRawType() {
+				return List.class;
+			}
+			@Override
+			public Type getOwnerType() {
+				return null;
+			}
+			@Override
+			public boolean equals(Object obj) {
+				if( !(obj instanceof ParameterizedType) ){
+					return false;
+				}
+				ParameterizedType o = (ParameterizedType)obj;
+				return o.getRawType().equals(List.class)
+						&& o.getOwnerType() == null
+						&& Arrays.equals(o.getActualTypeArguments(), getActualTypeArguments());
+			}
+			@Override
+			public int hashCode() {
+				return Arrays.hashCode(getActualTypeArguments()) ^ List.class.hashCode();
+			}
+			@Override
+			public String toString() {
+				return List.class.getName()+"<"+element.getTypeName()+">";
+			}
+		};
+	}
+}
@@ -0,0 +1,65 @@
+package org.aktin.dwh.prefs.impl;
+
+import java.lang.annotation.Annotation;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import javax.enterprise.context.spi.CreationalContext;
+import javax.enterprise.event.Observes;
+import javax.enterprise.inject.spi.AfterDeploymentValidation;
+import javax.enterprise.inject.spi.Bean;
+import javax.enterprise.inject.spi.BeanManager;
+import javax.enterprise.inject.spi.Extension;
+import javax.enterprise.inject.spi.InjectionPoint;
+import javax.enterprise.inject.spi.ProcessInjectionPoint;
+
+import org.aktin.Preference;
+import org.aktin.Preferences;
+
+/**
+ * CDI extension which parses all typed preferences used by
+ * {@link Preference} injection points during deployment.
+ * Invalid values are reported as deployment problems, instead
+ * of failing when the value is first used.
+ */
+public class PreferenceValidationExtension implements Extension {
+	private static final Logger log = Logger.getLogger(PreferenceValidationExtension.class.getName());
+
+	/** preference keys with the types requested by injection points */
+	private final Map<String, Set<PreferenceType<?>>> required = new TreeMap<>();
+
+	void collectInjectionPoint(@Observes ProcessInjectionPoint<?, ?> event){
+		InjectionPoint ip = event.getInjectionPoint();
+		for( Annotation q : ip.getQualifiers() ){
+			if( q instanceof Preference ){
+				PreferenceType<?> type = PreferenceType.forType(ip.getType());
+				if( type != null ){
+					String key = ((Preference)q).key().key();
+					required.computeIfAbsent(key, k -> new HashSet<>()).add(type);
+				}
+			}
+		}
+	}
+
+	void validatePreferences(@Observes AfterDeploymentValidation event, BeanManager bm){
+		if( required.isEmpty() ){
+			return;
+		}
+		Bean<?> bean = bm.resolve(bm.getBeans(Preferences.class));
+		CreationalContext<?> ctx = bm.createCreationalContext(bean);
+		Preferences prefs = (Preferences)bm.getReference(bean, Preferences.class, ctx);
+		for( Map.Entry<String, Set<PreferenceType<?>>> e : required.entrySet() ){
+			for( PreferenceType<?> type : e.getValue() ){
+				try{
+					type.get(prefs, e.getKey());
+				}catch( IllegalArgumentException ex ){
+					event.addDeploymentProblem(ex);
+				}
+			}
+		}
+		log.info("Validated "+required.size()+" typed preferences");
+	}
+}
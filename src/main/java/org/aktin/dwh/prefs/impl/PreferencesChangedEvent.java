@@ -0,0 +1,68 @@
+package org.aktin.dwh.prefs.impl;
+
+import java.util.Collections;
+import java.util.NavigableSet;
+import java.util.Set;
+
+import org.aktin.Preferences;
+import org.aktin.dwh.PreferenceKey;
+
+/**
+ * CDI event fired after preference values were changed,
+ * e.g. by reloading the properties file or by a call to
+ * {@code put}. Beans can cache values derived from the
+ * preferences and rebuild them only if keys they depend
+ * on were changed.
+ * <p>
+ * The event is delivered synchronously on the thread which
+ * changed the preferences. The new values are already
+ * visible when the event is fired.
+ * </p>
+ */
+public class PreferencesChangedEvent {
+	private final Preferences source;
+	private final NavigableSet<String> changedKeys;
+
+	PreferencesChangedEvent(Preferences source, NavigableSet<String> changedKeys){
+		this.source = source;
+		this.changedKeys = Collections.unmodifiableNavigableSet(changedKeys);
+	}
+
+	/**
+	 * @return preferences which were changed
+	 */
+	public Preferences getSource(){
+		return source;
+	}
+
+	/**
+	 * @return keys which were added, removed or changed, in ascending order
+	 */
+	public Set<String> getChangedKeys(){
+		return changedKeys;
+	}
+
+	/**
+	 * Determine whether any key with the given prefix was changed.
+	 * @param prefix key prefix
+	 * @return {@code true} if at least one matching key was changed
+	 */
+	public boolean affects(String prefix){
+		String first = changedKeys.ceiling(prefix);
+		return first != null && first.startsWith(prefix);
+	}
+
+	/**
+	 * Determine whether the given preference was changed.
+	 * @param key preference key
+	 * @return {@code true} if the key was changed
+	 */
+	public boolean affects(PreferenceKey key){
+		return changedKeys.contains(key.key());
+	}
+
+	@Override
+	public String toString(){
+		return "PreferencesChangedEvent"+changedKeys;
+	}
+}
@@ -6,50 +6,96 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.UncheckedIOException;
-import java.net.InetAddress;
-import java.net.NetworkInterface;
-import java.net.SocketException;
-import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Collections;
-import java.util.Enumeration;
-import java.util.Properties;
-import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.annotation.PreDestroy;
 import javax.inject.Singleton;
 
-import org.aktin.Preferences;
 import org.aktin.dwh.PreferenceKey;
 
 /**
  * Implements the AKTIN preferences interface and reads the
  * AKTIN preferences from a properties file 'aktin.properties'
  * in the application server configuration directory on startup.
- * 
+ * <p>
+ * The preferences are kept in an immutable {@link PreferenceSnapshot}
+ * which is replaced atomically on every change. Readers never block.
+ * If the property {@value #RELOAD_KEY} is set to {@code true}, the
+ * file is watched for modifications and reloaded in the background.
+ * Values set via {@link #put(String, String)} are discarded by a reload.
+ * Changes are announced via {@link PreferencesChangedEvent}.
+ * </p>
+ * <p>
+ * If the server URL is not configured, it is detected in the background.
+ * Until the detection completes, the URL detected during the previous
+ * start (or the loopback address) is used, so that the startup never
+ * waits for the network configuration.
+ * </p>
  *
  */
 @Singleton
-public class PropertyFilePreferences implements Preferences{
+public class PropertyFilePreferences extends SnapshotPreferences{
 	private static final Logger log = Logger.getLogger(PropertyFilePreferences.class.getName());
-	private Properties props;
+	/** preference to enable reloading of the properties file after modification */
+	public static final String RELOAD_KEY = "preferences.reload";
+
+	private PropertyFileWatcher watcher;
+	private final ServerUrlDetector urlDetector;
+	/** detected server URL, used if the URL is not configured */
+	private volatile String detectedUrl;
+	/** whether the current server URL is a guess and may be replaced by the detected URL */
+	private volatile boolean serverUrlGuessed;
+	private boolean detectionStarted;
 
 	public PropertyFilePreferences() throws IOException {
-		// load preferences (call load(default file)
-		Path propFile = Paths.get(System.getProperty("jboss.server.config.dir"), "aktin.properties");
-		try( Reader in = Files.newBufferedReader(propFile, StandardCharsets.UTF_8)){
-			load(in);
+		// load preferences from the default file
+		this(Paths.get(System.getProperty("jboss.server.config.dir"), "aktin.properties"));
+	}
+
+	/**
+	 * Load preferences from the specified file. The file is watched
+	 * for changes if {@value #RELOAD_KEY} is enabled in the file.
+	 * @param propFile properties file
+	 * @throws IOException error reading the file or registering the watch service
+	 */
+	public PropertyFilePreferences(Path propFile) throws IOException {
+		this.urlDetector = ServerUrlDetector.forServer();
+		PreferenceSnapshot s = loadFile(propFile);
+		update( prev -> s );
+		startServerUrlDetection();
+		if( Boolean.parseBoolean(get(METRICS_KEY)) ){
+			enableAccessStatistics();
+		}
+		if( Boolean.parseBoolean(get(RELOAD_KEY)) ){
+			watcher = new PropertyFileWatcher(propFile, () -> reload(propFile));
+			watcher.start();
+			log.info("Watching for changes of "+propFile);
 		}
 	}
 
 	public PropertyFilePreferences(InputStream properties) throws IOException{
+		this(properties, new ServerUrlDetector(null, ServerUrlDetector.DEFAULT_WARN_MILLIS));
+	}
+
+	/**
+	 * Load preferences from a stream and use the given detector
+	 * if the server URL is not configured.
+	 * @param properties properties stream
+	 * @param urlDetector server URL detector
+	 * @throws IOException error reading the stream
+	 */
+	PropertyFilePreferences(InputStream properties, ServerUrlDetector urlDetector) throws IOException{
+		this.urlDetector = urlDetector;
 		try( Reader r = new InputStreamReader(properties, StandardCharsets.UTF_8) ){
-			load(r);
+			PreferenceSnapshot s = load(r);
+			update( prev -> s );
 		}
+		startServerUrlDetection();
 	}
 
 	public static PropertyFilePreferences empty(){
@@ -59,65 +105,93 @@ public class PropertyFilePreferences implements Preferences{
 			throw new UncheckedIOException(e);
 		}
 	}
-	private void load(Reader properties) throws IOException{
-		props = new Properties();
-		props.load(properties);
-		// check for missing properties which can be filled automatically
-		if( !props.containsKey(PreferenceKey.serverUrl.key()) ){
-			// generate server URL
-			String url = determineServerURL();
-			log.warning("Server URL undefined. Guessing: "+url);
-			props.setProperty(PreferenceKey.serverUrl.key(), url);
+	private PreferenceSnapshot loadFile(Path propFile) throws IOException{
+		try( Reader in = Files.newBufferedReader(propFile, StandardCharsets.UTF_8)){
+			return load(in);
 		}
 	}
-	private String determineServerURL(){
-		InetAddress addr;
-		try {
-			addr = InetAddress.getLocalHost();
-		} catch (UnknownHostException e) {
-			log.log(Level.WARNING,"Unable to retrieve local host address",e);
-			addr = InetAddress.getLoopbackAddress();
-		}
 
-		if( addr.isLoopbackAddress() ){
-			// try to find a different non-loopback address
-			Enumeration<NetworkInterface> nics;
-			try {
-				nics = NetworkInterface.getNetworkInterfaces();
-			} catch (SocketException e) {
-				log.log(Level.WARNING,"Unable list network interfaces to find local address",e);
-				nics = Collections.emptyEnumeration();
-			}
-			boolean foundOne = false;
-			while( nics.hasMoreElements() ){
-				NetworkInterface nic = nics.nextElement();
-				Enumeration<InetAddress> ias = nic.getInetAddresses();
-				while( ias.hasMoreElements() ){
-					addr = ias.nextElement();
-					if( !addr.isLoopbackAddress() ){
-						foundOne = true;
-						break;
-					}
-				}
-				if( foundOne ){
-					break;
-				}
+	private PreferenceSnapshot load(Reader properties) throws IOException{
+		PreferenceSnapshot s = PreferenceSnapshot.load(properties);
+		// check for missing properties which can be filled automatically
+		serverUrlGuessed = !s.containsKey(PreferenceKey.serverUrl.key());
+		if( serverUrlGuessed ){
+			// use the detected URL or the result of the previous start,
+			// replaced once the detection completes
+			String url = detectedUrl;
+			if( url == null ){
+				url = urlDetector.cachedOrFallback();
 			}
+			log.warning("Server URL undefined. Guessing: "+url);
+			s = s.with(PreferenceKey.serverUrl.key(), url);
 		}
-		return "http://"+addr.getHostAddress()+"/";
+		return s;
 	}
-	@Override
-	public String get(String key) {
-		return props.getProperty(key);
+
+	/**
+	 * Replace the guessed server URL once the detection completes,
+	 * if the URL is not configured. Must be called after the snapshot
+	 * was published.
+	 */
+	private synchronized void startServerUrlDetection(){
+		if( detectionStarted || serverUrlGuessed == false ){
+			return;
+		}
+		detectionStarted = true;
+		urlDetector.detectAsync().thenAccept( url -> {
+			detectedUrl = url;
+			// only replace guessed values. The URL may have been configured meanwhile
+			update( s -> serverUrlGuessed ? s.with(PreferenceKey.serverUrl.key(), url) : s );
+			log.info("Server URL detected: "+url);
+		});
 	}
 
-	@SuppressWarnings({ "unchecked", "rawtypes" })
-	@Override
-	public Set<String> keySet() {
-		return (Set)props.keySet();
+	/**
+	 * Parse the properties file and publish the result. Called
+	 * by the watcher thread. If the file cannot be parsed, the
+	 * previous preferences remain active.
+	 * @param propFile properties file
+	 */
+	private void reload(Path propFile){
+		PreferenceSnapshot s;
+		try{
+			s = loadFile(propFile);
+		}catch( IOException | IllegalArgumentException e ){
+			log.log(Level.WARNING, "Unable to reload preferences from "+propFile+", keeping previous values", e);
+			return;
+		}
+		log.info("Preferences reloaded from "+propFile);
+		update( prev -> s );
+		startServerUrlDetection();
 	}
 
+	/**
+	 * Change a preference value. The current snapshot is copied
+	 * with the new value and published atomically.
+	 * @param key preference key
+	 * @param value value
+	 */
 	public void put(String key, String value){
-		props.put(key, value);
+		if( key.equals(PreferenceKey.serverUrl.key()) ){
+			serverUrlGuessed = false;
+		}
+		update( s -> s.with(key, value) );
+	}
+
+	/**
+	 * Stop watching the properties file and unregister the access
+	 * statistics. Called by the container before the bean is destroyed.
+	 */
+	@PreDestroy
+	public void close(){
+		disableAccessStatistics();
+		if( watcher != null ){
+			try {
+				watcher.close();
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Unable to close file watcher", e);
+			}
+			watcher = null;
+		}
 	}
 }
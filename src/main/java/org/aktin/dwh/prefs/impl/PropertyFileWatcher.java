@@ -0,0 +1,93 @@
+package org.aktin.dwh.prefs.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches a single file for modifications and runs a callback
+ * on a background daemon thread after the file was changed.
+ * <p>
+ * Editors and deployment scripts usually produce several events
+ * for a single save. Events arriving within a short delay are
+ * therefore combined into a single callback.
+ * </p>
+ */
+class PropertyFileWatcher implements Runnable, Closeable {
+	private static final Logger log = Logger.getLogger(PropertyFileWatcher.class.getName());
+	/** delay in milliseconds to wait for further events before the callback is run */
+	private static final long SETTLE_DELAY = 200;
+
+	private final Path file;
+	private final Runnable onChange;
+	private final WatchService watcher;
+	private final Thread thread;
+
+	PropertyFileWatcher(Path file, Runnable onChange) throws IOException{
+		this.file = file.toAbsolutePath();
+		this.onChange = onChange;
+		this.watcher = this.file.getFileSystem().newWatchService();
+		this.file.getParent().register(watcher,
+				StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		this.thread = new Thread(this, "aktin-preferences-watcher");
+		this.thread.setDaemon(true);
+	}
+
+	void start(){
+		thread.start();
+	}
+
+	private boolean pollEvents(WatchKey key){
+		boolean affected = false;
+		for( WatchEvent<?> event : key.pollEvents() ){
+			if( event.kind() == StandardWatchEventKinds.OVERFLOW ){
+				// events were lost, assume our file was among them
+				affected = true;
+			}else if( file.getFileName().equals(event.context()) ){
+				affected = true;
+			}
+		}
+		key.reset();
+		return affected;
+	}
+
+	@Override
+	public void run() {
+		try{
+			while( true ){
+				boolean affected = pollEvents(watcher.take());
+				if( !affected ){
+					continue;
+				}
+				// collect events which belong to the same change
+				WatchKey key;
+				while( (key = watcher.poll(SETTLE_DELAY, TimeUnit.MILLISECONDS)) != null ){
+					pollEvents(key);
+				}
+				try{
+					onChange.run();
+				}catch( RuntimeException e ){
+					log.log(Level.WARNING, "Unable to process change of "+file, e);
+				}
+			}
+		}catch( InterruptedException | ClosedWatchServiceException e ){
+			// watcher closed
+		}
+		log.info("Stopped watching "+file);
+	}
+
+	@Override
+	public void close() throws IOException {
+		watcher.close();
+		thread.interrupt();
+	}
+}
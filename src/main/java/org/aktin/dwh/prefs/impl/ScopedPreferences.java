@@ -0,0 +1,134 @@
+package org.aktin.dwh.prefs.impl;
+
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+import org.aktin.Preferences;
+
+/**
+ * Immutable view of all preferences below a common prefix, with
+ * the prefix removed from the keys. E.g. the scope {@code broker.pilot.https}
+ * contains the key {@code interval} for the preference
+ * {@code broker.pilot.https.interval}.
+ * <p>
+ * A scope belongs to a single {@link PreferenceSnapshot} and is created
+ * only once per snapshot. Later changes of the preferences are not visible.
+ * Obtain the scope again via {@link SnapshotPreferences#scope(String)}
+ * to see the current values, e.g. at the beginning of every polling cycle.
+ * Lookups are counted in the access statistics of the preferences the
+ * scope was obtained from, if enabled.
+ * </p>
+ */
+public final class ScopedPreferences implements Preferences {
+	private final String prefix;
+	private final PreferenceSnapshot values;
+	/** access statistics, {@code null} if disabled */
+	private final PreferenceAccessStatistics statistics;
+
+	ScopedPreferences(String prefix, PreferenceSnapshot values){
+		this(prefix, values, null);
+	}
+
+	private ScopedPreferences(String prefix, PreferenceSnapshot values, PreferenceAccessStatistics statistics){
+		this.prefix = prefix;
+		this.values = values;
+		this.statistics = statistics;
+	}
+
+	/**
+	 * Get a view of this scope which counts lookups. The values are shared.
+	 * @param statistics access statistics, may be {@code null}
+	 * @return scope which counts lookups, or this scope if statistics are disabled
+	 */
+	ScopedPreferences withStatistics(PreferenceAccessStatistics statistics){
+		if( statistics == null ){
+			return this;
+		}
+		return new ScopedPreferences(prefix, values, statistics);
+	}
+
+	/**
+	 * Append the separator to a scope name, if missing.
+	 * @param name scope name, e.g. {@code broker.pilot}
+	 * @return prefix, e.g. {@code broker.pilot.}
+	 */
+	static String toPrefix(String name){
+		if( name.isEmpty() || name.endsWith(".") ){
+			return name;
+		}
+		return name+".";
+	}
+
+	/**
+	 * @return prefix of the preference keys in this scope, including the trailing dot
+	 */
+	public String getPrefix(){
+		return prefix;
+	}
+
+	@Override
+	public String get(String key) {
+		String value = values.get(key);
+		if( statistics != null ){
+			statistics.recordGet(prefix, key, value);
+		}
+		return value;
+	}
+
+	/**
+	 * Get a typed preference value. The value is parsed only once
+	 * per snapshot.
+	 * @param key preference key relative to this scope
+	 * @param type value type
+	 * @return parsed value or {@code null} if the preference is not set
+	 * @throws IllegalArgumentException if the value cannot be parsed
+	 */
+	public <T> T get(String key, PreferenceType<T> type) throws IllegalArgumentException{
+		if( statistics != null ){
+			statistics.recordGet(prefix, key, values.get(key));
+		}
+		return values.get(key, type);
+	}
+
+	@Override
+	public Set<String> keySet() {
+		return values.keySet();
+	}
+
+	@Override
+	public int forPrefix(String prefix, BiConsumer<String, String> action) {
+		if( statistics != null ){
+			statistics.recordPrefix(this.prefix.concat(prefix));
+		}
+		return values.forPrefix(prefix, action);
+	}
+
+	/**
+	 * Get a nested scope.
+	 * @param name scope name relative to this scope
+	 * @return scope, possibly empty
+	 */
+	public ScopedPreferences scope(String name){
+		String p = toPrefix(name);
+		if( statistics != null ){
+			statistics.recordPrefix(prefix.concat(p));
+		}
+		return values.scope(prefix, p).withStatistics(statistics);
+	}
+
+	/**
+	 * Names of the nested scopes. E.g. for the scope {@code broker}
+	 * with the keys {@code pilot.name} and {@code test.https.pool},
+	 * the names are {@code pilot} and {@code test}.
+	 * @return sorted names
+	 */
+	public NavigableSet<String> childNames(){
+		return values.childNames();
+	}
+
+	@Override
+	public String toString(){
+		return "ScopedPreferences["+prefix+"]";
+	}
+}
@@ -0,0 +1,199 @@
+package org.aktin.dwh.prefs.impl;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Enumeration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Guesses the server URL if it is not configured. The detection runs
+ * once on a background thread. Callers never wait for it and use the
+ * result of the previous start or the loopback address until the
+ * detection completes. The result is cached and passed to the callbacks,
+ * so slow hosts converge to the detected URL.
+ */
+class ServerUrlDetector {
+	private static final Logger log = Logger.getLogger(ServerUrlDetector.class.getName());
+	/** name of the file in the server data directory which stores the last result */
+	static final String CACHE_FILE = "aktin-server-url.cache";
+	/** detection time after which a warning is logged */
+	static final long DEFAULT_WARN_MILLIS = 2000;
+
+	private final Path cacheFile;
+	private final long warnMillis;
+	private final Supplier<String> detection;
+	private CompletableFuture<String> result;
+
+	/**
+	 * @param cacheFile file to store the last result, may be {@code null}
+	 * @param warnMillis detection time in milliseconds after which a warning is logged
+	 */
+	ServerUrlDetector(Path cacheFile, long warnMillis){
+		this(cacheFile, warnMillis, ServerUrlDetector::determineServerURL);
+	}
+
+	/**
+	 * @param cacheFile file to store the last result, may be {@code null}
+	 * @param warnMillis detection time in milliseconds after which a warning is logged
+	 * @param detection determines the server URL, called once on a background thread
+	 */
+	ServerUrlDetector(Path cacheFile, long warnMillis, Supplier<String> detection){
+		this.cacheFile = cacheFile;
+		this.warnMillis = warnMillis;
+		this.detection = detection;
+	}
+
+	/**
+	 * Create a detector which caches results in the application
+	 * server data directory, if available.
+	 * @return detector
+	 */
+	static ServerUrlDetector forServer(){
+		String dataDir = System.getProperty("jboss.server.data.dir");
+		Path cache = null;
+		if( dataDir != null ){
+			cache = Paths.get(dataDir, CACHE_FILE);
+		}
+		return new ServerUrlDetector(cache, DEFAULT_WARN_MILLIS);
+	}
+
+	/**
+	 * Get a server URL without blocking. This is the result of the
+	 * previous detection, if available, or the loopback address.
+	 * @return server URL
+	 */
+	String cachedOrFallback(){
+		if( cacheFile != null && Files.isRegularFile(cacheFile) ){
+			try{
+				String url = new String(Files.readAllBytes(cacheFile), StandardCharsets.UTF_8).trim();
+				if( !url.isEmpty() ){
+					return url;
+				}
+			}catch( IOException e ){
+				log.log(Level.WARNING, "Unable to read cached server URL from "+cacheFile, e);
+			}
+		}
+		return toURL(InetAddress.getLoopbackAddress());
+	}
+
+	/**
+	 * Start the detection on a background thread, unless already
+	 * started. The result is cached whenever it arrives.
+	 * @return future completed with the detected URL
+	 */
+	synchronized CompletableFuture<String> detectAsync(){
+		if( result != null ){
+			return result;
+		}
+		CompletableFuture<String> f = new CompletableFuture<>();
+		Thread t = new Thread( () -> {
+			long start = System.nanoTime();
+			try{
+				String url = detection.get();
+				long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+				if( elapsed > warnMillis ){
+					log.warning("Server URL detection took "+elapsed+"ms: "+url);
+				}
+				store(url);
+				f.complete(url);
+			}catch( RuntimeException e ){
+				log.log(Level.WARNING, "Server URL detection failed", e);
+				f.completeExceptionally(e);
+			}
+		}, "aktin-server-url-detection");
+		t.setDaemon(true);
+		t.start();
+		result = f;
+		return f;
+	}
+
+	private void store(String url){
+		if( cacheFile == null ){
+			return;
+		}
+		try{
+			Files.write(cacheFile, url.getBytes(StandardCharsets.UTF_8));
+		}catch( IOException e ){
+			log.log(Level.WARNING, "Unable to cache server URL in "+cacheFile, e);
+		}
+	}
+
+	private static String toURL(InetAddress addr){
+		if( addr instanceof Inet6Address ){
+			// strip the scope and enclose in brackets
+			String host = addr.getHostAddress();
+			int scope = host.indexOf('%');
+			if( scope != -1 ){
+				host = host.substring(0, scope);
+			}
+			return "http://["+host+"]/";
+		}
+		return "http://"+addr.getHostAddress()+"/";
+	}
+
+	/**
+	 * Find an address of an active network interface. The local
+	 * host name is not resolved, since reverse lookups may block for
+	 * a long time. IPv4 addresses are preferred over IPv6 addresses,
+	 * link-local and loopback addresses are only used as last resort.
+	 * @return server URL
+	 */
+	static String determineServerURL(){
+		Enumeration<NetworkInterface> nics;
+		try {
+			nics = NetworkInterface.getNetworkInterfaces();
+		} catch (SocketException e) {
+			log.log(Level.WARNING,"Unable list network interfaces to find local address",e);
+			nics = null;
+		}
+		InetAddress best = null;
+		int bestRank = 0;
+		while( nics != null && nics.hasMoreElements() ){
+			NetworkInterface nic = nics.nextElement();
+			try{
+				if( !nic.isUp() || nic.isLoopback() || nic.isVirtual() ){
+					continue;
+				}
+			}catch( SocketException e ){
+				continue;
+			}
+			Enumeration<InetAddress> ias = nic.getInetAddresses();
+			while( ias.hasMoreElements() ){
+				InetAddress addr = ias.nextElement();
+				int rank = rank(addr);
+				if( rank > bestRank ){
+					best = addr;
+					bestRank = rank;
+				}
+			}
+		}
+		if( best == null ){
+			best = InetAddress.getLoopbackAddress();
+		}
+		return toURL(best);
+	}
+
+	private static int rank(InetAddress addr){
+		if( addr.isLoopbackAddress() || addr.isAnyLocalAddress() ){
+			return 0;
+		}else if( addr.isLinkLocalAddress() ){
+			return 1;
+		}else if( addr instanceof Inet4Address ){
+			return 3;
+		}else{
+			return 2;
+		}
+	}
+}
@@ -0,0 +1,250 @@
+package org.aktin.dwh.prefs.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.enterprise.event.Event;
+import javax.inject.Inject;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.aktin.Preferences;
+import org.aktin.dwh.PreferenceKey;
+
+/**
+ * Base class for preferences which are read from an immutable
+ * {@link PreferenceSnapshot}. Subclasses publish new snapshots
+ * via {@link #update(UnaryOperator)}, readers never block.
+ * <p>
+ * Every change is announced with a {@link PreferencesChangedEvent},
+ * first to listeners registered via {@link #addChangeListener(Consumer)}
+ * and then as CDI event.
+ * </p>
+ * <p>
+ * Optionally, lookups can be counted per key and exposed as
+ * {@link PreferenceAccessMXBean}, see {@link #enableAccessStatistics()}.
+ * </p>
+ */
+public abstract class SnapshotPreferences implements Preferences {
+	private static final Logger log = Logger.getLogger(SnapshotPreferences.class.getName());
+	/** preference to enable access statistics */
+	public static final String METRICS_KEY = "preferences.metrics";
+
+	/** currently active preferences, use {@link #update(UnaryOperator)} to change */
+	final AtomicReference<PreferenceSnapshot> snapshot = new AtomicReference<>();
+
+	private final CopyOnWriteArrayList<Consumer<PreferencesChangedEvent>> listeners = new CopyOnWriteArrayList<>();
+
+	/** access statistics, {@code null} if disabled */
+	private volatile PreferenceAccessStatistics statistics;
+	private ObjectName statisticsName;
+
+	/** not available outside of a CDI container */
+	@Inject
+	private Event<PreferencesChangedEvent> changeEvent;
+	/** whether changes are published as CDI event */
+	private volatile boolean publishEvents = true;
+
+	/**
+	 * Atomically replace the current snapshot and notify about changed keys.
+	 * The function may be called multiple times if other threads change
+	 * the snapshot concurrently.
+	 * @param function function to produce the new snapshot from the current one,
+	 *  the current snapshot is {@code null} during initialization
+	 */
+	void update(UnaryOperator<PreferenceSnapshot> function){
+		PreferenceSnapshot prev, next;
+		do{
+			prev = snapshot.get();
+			next = function.apply(prev);
+		}while( !snapshot.compareAndSet(prev, next) );
+		if( prev != null ){
+			NavigableSet<String> changed = prev.changedKeys(next);
+			if( !changed.isEmpty() ){
+				fireChanged(new PreferencesChangedEvent(this, changed));
+			}
+		}
+	}
+
+	private void fireChanged(PreferencesChangedEvent event){
+		for( Consumer<PreferencesChangedEvent> listener : listeners ){
+			try{
+				listener.accept(event);
+			}catch( RuntimeException e ){
+				log.log(Level.WARNING, "Preference change listener failed for "+event, e);
+			}
+		}
+		if( changeEvent != null && publishEvents ){
+			try{
+				changeEvent.fire(event);
+			}catch( RuntimeException e ){
+				log.log(Level.WARNING, "Preference change observer failed for "+event, e);
+			}
+		}
+	}
+
+	/**
+	 * Enable or disable the CDI events for changes. Preferences layered
+	 * over this instance disable the events, so that observers are
+	 * notified only once by the active implementation. Listeners are
+	 * always called.
+	 * @param publish {@code true} to fire CDI events (default)
+	 */
+	void setPublishEvents(boolean publish){
+		this.publishEvents = publish;
+	}
+
+	/**
+	 * Register a listener which is called after preference values
+	 * were changed. Listeners are called before CDI observers.
+	 * @param listener listener
+	 */
+	public void addChangeListener(Consumer<PreferencesChangedEvent> listener){
+		listeners.add(listener);
+	}
+
+	/**
+	 * Remove a previously registered listener.
+	 * @param listener listener
+	 */
+	public void removeChangeListener(Consumer<PreferencesChangedEvent> listener){
+		listeners.remove(listener);
+	}
+
+	/**
+	 * @return currently active snapshot
+	 */
+	PreferenceSnapshot getSnapshot(){
+		return snapshot.get();
+	}
+
+	/**
+	 * Start counting lookups and register the statistics with the
+	 * platform MBean server as {@code org.aktin.dwh:type=PreferenceAccess,name=<class>}.
+	 * Lookups are not counted until this method is called.
+	 */
+	public synchronized void enableAccessStatistics(){
+		if( statistics != null ){
+			return;
+		}
+		PreferenceAccessStatistics stats = new PreferenceAccessStatistics();
+		try{
+			ObjectName name = new ObjectName("org.aktin.dwh:type=PreferenceAccess,name="+getClass().getSimpleName());
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if( server.isRegistered(name) ){
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(stats, name);
+			statisticsName = name;
+		}catch( JMException e ){
+			log.log(Level.WARNING, "Unable to register preference access statistics", e);
+		}
+		statistics = stats;
+	}
+
+	/**
+	 * Stop counting lookups and unregister the statistics MBean.
+	 */
+	public synchronized void disableAccessStatistics(){
+		statistics = null;
+		if( statisticsName != null ){
+			try{
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(statisticsName);
+			}catch( JMException e ){
+				log.log(Level.WARNING, "Unable to unregister preference access statistics", e);
+			}
+			statisticsName = null;
+		}
+	}
+
+	/**
+	 * @return access statistics or {@code null} if disabled
+	 */
+	public PreferenceAccessMXBean getAccessStatistics(){
+		return statistics;
+	}
+
+	@Override
+	public String get(String key) {
+		String value = snapshot.get().get(key);
+		PreferenceAccessStatistics stats = statistics;
+		if( stats != null ){
+			stats.recordGet(key, value);
+		}
+		return value;
+	}
+
+	@Override
+	public String get(PreferenceKey key) {
+		String value = snapshot.get().get(key);
+		PreferenceAccessStatistics stats = statistics;
+		if( stats != null ){
+			stats.recordGet(key.key(), value);
+		}
+		return value;
+	}
+
+	/**
+	 * Get a typed preference value. The value is parsed only once
+	 * and cached until the preferences change. The lookup is counted
+	 * in the access statistics like {@link #get(String)}.
+	 * @param key preference key
+	 * @param type value type
+	 * @return parsed value or {@code null} if the preference is not set
+	 * @throws IllegalArgumentException if the value cannot be parsed
+	 */
+	public <T> T get(String key, PreferenceType<T> type) throws IllegalArgumentException{
+		PreferenceSnapshot s = snapshot.get();
+		PreferenceAccessStatistics stats = statistics;
+		if( stats != null ){
+			stats.recordGet(key, s.get(key));
+		}
+		return s.get(key, type);
+	}
+
+	/**
+	 * Get an immutable view of all preferences below a prefix, e.g.
+	 * {@code scope("broker.pilot.https").get("interval")}. The view
+	 * is created once per snapshot and reflects the values at the time
+	 * of this call.
+	 * @param name scope name, with or without trailing dot
+	 * @return scope, empty if no keys start with the prefix
+	 */
+	public ScopedPreferences scope(String name){
+		String prefix = ScopedPreferences.toPrefix(name);
+		PreferenceAccessStatistics stats = statistics;
+		if( stats != null ){
+			stats.recordPrefix(prefix);
+		}
+		return snapshot.get().scope("", prefix).withStatistics(stats);
+	}
+
+	@Override
+	public Set<String> keySet() {
+		return snapshot.get().keySet();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Only the matching keys are visited, in ascending order.
+	 * </p>
+	 */
+	@Override
+	public int forPrefix(String prefix, BiConsumer<String, String> action) {
+		PreferenceAccessStatistics stats = statistics;
+		if( stats != null ){
+			stats.recordPrefix(prefix);
+		}
+		return snapshot.get().forPrefix(prefix, action);
+	}
+}
@@ -1,37 +1,350 @@
 package org.aktin.dwh.statistics;
 
-import java.util.LinkedHashMap;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 /**
  * Error cache to store the most recent error messages. Repeating errors
  * are counted.
+ * <p>
+ * The cache does not acquire a lock for counting. Repeated errors are
+ * found via a concurrent map. Every access is stamped with a global
+ * sequence number, which replaces the access order of a linked map.
+ * New errors are stored in a fixed number of slots. If all slots are
+ * used, the least recently used error among a few randomly chosen slots
+ * is replaced. This approximates least recently used eviction without
+ * scanning the whole cache. The cache never holds more than
+ * {@link #getMaxSize()} entries.
+ * </p>
+ * <p>
+ * Different messages with the same cause can be counted as one error
+ * by adding them with the same key, see {@link #add(String, String, long)}.
+ * </p>
  * @author R.W.Majeed
  *
  */
-public class ErrorCache extends LinkedHashMap<String,RepeatableError> {
-	private static final long serialVersionUID = 1L;
-	private int maxSize;
+public class ErrorCache {
+	private static final Comparator<RepeatableError> ACCESS_ORDER = Comparator.comparingLong(RepeatableError::getSequence);
+	/** message for errors without message */
+	static final String NO_MESSAGE = "(no message)";
+	/** number of slots compared to find the entry to evict */
+	private static final int EVICTION_SAMPLES = 8;
+
+	/** cached error with its key */
+	private static class Entry{
+		final String key;
+		final RepeatableError error;
+		Entry(String key, RepeatableError error){
+			this.key = key;
+			this.error = error;
+		}
+	}
+
+	/** errors by key, contains the entries of all slots */
+	private final ConcurrentHashMap<String, RepeatableError> map;
+	/** cached entries, {@code null} for empty slots */
+	private final AtomicReferenceArray<Entry> slots;
+	/** number of slots which were filled since the last clear */
+	private final AtomicInteger filled;
+	private final AtomicLong sequence;
+	private final int maxSize;
+	/** number of errors removed to make room for new errors */
+	private final LongAdder evictions;
 
 	public ErrorCache(int maxSize){
-		super(maxSize, maxSize, true);
+		this.map = new ConcurrentHashMap<>(maxSize*2);
+		this.slots = new AtomicReferenceArray<>(maxSize);
+		this.filled = new AtomicInteger();
+		this.sequence = new AtomicLong();
 		this.maxSize = maxSize;
+		this.evictions = new LongAdder();
 	}
+
 	public void add(String errorMessage, long timestamp){
-		RepeatableError e = this.get(errorMessage);
+		add(errorMessage, errorMessage, timestamp);
+	}
+
+	/**
+	 * Count an error by key. The first message for a key is kept
+	 * as representative message, later messages replace the last
+	 * example, see {@link RepeatableError#getLastExample()}.
+	 * A {@code null} message is counted as {@value #NO_MESSAGE}.
+	 * @param key error key, e.g. a fingerprint of the message. If {@code null}, the message is used.
+	 * @param errorMessage concrete error message
+	 * @param timestamp time of the error
+	 */
+	public void add(String key, String errorMessage, long timestamp){
+		if( errorMessage == null ){
+			errorMessage = NO_MESSAGE;
+		}
+		if( key == null ){
+			key = errorMessage;
+		}
+		RepeatableError e = map.get(key);
 		if( e == null ){
-			e = new RepeatableError(errorMessage, timestamp);
-			this.put(errorMessage, e);
-		}else{
-			e.incrementCount(timestamp);
+			RepeatableError created = new RepeatableError(errorMessage, timestamp, nextSequence());
+			e = map.putIfAbsent(key, created);
+			if( e == null ){
+				store(new Entry(key, created));
+				return;
+			}
 		}
+		e.incrementCount(errorMessage, timestamp, nextSequence());
 	}
 
-	@Override
-	protected boolean removeEldestEntry(java.util.Map.Entry<String, RepeatableError> eldest) {
-		return size() > maxSize;
+	/**
+	 * Count an error by a key derived from the message, e.g. its
+	 * fingerprint. The key function is only called if the message
+	 * itself is not a key, since messages without variable tokens are
+	 * their own fingerprint. Keys which are already cached are found
+	 * by their content, so the key function may return a reused buffer.
+	 * A string is created from the key only for new errors.
+	 * @param errorMessage concrete error message, may be {@code null}
+	 * @param keyFunction calculates the key of a message
+	 * @param timestamp time of the error
+	 */
+	void add(String errorMessage, Function<String, ? extends CharSequence> keyFunction, long timestamp){
+		if( errorMessage == null ){
+			add(null, (String)null, timestamp);
+			return;
+		}
+		RepeatableError e = map.get(errorMessage);
+		if( e == null ){
+			CharSequence key = keyFunction.apply(errorMessage);
+			if( key == errorMessage ){
+				add(errorMessage, errorMessage, timestamp);
+				return;
+			}
+			e = find(key);
+			if( e == null ){
+				add(key.toString(), errorMessage, timestamp);
+				return;
+			}
+		}
+		e.incrementCount(errorMessage, timestamp, nextSequence());
+	}
+
+	/**
+	 * Find a cached error by the content of its key, without
+	 * creating a string. The slots are compared by hash code first.
+	 * @param key key content
+	 * @return cached error or {@code null}
+	 */
+	private RepeatableError find(CharSequence key){
+		int length = key.length();
+		// same as String.hashCode
+		int hash = 0;
+		for( int i=0; i<length; i++ ){
+			hash = 31 * hash + key.charAt(i);
+		}
+		for( int i=0; i<maxSize; i++ ){
+			Entry e = slots.get(i);
+			if( e != null && e.key.hashCode() == hash && e.key.contentEquals(key) ){
+				return e.error;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Put a new entry into an empty slot or replace the least recently
+	 * used entry of a random sample of slots. Concurrent repeats of the
+	 * removed error may be lost.
+	 * @param entry new entry, already contained in the map
+	 */
+	private void store(Entry entry){
+		int index = filled.get();
+		while( index < maxSize ){
+			if( filled.compareAndSet(index, index + 1) ){
+				if( slots.compareAndSet(index, null, entry) ){
+					return;
+				}
+				// filled concurrently to a clear, evict instead
+				break;
+			}
+			index = filled.get();
+		}
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int samples = Math.min(EVICTION_SAMPLES, maxSize);
+		for(;;){
+			int start = random.nextInt(maxSize);
+			int victim = start;
+			Entry eldest = slots.get(start);
+			int j = start;
+			for( int i=1; i<samples && eldest != null; i++ ){
+				// next slot without division
+				if( ++j == maxSize ){
+					j = 0;
+				}
+				Entry candidate = slots.get(j);
+				if( candidate == null || candidate.error.getSequence() < eldest.error.getSequence() ){
+					victim = j;
+					eldest = candidate;
+				}
+			}
+			if( slots.compareAndSet(victim, eldest, entry) ){
+				if( eldest != null ){
+					map.remove(eldest.key, eldest.error);
+					evictions.increment();
+				}
+				return;
+			}
+			// slot changed concurrently, sample again
+		}
+	}
+
+	/**
+	 * Stamp an access. The sequence is incremented without an atomic
+	 * read-modify-write, which would cost more than counting the error.
+	 * Concurrent accesses may receive the same or, rarely, a smaller
+	 * number, which only affects the approximate eviction order.
+	 * @return sequence number of the access
+	 */
+	private long nextSequence(){
+		long s = sequence.get() + 1;
+		sequence.lazySet(s);
+		return s;
 	}
 
 	public int getMaxSize(){
 		return maxSize;
 	}
+
+	/**
+	 * @return number of errors removed from the full cache to make room for new errors
+	 */
+	public long getEvictionCount(){
+		return evictions.sum();
+	}
+
+	public int size(){
+		int size = 0;
+		for( int i=0; i<maxSize; i++ ){
+			if( slots.get(i) != null ){
+				size ++;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Remove all errors. Errors added concurrently may be kept.
+	 */
+	public void clear(){
+		for( int i=0; i<maxSize; i++ ){
+			Entry e = slots.getAndSet(i, null);
+			if( e != null ){
+				map.remove(e.key, e.error);
+			}
+		}
+		filled.set(0);
+	}
+
+	/**
+	 * Get the cached entries, least recent first. An error which is
+	 * evicted and added again while the slots are read may be seen twice,
+	 * only the newer entry is returned.
+	 * @return entries with distinct keys
+	 */
+	private List<Entry> entries(){
+		List<Entry> list = new ArrayList<>(maxSize);
+		for( int i=0; i<maxSize; i++ ){
+			Entry e = slots.get(i);
+			if( e != null ){
+				list.add(e);
+			}
+		}
+		list.sort(Comparator.comparing( (Entry e) -> e.error, ACCESS_ORDER));
+		Set<String> keys = new HashSet<>();
+		for( int i=list.size()-1; i>=0; i-- ){
+			if( !keys.add(list.get(i).key) ){
+				list.remove(i);
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * @return errors ordered by last occurrence, least recent first
+	 */
+	public Collection<RepeatableError> values(){
+		List<Entry> entries = entries();
+		List<RepeatableError> list = new ArrayList<>(entries.size());
+		for( Entry e : entries ){
+			list.add(e.error);
+		}
+		return list;
+	}
+
+	/**
+	 * Perform an action for every error, least recent first.
+	 * @param action action to receive error message and error
+	 */
+	public void forEach(BiConsumer<String, RepeatableError> action){
+		for( RepeatableError e : values() ){
+			action.accept(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Write keys and errors, least recent first.
+	 * @param out output
+	 * @throws IOException write error
+	 */
+	void write(DataOutput out) throws IOException{
+		List<Entry> entries = entries();
+		out.writeInt(entries.size());
+		for( Entry e : entries ){
+			StatisticsStore.writeString(out, e.key);
+			e.error.write(out);
+		}
+	}
+
+	/**
+	 * Add previously written errors. If there are more errors
+	 * than fit into the cache, the least recent are dropped.
+	 * @param in input
+	 * @throws IOException read error
+	 */
+	synchronized void read(DataInput in) throws IOException{
+		int size = in.readInt();
+		for( int i=0; i<size; i++ ){
+			String key = StatisticsStore.readString(in);
+			RepeatableError e = RepeatableError.read(in, nextSequence());
+			if( i < size - maxSize ){
+				// least recent first, would be evicted anyway
+				continue;
+			}
+			RepeatableError previous = map.put(key, e);
+			if( previous != null ){
+				// replace the slot of the previous error
+				for( int j=0; j<maxSize; j++ ){
+					Entry old = slots.get(j);
+					if( old != null && old.error == previous ){
+						slots.compareAndSet(j, old, new Entry(key, e));
+						e = null;
+						break;
+					}
+				}
+			}
+			if( e != null ){
+				store(new Entry(key, e));
+			}
+		}
+	}
 }
@@ -0,0 +1,118 @@
+package org.aktin.dwh.statistics;
+
+/**
+ * Normalizes error messages by masking variable tokens, so that
+ * errors with the same cause are counted together.
+ * <p>
+ * Words containing digits (numbers, timestamps, document and line
+ * numbers, UUIDs) and long hexadecimal words (hashes) are replaced
+ * by {@code #}. Masked words which are only separated by one of
+ * {@code - : . / +} are combined into a single {@code #}, e.g.
+ * {@code 2017-03-01T12:00:00Z} becomes {@code #}.
+ * </p>
+ * <p>
+ * Messages without variable tokens are returned unchanged
+ * without allocation. Other fingerprints are built in a buffer
+ * per thread, see {@link #mask(String)}, which is used for messages
+ * up to {@value #MAX_BUFFER_LENGTH} characters.
+ * </p>
+ */
+final class ErrorFingerprint {
+	static final char MASK = '#';
+	/** minimum length of words consisting only of hex digits to be masked */
+	private static final int MIN_HEX_LENGTH = 8;
+	/** longest message which is masked in the buffer of the thread, keeps the buffers small */
+	static final int MAX_BUFFER_LENGTH = 1024;
+
+	private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(StringBuilder::new);
+
+	private ErrorFingerprint(){
+	}
+
+	private static boolean isWordChar(char c){
+		return Character.isLetterOrDigit(c) || c == '_';
+	}
+
+	private static boolean isSeparator(char c){
+		return c == '-' || c == ':' || c == '.' || c == '/' || c == '+';
+	}
+
+	private static boolean isHex(char c){
+		return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+	}
+
+	/**
+	 * Calculate the fingerprint of an error message.
+	 * @param message error message, may be {@code null}
+	 * @return message with masked variable tokens or {@code null} if the message is {@code null}
+	 */
+	static String of(String message){
+		CharSequence fingerprint = mask(message);
+		if( fingerprint == null ){
+			return null;
+		}
+		return fingerprint.toString();
+	}
+
+	/**
+	 * Calculate the fingerprint of an error message without creating
+	 * a string. The fingerprint of a message with variable tokens is
+	 * usually returned in the buffer of the calling thread, which is
+	 * overwritten by the next call.
+	 * @param message error message, may be {@code null}
+	 * @return the message itself if it has no variable tokens, the masked
+	 *  message or {@code null} if the message is {@code null}
+	 */
+	static CharSequence mask(String message){
+		if( message == null ){
+			return null;
+		}
+		int length = message.length();
+		StringBuilder b = null;
+		// position in the builder after the last mask
+		int maskEnd = -1;
+		// start of the text not yet copied to the builder
+		int copied = 0;
+		int i = 0;
+		while( i < length ){
+			if( !isWordChar(message.charAt(i)) ){
+				i ++;
+				continue;
+			}
+			int start = i;
+			boolean digit = false;
+			boolean hex = true;
+			while( i < length && isWordChar(message.charAt(i)) ){
+				char c = message.charAt(i);
+				digit |= Character.isDigit(c);
+				hex &= isHex(c);
+				i ++;
+			}
+			if( !digit && !(hex && i - start >= MIN_HEX_LENGTH) ){
+				continue;
+			}
+			if( b == null ){
+				if( length > MAX_BUFFER_LENGTH ){
+					b = new StringBuilder(length);
+				}else{
+					b = BUFFER.get();
+					b.setLength(0);
+				}
+			}
+			b.append(message, copied, start);
+			copied = i;
+			if( b.length() == maskEnd + 1 && isSeparator(b.charAt(maskEnd)) ){
+				// continue the previous mask
+				b.setLength(maskEnd);
+			}else{
+				b.append(MASK);
+			}
+			maskEnd = b.length();
+		}
+		if( b == null ){
+			return message;
+		}
+		b.append(message, copied, length);
+		return b;
+	}
+}
@@ -0,0 +1,291 @@
+package org.aktin.dwh.statistics;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Ring buffer of event counts in fixed time buckets, e.g. one
+ * bucket per second for the last minute.
+ * <p>
+ * Recording an event is lock-free and does not allocate. Every counter
+ * is tagged with the time slot it counts, so that a bucket is reused by
+ * a single atomic update once its time has passed the size of the buffer.
+ * Thus no events are lost when buckets are reused concurrently.
+ * </p>
+ * <p>
+ * Windows can be chained to cover longer time spans at lower resolution.
+ * Events are recorded only in the finest window. When a bucket is reused,
+ * its count is moved to the next coarser window. Events which are older
+ * than the bucket are passed to the coarser window directly, or ignored
+ * by the coarsest window. Use {@link #statistics(Duration, long, EventWindow...)}
+ * to count the events of chained windows.
+ * </p>
+ */
+final class EventWindow {
+	static final int CREATED = 0;
+	static final int UPDATED = 1;
+	static final int REJECTED = 2;
+	private static final int TYPES = 3;
+
+	/**
+	 * number of low bits holding the count, the high bits hold the slot tag.
+	 * Tags wrap after 2<sup>32</sup> slots, i.e. more than 100 years for one second buckets.
+	 */
+	private static final int COUNT_BITS = 32;
+	private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+	private static final long TAG_MASK = (1L << (64 - COUNT_BITS)) - 1;
+	/** marks counters which were never used */
+	private static final long UNUSED = -1;
+
+	/** bucket width in milliseconds */
+	private final long width;
+	private final int size;
+	/** tagged counters per bucket and type, at {@code bucket * TYPES + type} */
+	private final AtomicLongArray counts;
+	/** receives the counts of reused buckets, {@code null} for the coarsest window */
+	private final EventWindow coarser;
+	/** most recently used slot, avoids the divisions for events within the same bucket */
+	private volatile Slot current;
+
+	/**
+	 * Time slot of a bucket
+	 */
+	private static final class Slot{
+		/** slot number, i.e. the start time divided by the width */
+		final long slot;
+		/** time range {@code [start, end)} of the slot */
+		final long start;
+		final long end;
+		/** index of the first counter of the bucket */
+		final int index;
+
+		Slot(long slot, long width, int size){
+			this.slot = slot;
+			this.start = slot * width;
+			this.end = start + width;
+			this.index = (int)(slot % size) * TYPES;
+		}
+	}
+
+	/**
+	 * Create a window.
+	 * @param width bucket width in milliseconds
+	 * @param size number of buckets
+	 */
+	EventWindow(long width, int size){
+		this(width, size, null);
+	}
+
+	/**
+	 * Create a window which moves the counts of reused buckets
+	 * to a coarser window.
+	 * @param width bucket width in milliseconds, must divide the width of the coarser window
+	 * @param size number of buckets
+	 * @param coarser window with wider buckets, may be {@code null}
+	 */
+	EventWindow(long width, int size, EventWindow coarser){
+		this.width = width;
+		this.size = size;
+		this.coarser = coarser;
+		this.counts = new AtomicLongArray(size * TYPES);
+		for( int i=0; i<counts.length(); i++ ){
+			counts.set(i, UNUSED);
+		}
+		this.current = new Slot(0, width, size);
+	}
+
+	/**
+	 * @param timestamp time
+	 * @return slot containing the time
+	 */
+	private Slot slot(long timestamp){
+		Slot s = current;
+		if( timestamp < s.start || timestamp >= s.end ){
+			s = new Slot(timestamp / width, width, size);
+			if( timestamp >= current.start ){
+				current = s;
+			}
+		}
+		return s;
+	}
+
+	long getWidth(){
+		return width;
+	}
+
+	int getSize(){
+		return size;
+	}
+
+	/**
+	 * @return longest time span in milliseconds which is covered by the buckets
+	 */
+	private long span(){
+		return width * (size - 1);
+	}
+
+	private static long tag(long slot){
+		return slot & TAG_MASK;
+	}
+
+	/**
+	 * Distance between two slots, from their tags.
+	 * @return number of slots from {@code tag} to {@code current}, negative if {@code tag} is later
+	 */
+	private static long age(long current, long tag){
+		long d = (current - tag) & TAG_MASK;
+		if( d > TAG_MASK / 2 ){
+			d -= TAG_MASK + 1;
+		}
+		return d;
+	}
+
+	/**
+	 * Count an event.
+	 * @param type event type, e.g. {@link #CREATED}
+	 * @param timestamp time of the event
+	 */
+	void record(int type, long timestamp){
+		add(type, timestamp, 1);
+	}
+
+	/**
+	 * Count events in the bucket of the given time.
+	 * @param type event type
+	 * @param timestamp time of the events
+	 * @param count number of events
+	 */
+	private void add(int type, long timestamp, long count){
+		Slot s = slot(timestamp);
+		long slot = s.slot;
+		long tag = tag(slot);
+		int i = s.index + type;
+		while( true ){
+			long v = counts.get(i);
+			long next;
+			long age = 0;
+			if( v == UNUSED ){
+				next = (tag << COUNT_BITS) | count;
+			}else{
+				age = age(tag, v >>> COUNT_BITS);
+				if( age == 0 ){
+					next = v + count;
+				}else if( age > 0 ){
+					// counter expired, start counting from the new events
+					next = (tag << COUNT_BITS) | count;
+				}else{
+					// counter already reused for a later time
+					if( coarser != null ){
+						coarser.add(type, timestamp, count);
+					}
+					return;
+				}
+			}
+			if( counts.compareAndSet(i, v, next) ){
+				if( age > 0 && coarser != null ){
+					// move the expired count
+					coarser.add(type, (slot - age) * width, v & COUNT_MASK);
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Sum the events of the most recent buckets of this window.
+	 * @param timestamp current time
+	 * @param buckets number of buckets including the current one, at most {@link #getSize()}
+	 * @return counts indexed by type
+	 */
+	long[] sum(long timestamp, int buckets){
+		long[] sums = new long[TYPES];
+		sum(timestamp, (timestamp / width - buckets + 1) * width, sums);
+		return sums;
+	}
+
+	/**
+	 * Add the events of the buckets from the bucket containing {@code from}
+	 * up to the bucket containing {@code timestamp}.
+	 * @param timestamp current time
+	 * @param from start of the time span
+	 * @param sums counts indexed by type, incremented by this window
+	 */
+	private void sum(long timestamp, long from, long[] sums){
+		long slot = timestamp / width;
+		long tag = tag(slot);
+		long maxAge = slot - from / width;
+		for( int i=0; i<counts.length(); i++ ){
+			long v = counts.get(i);
+			if( v == UNUSED ){
+				continue;
+			}
+			long age = age(tag, v >>> COUNT_BITS);
+			if( age >= 0 && age <= maxAge ){
+				sums[i % TYPES] += v & COUNT_MASK;
+			}
+		}
+	}
+
+	/**
+	 * Count the events of chained windows within a recent time span.
+	 * The finest window which covers the span is used, together with the
+	 * counts of finer windows which were not yet moved to it. The span is
+	 * extended to the start of the bucket containing its beginning. A window
+	 * covers spans up to the width of all buckets but one, since the current
+	 * bucket is incomplete. Rates are calculated for the time actually covered.
+	 * @param span time span
+	 * @param timestamp current time
+	 * @param windows chained windows, finest first
+	 * @return counts and rates of the events
+	 * @throws IllegalArgumentException if the span is not positive or not covered by the coarsest window
+	 */
+	static WindowStatistics statistics(Duration span, long timestamp, EventWindow... windows){
+		long millis = span.toMillis();
+		int level = 0;
+		while( level < windows.length && millis > windows[level].span() ){
+			level ++;
+		}
+		if( millis <= 0 || level == windows.length ){
+			EventWindow last = windows[windows.length - 1];
+			throw new IllegalArgumentException("Time span must be positive and at most "+Duration.ofMillis(last.span())+": "+span);
+		}
+		EventWindow w = windows[level];
+		long from = (timestamp - millis) / w.width * w.width;
+		long[] sums = new long[TYPES];
+		for( int i=0; i<=level; i++ ){
+			windows[i].sum(timestamp, from, sums);
+		}
+		// the oldest bucket leaves the span once its end is older than the span
+		return new WindowStatistics(span, sums, timestamp - from, from + w.width + millis);
+	}
+
+	/**
+	 * Write the buckets, see {@link #read(DataInput)}.
+	 * @param out output
+	 * @throws IOException write error
+	 */
+	void write(DataOutput out) throws IOException{
+		out.writeLong(width);
+		out.writeInt(size);
+		for( int i=0; i<counts.length(); i++ ){
+			out.writeLong(counts.get(i));
+		}
+	}
+
+	/**
+	 * Replace the buckets with previously written buckets.
+	 * @param in input
+	 * @throws IOException read error or different bucket layout
+	 */
+	void read(DataInput in) throws IOException{
+		if( in.readLong() != width || in.readInt() != size ){
+			throw new IOException("Different window layout");
+		}
+		for( int i=0; i<counts.length(); i++ ){
+			counts.set(i, in.readLong());
+		}
+	}
+}
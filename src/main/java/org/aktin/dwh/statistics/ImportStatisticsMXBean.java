@@ -0,0 +1,60 @@
+package org.aktin.dwh.statistics;
+
+/**
+ * Management interface for the import statistics. Registered with the
+ * platform MBean server as {@code org.aktin.dwh:type=ImportStatistics}
+ * by {@link ImportSummaryImpl#initialize()}.
+ * <p>
+ * Counts refer to the time since the last reset, see {@link #getStartTime()}.
+ * </p>
+ */
+public interface ImportStatisticsMXBean {
+
+	/**
+	 * @return start of the statistics in milliseconds since the epoch
+	 */
+	long getStartTime();
+
+	long getImportedCount();
+
+	long getUpdatedCount();
+
+	long getInvalidCount();
+
+	long getFailedCount();
+
+	/**
+	 * @return seconds since the last imported or updated document, {@code -1} if none
+	 */
+	long getLastWriteAgeSeconds();
+
+	/**
+	 * @return seconds since the last rejected document, {@code -1} if none
+	 */
+	long getLastRejectAgeSeconds();
+
+	/**
+	 * @return imported and updated documents per second during the last minute
+	 */
+	double getWritesPerSecond();
+
+	/**
+	 * @return fraction of rejected documents during the last five minutes
+	 */
+	double getRejectionRate();
+
+	/**
+	 * @return number of distinct errors in the error cache
+	 */
+	int getErrorCacheSize();
+
+	/**
+	 * @return maximum number of distinct errors in the error cache
+	 */
+	int getErrorCacheCapacity();
+
+	/**
+	 * @return number of errors removed from the full error cache
+	 */
+	long getErrorCacheEvictions();
+}
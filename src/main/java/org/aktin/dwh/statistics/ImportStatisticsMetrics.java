@@ -0,0 +1,189 @@
+package org.aktin.dwh.statistics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metrics of an {@link ImportSummaryImpl} for monitoring systems,
+ * see {@link ImportSummaryImpl#getMetrics()}.
+ * <p>
+ * Provides the {@link ImportStatisticsMXBean} attributes and the
+ * Prometheus text exposition format via {@link #writePrometheus(Writer)}.
+ * All values are read without locking.
+ * </p>
+ */
+public final class ImportStatisticsMetrics implements ImportStatisticsMXBean {
+	/** content type of the Prometheus text format */
+	public static final String PROMETHEUS_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private static final Duration WRITE_RATE_SPAN = Duration.ofMinutes(1);
+	private static final Duration REJECTION_RATE_SPAN = Duration.ofMinutes(5);
+
+	private final ImportSummaryImpl summary;
+
+	ImportStatisticsMetrics(ImportSummaryImpl summary){
+		this.summary = summary;
+	}
+
+	private static long ageSeconds(Long time){
+		if( time == null ){
+			return -1;
+		}
+		return TimeUnit.MILLISECONDS.toSeconds(Math.max(0, System.currentTimeMillis() - time));
+	}
+
+	@Override
+	public long getStartTime(){
+		return summary.getStartTime();
+	}
+
+	@Override
+	public long getImportedCount(){
+		return summary.getImportedCount();
+	}
+
+	@Override
+	public long getUpdatedCount(){
+		return summary.getUpdatedCount();
+	}
+
+	@Override
+	public long getInvalidCount(){
+		return summary.getInvalidCount();
+	}
+
+	@Override
+	public long getFailedCount(){
+		return summary.getFailedCount();
+	}
+
+	@Override
+	public long getLastWriteAgeSeconds(){
+		return ageSeconds(summary.getLastWriteTime());
+	}
+
+	@Override
+	public long getLastRejectAgeSeconds(){
+		return ageSeconds(summary.getLastRejectTime());
+	}
+
+	@Override
+	public double getWritesPerSecond(){
+		return summary.getWindowStatistics(WRITE_RATE_SPAN).getWriteRate();
+	}
+
+	@Override
+	public double getRejectionRate(){
+		return summary.getWindowStatistics(REJECTION_RATE_SPAN).getRejectionRate();
+	}
+
+	@Override
+	public int getErrorCacheSize(){
+		return summary.previousErrors.size();
+	}
+
+	@Override
+	public int getErrorCacheCapacity(){
+		return summary.previousErrors.getMaxSize();
+	}
+
+	@Override
+	public long getErrorCacheEvictions(){
+		return summary.previousErrors.getEvictionCount();
+	}
+
+	/**
+	 * Write the metrics in the Prometheus text exposition format,
+	 * see {@link #PROMETHEUS_TYPE}. Document counters start from zero
+	 * after a reset of the statistics, which is indicated by
+	 * {@code aktin_import_start_time_seconds}.
+	 * @param out destination
+	 * @throws IOException write error
+	 */
+	public void writePrometheus(Writer out) throws IOException{
+		ImportSummarySnapshot s = summary.snapshot();
+		long now = System.currentTimeMillis();
+
+		header(out, "aktin_import_start_time_seconds", "gauge", "Start of the import statistics since the epoch");
+		out.write("aktin_import_start_time_seconds "+seconds(s.getStartTime())+"\n");
+
+		header(out, "aktin_import_documents_total", "counter", "Documents processed since the start of the statistics");
+		documents(out, "", "imported", s.getImportedCount());
+		documents(out, "", "updated", s.getUpdatedCount());
+		documents(out, "", "invalid", s.getInvalidCount());
+		documents(out, "", "failed", s.getFailedCount());
+
+		if( !s.getTemplates().isEmpty() ){
+			header(out, "aktin_import_template_documents_total", "counter", "Documents processed per template since the start of the statistics");
+			for( TemplateStatistics t : s.getTemplates() ){
+				String label = "template=\""+escape(t.getTemplateId())+"\",";
+				documents(out, label, "imported", t.getImportedCount());
+				documents(out, label, "updated", t.getUpdatedCount());
+				documents(out, label, "invalid", t.getInvalidCount());
+				documents(out, label, "failed", t.getFailedCount());
+			}
+		}
+
+		// ages are omitted if there was no event, an absent series is easier to alert on than a magic value
+		if( s.getLastWriteTime() != null ){
+			header(out, "aktin_import_last_write_age_seconds", "gauge", "Time since the last imported or updated document");
+			out.write("aktin_import_last_write_age_seconds "+seconds(now - s.getLastWriteTime())+"\n");
+		}
+		if( s.getLastRejectTime() != null ){
+			header(out, "aktin_import_last_reject_age_seconds", "gauge", "Time since the last rejected document");
+			out.write("aktin_import_last_reject_age_seconds "+seconds(now - s.getLastRejectTime())+"\n");
+		}
+
+		header(out, "aktin_import_writes_per_second", "gauge", "Imported and updated documents per second within a recent time window");
+		for( WindowStatistics w : s.getRecentActivity() ){
+			out.write("aktin_import_writes_per_second{window=\""+w.getSpan()+"\"} "+w.getWriteRate()+"\n");
+		}
+		header(out, "aktin_import_rejection_rate", "gauge", "Fraction of rejected documents within a recent time window");
+		for( WindowStatistics w : s.getRecentActivity() ){
+			out.write("aktin_import_rejection_rate{window=\""+w.getSpan()+"\"} "+w.getRejectionRate()+"\n");
+		}
+
+		ErrorCache errors = summary.previousErrors;
+		header(out, "aktin_import_error_cache_entries", "gauge", "Distinct errors in the error cache");
+		out.write("aktin_import_error_cache_entries "+errors.size()+"\n");
+		header(out, "aktin_import_error_cache_capacity", "gauge", "Maximum number of distinct errors in the error cache");
+		out.write("aktin_import_error_cache_capacity "+errors.getMaxSize()+"\n");
+		header(out, "aktin_import_error_cache_evictions_total", "counter", "Errors removed from the full error cache");
+		out.write("aktin_import_error_cache_evictions_total "+errors.getEvictionCount()+"\n");
+		out.flush();
+	}
+
+	private static void header(Writer out, String name, String type, String help) throws IOException{
+		out.write("# HELP "+name+" "+help+"\n");
+		out.write("# TYPE "+name+" "+type+"\n");
+	}
+
+	private static void documents(Writer out, String labels, String result, long count) throws IOException{
+		String name = labels.isEmpty() ? "aktin_import_documents_total" : "aktin_import_template_documents_total";
+		out.write(name+"{"+labels+"result=\""+result+"\"} "+count+"\n");
+	}
+
+	private static double seconds(long millis){
+		return millis / 1000.0;
+	}
+
+	/**
+	 * Escape a label value
+	 */
+	private static String escape(String value){
+		StringBuilder b = new StringBuilder(value.length());
+		for( int i=0; i<value.length(); i++ ){
+			char c = value.charAt(i);
+			if( c == '\\' || c == '"' ){
+				b.append('\\').append(c);
+			}else if( c == '\n' ){
+				b.append("\\n");
+			}else{
+				b.append(c);
+			}
+		}
+		return b.toString();
+	}
+}
@@ -1,10 +1,36 @@
 package org.aktin.dwh.statistics;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+import javax.inject.Inject;
 import javax.inject.Singleton;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlElement;
@@ -12,78 +38,526 @@ import javax.xml.bind.annotation.XmlElementWrapper;
 import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.bind.annotation.XmlType;
 
+import org.aktin.Preferences;
 import org.aktin.dwh.ImportSummary;
+import org.aktin.dwh.prefs.impl.PreferenceType;
 
 /**
  * Count statistics
+ * <p>
+ * Counting does not acquire a lock. The counters are striped
+ * ({@link LongAdder}), so that parallel import threads do not
+ * contend. Every event updates only the counters of its template
+ * and the time window, the totals are summed when they are read.
+ * Repeated errors are counted without locking by the
+ * {@link ErrorCache}. Error messages which differ only in variable
+ * tokens like numbers or ids are counted as one error, see {@link ErrorFingerprint}.
+ * Use {@link #snapshot()} to obtain an immutable view
+ * for marshalling, in which all getters return the same values.
+ * The snapshot is weakly consistent, see {@link #snapshot()}.
+ * </p>
+ * <p>
+ * Events with a template id are listed per template,
+ * see {@link #getTemplateStatistics()}. At most {@value #MAX_TEMPLATES}
+ * template ids are counted separately, events with further template
+ * ids are counted for {@value #OTHER_TEMPLATES}.
+ * </p>
+ * <p>
+ * Recent throughput and rejection rates are counted in time buckets
+ * (per second for the last minute, per minute for the last hour and per
+ * hour for the last day), see {@link #getWindowStatistics(Duration)}.
+ * </p>
+ * <p>
+ * If the preference {@value #PERSIST_KEY} is {@code true}, the statistics
+ * survive restarts of the application server. They are written periodically
+ * by the managed scheduled executor of the container to the file
+ * {@value #STATE_FILE} in the server data directory and restored on startup.
+ * </p>
+ * <p>
+ * For frequent polling, {@link #getRepresentation()} returns a cached XML
+ * and JSON representation with an entity tag, which is regenerated only
+ * after events or when counts leave the time windows.
+ * </p>
+ * <p>
+ * For monitoring, the counters are registered as {@link ImportStatisticsMXBean}
+ * and available in the Prometheus text format, see {@link #getMetrics()}.
+ * </p>
  * @author marap1
  *
  */
 @Singleton
 @XmlAccessorType(XmlAccessType.NONE)
 @XmlRootElement(name="import-statistics")
-@XmlType(propOrder={"start","lastWrite","lastFailure","importedCount","updatedCount","invalidCount","failedCount","lastRepeatedErrors"})
+@XmlType(propOrder={"start","lastWrite","lastFailure","importedCount","updatedCount","invalidCount","failedCount","lastRepeatedErrors","templateStatistics","recentActivity"})
 public class ImportSummaryImpl implements ImportSummary{
+	private static final Logger log = Logger.getLogger(ImportSummaryImpl.class.getName());
+	/** preference to keep the statistics across restarts, default {@code false} */
+	public static final String PERSIST_KEY = "import.statistics.persist";
+	/** preference with the interval for writing the statistics to disk */
+	public static final String FLUSH_INTERVAL_KEY = "import.statistics.flush";
+	private static final Duration DEFAULT_FLUSH_INTERVAL = Duration.ofMinutes(1);
+	/** name of the file in the server data directory which stores the statistics */
+	static final String STATE_FILE = "aktin-import-statistics.bin";
+	/** maximum number of template ids with separate statistics */
+	public static final int MAX_TEMPLATES = 100;
+	/** template id which counts the events of all template ids beyond {@link #MAX_TEMPLATES} */
+	public static final String OTHER_TEMPLATES = "other";
 
-	/** Timestamp since when the summary is logging
-	 * (or when it was last cleared/deleted)
+	/**
+	 * Counters since the last reset. Replaced as a whole by {@link ImportSummaryImpl#reset()}.
 	 */
-	protected long since;
-	protected Long lastErrorTime;
-	protected Long lastImportTime;
-	// all fields are used by JAXB
-	protected int numValidationFailed;
-	protected int numRejected;
-	protected int numCreated;
-	protected int numUpdated;
+	private static class Counters{
+		/** Timestamp since when the summary is logging
+		 * (or when it was last cleared/deleted)
+		 */
+		final long since;
+		/** change count of the replaced counters, keeps the change count increasing across resets */
+		final long base;
+		/** statistics of the events without template id. After {@link ImportSummaryImpl#readState(DataInput)},
+		 * the timestamps are those of all events. */
+		final TemplateStatistics untemplated;
+		/** statistics per template id */
+		final ConcurrentHashMap<String, TemplateStatistics> templates;
+		/** number of template ids with separate statistics, excluding {@link #OTHER_TEMPLATES} */
+		final AtomicInteger templateCount;
+		/** recent events in buckets of one second, one minute and one hour.
+		 * Events are recorded per second and moved to the coarser windows
+		 * when the buckets are reused. */
+		final EventWindow seconds;
+		final EventWindow minutes;
+		final EventWindow hours;
+
+		Counters(long since, long base){
+			this.since = since;
+			this.base = base;
+			untemplated = new TemplateStatistics(null);
+			templates = new ConcurrentHashMap<>();
+			templateCount = new AtomicInteger();
+			// one additional bucket for spans which do not start at a bucket boundary
+			hours = new EventWindow(60 * 60 * 1000, 25);
+			minutes = new EventWindow(60 * 1000, 61, hours);
+			seconds = new EventWindow(1000, 61, minutes);
+		}
+
+		void record(int type, long timestamp){
+			seconds.record(type, timestamp);
+		}
+
+		/**
+		 * @return number of events since the creation of the summary instance, plus the number of resets
+		 */
+		long changeCount(){
+			return base + totalCount();
+		}
+
+		/**
+		 * @return number of events since the last reset
+		 */
+		long totalCount(){
+			long n = untemplated.totalCount();
+			for( TemplateStatistics t : templates.values() ){
+				n += t.totalCount();
+			}
+			return n;
+		}
+
+		/**
+		 * @return sum of the statistics of all templates and the events without template id
+		 */
+		TemplateStatistics totals(){
+			return totals(templates.values());
+		}
+
+		/**
+		 * Sum the given template statistics and the events without template id.
+		 * The events without template id are read last, so that events
+		 * counted concurrently are not missing from the totals
+		 * if they are contained in the given statistics.
+		 * @param parts statistics of the templates
+		 * @return totals
+		 */
+		TemplateStatistics totals(Collection<TemplateStatistics> parts){
+			TemplateStatistics sum = new TemplateStatistics(null);
+			for( TemplateStatistics t : parts ){
+				t.addTo(sum);
+			}
+			untemplated.addTo(sum);
+			return sum;
+		}
+
+		WindowStatistics window(Duration span, long timestamp){
+			return EventWindow.statistics(span, timestamp, seconds, minutes, hours);
+		}
+
+		/**
+		 * Get the statistics for a template. Existing templates
+		 * are found without locking or allocation. If the maximum
+		 * number of templates is reached, the statistics of
+		 * {@link #OTHER_TEMPLATES} are returned for new template ids.
+		 * @param templateId template id
+		 * @return statistics, {@link #untemplated} if the template id is {@code null}
+		 */
+		TemplateStatistics template(String templateId){
+			if( templateId == null ){
+				return untemplated;
+			}
+			TemplateStatistics t = templates.get(templateId);
+			if( t == null ){
+				t = templates.computeIfAbsent(templateId, this::newTemplate);
+				if( t == null ){
+					t = templates.computeIfAbsent(OTHER_TEMPLATES, TemplateStatistics::new);
+				}
+			}
+			return t;
+		}
+
+		/**
+		 * Create statistics for a new template id, if the maximum
+		 * number of templates is not reached.
+		 * @param templateId template id
+		 * @return statistics or {@code null} if there are too many templates
+		 */
+		private TemplateStatistics newTemplate(String templateId){
+			int n;
+			do{
+				n = templateCount.get();
+				if( n >= MAX_TEMPLATES ){
+					return null;
+				}
+			}while( !templateCount.compareAndSet(n, n + 1) );
+			return new TemplateStatistics(templateId);
+		}
+	}
+	/** time spans of the recent activity in the XML representation */
+	private static final Duration[] RECENT_SPANS = {
+			Duration.ofMinutes(1), Duration.ofMinutes(5),
+			Duration.ofHours(1), Duration.ofHours(24)};
+
+	private volatile Counters counters;
+	/** distinguishes entity tags of different instances, e.g. after a restart */
+	private final String instance;
+	private final AtomicReference<StatisticsRepresentation> representation;
+	private final ImportStatisticsMetrics metrics;
+	/** name of the registered MBean or {@code null} */
+	private ObjectName mbeanName;
 
 	// error cache (protected for unit tests)
-	protected ErrorCache previousErrors;
+	protected volatile ErrorCache previousErrors;
+
+	@Inject
+	private Preferences prefs;
+	/** persistent storage, {@code null} if disabled */
+	private StatisticsStore store;
+	/** writes the statistics periodically, {@code null} outside of a container */
+	@Resource
+	private ManagedScheduledExecutorService scheduler;
+	/** periodic write, {@code null} if not scheduled */
+	private ScheduledFuture<?> flushTask;
+	/** start time and total count at the last flush, to skip unchanged states */
+	private long flushedSince;
+	private long flushedTotal;
 
 	public ImportSummaryImpl(){
-		since = System.currentTimeMillis();
+		counters = new Counters(System.currentTimeMillis(), 0);
 		previousErrors = new ErrorCache(20);
+		instance = Long.toHexString(counters.since);
+		representation = new AtomicReference<>();
+		metrics = new ImportStatisticsMetrics(this);
+	}
+
+	/**
+	 * Register the {@link ImportStatisticsMXBean} and enable
+	 * persistence if configured in the preferences.
+	 */
+	@PostConstruct
+	public void initialize(){
+		registerMBean();
+		if( prefs == null || !Boolean.TRUE.equals(PreferenceType.BOOLEAN.get(prefs, PERSIST_KEY)) ){
+			return;
+		}
+		String dataDir = System.getProperty("jboss.server.data.dir");
+		if( dataDir == null ){
+			log.warning("Server data directory unknown, import statistics are not persisted");
+			return;
+		}
+		Duration interval = PreferenceType.DURATION.get(prefs, FLUSH_INTERVAL_KEY);
+		if( interval == null ){
+			interval = DEFAULT_FLUSH_INTERVAL;
+		}
+		enablePersistence(Paths.get(dataDir, STATE_FILE), interval);
+	}
+
+	/**
+	 * Restore the statistics from the given file, if it exists, and
+	 * write them periodically to the file. Without a managed scheduled
+	 * executor, the statistics are written only by {@link #flush()} and
+	 * {@link #close()}. Events counted before this call are replaced by
+	 * the restored statistics.
+	 * @param file file for the statistics
+	 * @param interval time between two writes
+	 */
+	public synchronized void enablePersistence(Path file, Duration interval){
+		if( store != null ){
+			throw new IllegalStateException("Persistence already enabled for "+store.getFile());
+		}
+		store = new StatisticsStore(file);
+		long start = System.nanoTime();
+		if( store.load(this) ){
+			log.info("Import statistics restored from "+file+" in "+TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)+"ms");
+		}
+		markFlushed();
+		if( scheduler == null ){
+			log.warning("No managed scheduled executor, import statistics are written only on shutdown");
+			return;
+		}
+		long millis = interval.toMillis();
+		flushTask = scheduler.scheduleWithFixedDelay(this::flushQuietly, millis, millis, TimeUnit.MILLISECONDS);
+	}
+
+	private void markFlushed(){
+		Counters c = counters;
+		flushedSince = c.since;
+		flushedTotal = c.totalCount();
+	}
+
+	/**
+	 * Write the statistics to the persistent storage, if enabled
+	 * and changed since the last write.
+	 * @throws IOException write error
+	 */
+	public synchronized void flush() throws IOException{
+		if( store == null ){
+			return;
+		}
+		Counters c = counters;
+		if( c.since == flushedSince && c.totalCount() == flushedTotal ){
+			return;
+		}
+		long since = c.since;
+		long total = c.totalCount();
+		store.save(this);
+		flushedSince = since;
+		flushedTotal = total;
+	}
+
+	private void flushQuietly(){
+		try{
+			flush();
+		}catch( IOException e ){
+			log.log(Level.WARNING, "Unable to write import statistics to "+store.getFile(), e);
+		}
+	}
+
+	private synchronized void registerMBean(){
+		if( mbeanName != null ){
+			return;
+		}
+		try{
+			ObjectName name = new ObjectName("org.aktin.dwh:type=ImportStatistics");
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if( server.isRegistered(name) ){
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(metrics, name);
+			mbeanName = name;
+		}catch( JMException e ){
+			log.log(Level.WARNING, "Unable to register import statistics MBean", e);
+		}
+	}
+
+	/**
+	 * Unregister the MBean, stop the periodic writes and write
+	 * the statistics a last time.
+	 */
+	@PreDestroy
+	public synchronized void close(){
+		if( mbeanName != null ){
+			try{
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+			}catch( JMException e ){
+				log.log(Level.WARNING, "Unable to unregister import statistics MBean", e);
+			}
+			mbeanName = null;
+		}
+		if( store == null ){
+			return;
+		}
+		if( flushTask != null ){
+			flushTask.cancel(false);
+			flushTask = null;
+		}
+		flushQuietly();
+		store = null;
+	}
+
+	/**
+	 * @return metrics for monitoring systems
+	 */
+	public ImportStatisticsMetrics getMetrics(){
+		return metrics;
+	}
+
+	/**
+	 * Write the state for {@link StatisticsStore}. Events counted
+	 * concurrently may be partially included.
+	 * @param out output
+	 * @throws IOException write error
+	 */
+	void writeState(DataOutput out) throws IOException{
+		Counters c = counters;
+		out.writeLong(c.since);
+		List<TemplateStatistics> templates = copyTemplates(c);
+		c.totals(templates).writeValues(out);
+		out.writeInt(templates.size());
+		for( TemplateStatistics t : templates ){
+			t.write(out);
+		}
+		c.seconds.write(out);
+		c.minutes.write(out);
+		c.hours.write(out);
+		previousErrors.write(out);
+	}
+
+	/**
+	 * Replace the state with the state written by {@link #writeState(DataOutput)}.
+	 * The state is replaced only if it was read completely.
+	 * @param in input
+	 * @throws IOException read error
+	 */
+	void readState(DataInput in) throws IOException{
+		Counters c = new Counters(in.readLong(), counters.changeCount() + 1);
+		// totals, the template counts are subtracted below
+		c.untemplated.readValues(in);
+		int templates = in.readInt();
+		for( int i=0; i<templates; i++ ){
+			TemplateStatistics t = TemplateStatistics.read(in);
+			c.untemplated.removeCounts(t);
+			if( c.templates.put(t.getTemplateId(), t) == null && !t.getTemplateId().equals(OTHER_TEMPLATES) ){
+				c.templateCount.incrementAndGet();
+			}
+		}
+		c.seconds.read(in);
+		c.minutes.read(in);
+		c.hours.read(in);
+		ErrorCache errors = new ErrorCache(previousErrors.getMaxSize());
+		errors.read(in);
+		counters = c;
+		previousErrors = errors;
 	}
 
+	/**
+	 * Start counting from zero. Events which are counted
+	 * concurrently to the reset may be lost.
+	 */
 	@Override
 	public void reset(){
-		numRejected = 0;
-		numValidationFailed = 0;
-		numCreated = 0;
-		numUpdated = 0;
-		this.previousErrors.clear();
-		this.since = System.currentTimeMillis();
-		this.lastErrorTime = null;
-		this.lastImportTime = null;
-	}
-
-	// TODO count repeating errors without adding duplicates to the list. e.g. via ordered hash map
-	
+		counters = new Counters(System.currentTimeMillis(), counters.changeCount() + 1);
+		previousErrors.clear();
+	}
+
 	@Override
-	public synchronized void addRejected(String templateId, boolean valid, String error){
-		if( valid == false ){
-			numValidationFailed ++;
-		}else{
-			numRejected ++;
-		}
-		this.lastErrorTime = System.currentTimeMillis();
-		previousErrors.add(error, this.lastErrorTime);
+	public void addRejected(String templateId, boolean valid, String error){
+		Counters c = counters;
+		long now = System.currentTimeMillis();
+		c.template(templateId).addRejected(valid, now);
+		c.record(EventWindow.REJECTED, now);
+		// messages without variable tokens are found without fingerprint,
+		// other fingerprints are created as strings only for new errors
+		previousErrors.add(error, ErrorFingerprint::mask, now);
 	}
 
 	@Override
 	public void addCreated(String templateId){
-		this.lastImportTime = System.currentTimeMillis();
-		this.numCreated ++;
+		Counters c = counters;
+		long now = System.currentTimeMillis();
+		c.template(templateId).addCreated(now);
+		c.record(EventWindow.CREATED, now);
 	}
 	@Override
 	public void addUpdated(String templateId){
-		this.lastImportTime = System.currentTimeMillis();
-		this.numUpdated ++;
+		Counters c = counters;
+		long now = System.currentTimeMillis();
+		c.template(templateId).addUpdated(now);
+		c.record(EventWindow.UPDATED, now);
+	}
+
+	/**
+	 * Create an immutable copy of the current statistics.
+	 * <p>
+	 * The copy is weakly consistent: events counted concurrently may
+	 * be missing from some parts. The parts are read in the reverse order
+	 * of counting, so that the errors and time windows never contain more
+	 * events than the template counts. The totals are the sums of the
+	 * copied template counts.
+	 * </p>
+	 * @return snapshot
+	 */
+	public ImportSummarySnapshot snapshot(){
+		Counters c = counters;
+		// errors and windows are updated after the template counts
+		List<RepeatableError> errors = copyErrors();
+		List<WindowStatistics> recent = recentActivity(c);
+		List<TemplateStatistics> templates = copyTemplates(c);
+		TemplateStatistics totals = c.totals(templates);
+		return new ImportSummarySnapshot(c.since,
+				totals.getLastWriteTime(), totals.getLastRejectTime(),
+				totals.getImportedCount(), totals.getUpdatedCount(),
+				totals.getInvalidCount(), totals.getFailedCount(),
+				errors, templates, recent);
+	}
+
+	/**
+	 * Get the XML and JSON representation of the statistics. The
+	 * representation is cached and regenerated only if events were counted
+	 * since, or if events of the time windows may have left their span.
+	 * Rates are calculated when the representation is generated.
+	 * Unchanged content keeps its version and entity tag.
+	 * @return representation
+	 */
+	public StatisticsRepresentation getRepresentation(){
+		long n = counters.changeCount();
+		StatisticsRepresentation r = representation.get();
+		if( r != null && r.getChanges() == n && System.currentTimeMillis() < r.getExpiry() ){
+			return r;
+		}
+		StatisticsRepresentation updated = StatisticsRepresentation.create(snapshot(), instance, n, r);
+		if( !representation.compareAndSet(r, updated) ){
+			// generated concurrently by another thread
+			return representation.get();
+		}
+		return updated;
+	}
+
+	private List<RepeatableError> copyErrors(){
+		Collection<RepeatableError> errors = previousErrors.values();
+		List<RepeatableError> l = new ArrayList<>(errors.size());
+		for( RepeatableError e : errors ){
+			l.add(new RepeatableError(e));
+		}
+		return l;
+	}
+
+	private static List<TemplateStatistics> copyTemplates(Counters c){
+		List<TemplateStatistics> l = new ArrayList<>(c.templates.size());
+		for( TemplateStatistics t : c.templates.values() ){
+			l.add(t.copy());
+		}
+		l.sort(Comparator.comparing(TemplateStatistics::getTemplateId));
+		return l;
+	}
+
+	private static List<WindowStatistics> recentActivity(Counters c){
+		long now = System.currentTimeMillis();
+		List<WindowStatistics> l = new ArrayList<>(RECENT_SPANS.length);
+		for( Duration span : RECENT_SPANS ){
+			l.add(c.window(span, now));
+		}
+		return l;
 	}
 
 	@Override
 	public long getStartTime() {
-		return since;
+		return counters.since;
 	}
 	@XmlElement
 	public Date getStart(){
@@ -93,7 +567,7 @@ public class ImportSummaryImpl implements ImportSummary{
 
 	@Override
 	public Long getLastWriteTime() {
-		return lastImportTime;
+		return counters.totals().getLastWriteTime();
 	}
 
 	private static Date dateOrNull(Long ms){
@@ -111,7 +585,7 @@ public class ImportSummaryImpl implements ImportSummary{
 
 	@Override
 	public Long getLastRejectTime() {
-		return lastErrorTime;
+		return counters.totals().getLastRejectTime();
 	}
 
 	@XmlElement(name="last-reject")
@@ -122,40 +596,99 @@ public class ImportSummaryImpl implements ImportSummary{
 	@Override
 	@XmlElement(name="failed")
 	public int getFailedCount() {
-		return numRejected;
+		return counters.totals().getFailedCount();
 	}
 
 
 	@Override
 	@XmlElement(name="invalid")
 	public int getInvalidCount() {
-		return numValidationFailed;
+		return counters.totals().getInvalidCount();
 	}
 
 
 	@Override
 	@XmlElement(name="imported")
 	public int getImportedCount() {
-		return numCreated;
+		return counters.totals().getImportedCount();
 	}
 	@Override
 	@XmlElement(name="updated")
 	public int getUpdatedCount() {
-		return numUpdated;
+		return counters.totals().getUpdatedCount();
 	}
 
 
 	@XmlElementWrapper(name="last-errors")
 	@XmlElement(name="error")
-	public synchronized List<RepeatableError> getLastRepeatedErrors() {
-		List<RepeatableError> l = new ArrayList<>(previousErrors.values());
-		return l;
+	public List<RepeatableError> getLastRepeatedErrors() {
+		return copyErrors();
 	}
 
 	@Override
-	public synchronized Iterable<String> getLastErrors() {
-		List<String> l = new ArrayList<>(previousErrors.size());
+	public Iterable<String> getLastErrors() {
+		List<String> l = new ArrayList<>(previousErrors.getMaxSize());
 		previousErrors.forEach( (a,b) -> l.add(a) );
 		return l;
 	}
+
+	/**
+	 * Get the statistics for every template id which occurred
+	 * since the last reset.
+	 * @return copies of the statistics, ordered by template id.
+	 *  {@code null} if no template ids were given, which omits the
+	 *  element in the XML representation.
+	 */
+	@XmlElementWrapper(name="templates")
+	@XmlElement(name="template")
+	public List<TemplateStatistics> getTemplateStatistics(){
+		Counters c = counters;
+		if( c.templates.isEmpty() ){
+			return null;
+		}
+		return copyTemplates(c);
+	}
+
+	/**
+	 * Get the statistics for a single template.
+	 * @param templateId template id or {@link #OTHER_TEMPLATES}
+	 * @return copy of the statistics or {@code null} if the template id is {@code null},
+	 *  did not occur since the last reset or is counted for {@link #OTHER_TEMPLATES}
+	 */
+	public TemplateStatistics getTemplateStatistics(String templateId){
+		if( templateId == null ){
+			return null;
+		}
+		TemplateStatistics t = counters.templates.get(templateId);
+		if( t == null ){
+			return null;
+		}
+		return t.copy();
+	}
+
+	/**
+	 * Count the events within a recent time span. The span is extended
+	 * to the start of the second, minute or hour in which it begins,
+	 * depending on its length. Rates refer to the extended time, see
+	 * {@link WindowStatistics#getCoveredTime()}.
+	 * Events before the last reset are not counted.
+	 * @param span time span up to 24 hours, e.g. {@code Duration.ofMinutes(5)}
+	 * @return counts and rates of the events within the span
+	 * @throws IllegalArgumentException if the span is not positive or longer than 24 hours
+	 */
+	public WindowStatistics getWindowStatistics(Duration span){
+		Objects.requireNonNull(span);
+		return counters.window(span, System.currentTimeMillis());
+	}
+
+	/**
+	 * Get the recent activity for the last minute, five minutes,
+	 * hour and 24 hours.
+	 * @return statistics per time span
+	 */
+	@XmlElementWrapper(name="recent")
+	@XmlElement(name="window")
+	public List<WindowStatistics> getRecentActivity(){
+		return recentActivity(counters);
+	}
 }
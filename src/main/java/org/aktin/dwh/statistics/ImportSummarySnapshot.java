@@ -0,0 +1,234 @@
+package org.aktin.dwh.statistics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlElementWrapper;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+
+/**
+ * Immutable copy of the import statistics at a point in time,
+ * see {@link ImportSummaryImpl#snapshot()}. The XML representation
+ * is the same as for {@link ImportSummaryImpl}. A JSON representation
+ * with the same names is available via {@link #writeJson(Writer)}.
+ * Events counted while the copy is created may be included only
+ * in the totals, see {@link ImportSummaryImpl#snapshot()}.
+ */
+@XmlAccessorType(XmlAccessType.NONE)
+@XmlRootElement(name="import-statistics")
+@XmlType(propOrder={"start","lastWrite","lastFailure","importedCount","updatedCount","invalidCount","failedCount","lastRepeatedErrors","templateStatistics","recentActivity"})
+public class ImportSummarySnapshot {
+	private static final JsonGeneratorFactory JSON = Json.createGeneratorFactory(null);
+	private long start;
+	private Long lastWrite;
+	private Long lastReject;
+	private int imported;
+	private int updated;
+	private int invalid;
+	private int failed;
+	private List<RepeatableError> lastErrors;
+	private List<TemplateStatistics> templates;
+	private List<WindowStatistics> recent;
+
+	/**
+	 * Constructor for JAXB
+	 */
+	protected ImportSummarySnapshot(){
+		this.lastErrors = Collections.emptyList();
+		this.templates = Collections.emptyList();
+		this.recent = Collections.emptyList();
+	}
+
+	ImportSummarySnapshot(long start, Long lastWrite, Long lastReject, int imported, int updated, int invalid, int failed, List<RepeatableError> lastErrors, List<TemplateStatistics> templates, List<WindowStatistics> recent){
+		this.start = start;
+		this.lastWrite = lastWrite;
+		this.lastReject = lastReject;
+		this.imported = imported;
+		this.updated = updated;
+		this.invalid = invalid;
+		this.failed = failed;
+		this.lastErrors = Collections.unmodifiableList(lastErrors);
+		this.templates = Collections.unmodifiableList(templates);
+		this.recent = Collections.unmodifiableList(recent);
+	}
+
+	private static Date dateOrNull(Long ms){
+		if( ms == null ){
+			return null;
+		}else{
+			return new Date(ms);
+		}
+	}
+
+	public long getStartTime(){
+		return start;
+	}
+
+	@XmlElement
+	public Date getStart(){
+		return new Date(start);
+	}
+
+	public Long getLastWriteTime(){
+		return lastWrite;
+	}
+
+	@XmlElement(name="last-write")
+	public Date getLastWrite(){
+		return dateOrNull(lastWrite);
+	}
+
+	public Long getLastRejectTime(){
+		return lastReject;
+	}
+
+	@XmlElement(name="last-reject")
+	public Date getLastFailure(){
+		return dateOrNull(lastReject);
+	}
+
+	@XmlElement(name="imported")
+	public int getImportedCount(){
+		return imported;
+	}
+
+	@XmlElement(name="updated")
+	public int getUpdatedCount(){
+		return updated;
+	}
+
+	@XmlElement(name="invalid")
+	public int getInvalidCount(){
+		return invalid;
+	}
+
+	@XmlElement(name="failed")
+	public int getFailedCount(){
+		return failed;
+	}
+
+	/**
+	 * @return copies of the most recent errors, oldest first
+	 */
+	@XmlElementWrapper(name="last-errors")
+	@XmlElement(name="error")
+	public List<RepeatableError> getLastRepeatedErrors(){
+		return lastErrors;
+	}
+
+	/**
+	 * @return statistics per template, ordered by template id
+	 */
+	public List<TemplateStatistics> getTemplates(){
+		return templates;
+	}
+
+	/**
+	 * @return statistics per template or {@code null} if empty, which omits the XML element
+	 */
+	@XmlElementWrapper(name="templates")
+	@XmlElement(name="template")
+	protected List<TemplateStatistics> getTemplateStatistics(){
+		if( templates.isEmpty() ){
+			return null;
+		}
+		return templates;
+	}
+
+	/**
+	 * @return recent activity for the last minute, five minutes, hour and 24 hours
+	 */
+	@XmlElementWrapper(name="recent")
+	@XmlElement(name="window")
+	public List<WindowStatistics> getRecentActivity(){
+		return recent;
+	}
+
+	/**
+	 * @return time at which the recent activity may change without new events,
+	 *  {@link Long#MAX_VALUE} if there was no recent activity
+	 */
+	long getRecentActivityExpiry(){
+		long expiry = Long.MAX_VALUE;
+		for( WindowStatistics w : recent ){
+			expiry = Math.min(expiry, w.getExpiry());
+		}
+		return expiry;
+	}
+
+	/**
+	 * Write the statistics as JSON object. Member names are the XML
+	 * element and attribute names, timestamps are in ISO 8601 notation.
+	 * Empty timestamps and templates are omitted.
+	 * @param out destination
+	 * @throws IOException write error
+	 */
+	public void writeJson(Writer out) throws IOException{
+		// not closed, the writer belongs to the caller
+		JsonGenerator json = JSON.createGenerator(out);
+		try{
+			json.writeStartObject();
+			writeTime(json, "start", start);
+			writeTime(json, "last-write", lastWrite);
+			writeTime(json, "last-reject", lastReject);
+			json.write("imported", imported)
+				.write("updated", updated)
+				.write("invalid", invalid)
+				.write("failed", failed);
+			json.writeStartArray("last-errors");
+			for( RepeatableError e : lastErrors ){
+				e.writeJson(json);
+			}
+			json.writeEnd();
+			if( !templates.isEmpty() ){
+				json.writeStartArray("templates");
+				for( TemplateStatistics t : templates ){
+					t.writeJson(json);
+				}
+				json.writeEnd();
+			}
+			json.writeStartArray("recent");
+			for( WindowStatistics w : recent ){
+				w.writeJson(json);
+			}
+			json.writeEnd();
+			json.writeEnd();
+			json.flush();
+		}catch( JsonException e ){
+			if( e.getCause() instanceof IOException ){
+				throw (IOException)e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Write a string member, omitted if {@code null}
+	 */
+	static void writeString(JsonGenerator json, String name, String value){
+		if( value != null ){
+			json.write(name, value);
+		}
+	}
+
+	/**
+	 * Write a timestamp in ISO 8601 notation, omitted if {@code null}
+	 */
+	static void writeTime(JsonGenerator json, String name, Long millis){
+		if( millis != null ){
+			json.write(name, Instant.ofEpochMilli(millis).toString());
+		}
+	}
+}
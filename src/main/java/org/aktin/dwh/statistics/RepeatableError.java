@@ -1,42 +1,161 @@
 package org.aktin.dwh.statistics;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
+import javax.json.stream.JsonGenerator;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlValue;
 
+/**
+ * Error message with the number and time of its occurrences.
+ * Occurrences can be counted concurrently.
+ * <p>
+ * If similar messages are counted together (see {@link ErrorCache#add(String, String, long)}),
+ * the message is the first occurrence and the most recent message
+ * is available via {@link #getLastExample()}.
+ * </p>
+ */
 @XmlAccessorType(XmlAccessType.NONE)
 public class RepeatableError {
 
-	private int count;
+	private volatile int count;
 	@XmlValue
 	String message;
+	/** most recent concrete message */
+	private volatile String example;
 
-	private long timestamp;
+	private volatile long timestamp;
+	/** position in the access order of the {@link ErrorCache} */
+	private volatile long sequence;
+	private static final AtomicIntegerFieldUpdater<RepeatableError> COUNT = AtomicIntegerFieldUpdater.newUpdater(RepeatableError.class, "count");
+	private static final AtomicLongFieldUpdater<RepeatableError> TIMESTAMP = AtomicLongFieldUpdater.newUpdater(RepeatableError.class, "timestamp");
+	/** updates the sequence without a full fence, the order is approximate anyway */
+	private static final AtomicLongFieldUpdater<RepeatableError> SEQUENCE = AtomicLongFieldUpdater.newUpdater(RepeatableError.class, "sequence");
 
 	public RepeatableError(String message, long timestamp){
+		this(message, timestamp, 0);
+	}
+
+	RepeatableError(String message, long timestamp, long sequence){
 		this.message = message;
+		this.example = message;
 		this.count = 1;
 		this.timestamp = timestamp;
+		this.sequence = sequence;
+	}
+
+	/**
+	 * Copy constructor
+	 * @param other error to copy
+	 */
+	RepeatableError(RepeatableError other){
+		this.message = other.message;
+		this.example = other.example;
+		this.count = other.count;
+		this.timestamp = other.timestamp;
+		this.sequence = other.sequence;
 	}
 
 	public void incrementCount(long timestamp){
-		this.count ++;
-		this.timestamp = timestamp;
+		COUNT.incrementAndGet(this);
+		if( timestamp > this.timestamp ){
+			TIMESTAMP.accumulateAndGet(this, timestamp, Math::max);
+		}
+	}
+
+	void incrementCount(long timestamp, long sequence){
+		incrementCount(timestamp);
+		SEQUENCE.lazySet(this, sequence);
+	}
+
+	void incrementCount(String example, long timestamp, long sequence){
+		incrementCount(timestamp, sequence);
+		if( example != this.example ){
+			this.example = example;
+		}
+	}
+
+	/**
+	 * Write the error without sequence, see {@link #read(DataInput, long)}.
+	 * @param out output
+	 * @throws IOException write error
+	 */
+	void write(DataOutput out) throws IOException{
+		StatisticsStore.writeString(out, message);
+		StatisticsStore.writeString(out, example);
+		out.writeInt(count);
+		out.writeLong(timestamp);
+	}
+
+	static RepeatableError read(DataInput in, long sequence) throws IOException{
+		RepeatableError e = new RepeatableError(StatisticsStore.readString(in), 0, sequence);
+		e.example = StatisticsStore.readString(in);
+		e.count = in.readInt();
+		e.timestamp = in.readLong();
+		return e;
+	}
+
+	long getSequence(){
+		return sequence;
+	}
+
+	public String getMessage(){
+		return message;
+	}
+
+	/**
+	 * @return most recent message counted for this error
+	 */
+	public String getLastExample(){
+		return example;
+	}
+
+	/**
+	 * @return most recent message or {@code null} if equal to the message, which omits the attribute
+	 */
+	@XmlAttribute(name="last-example")
+	protected String getDifferentExample(){
+		String e = example;
+		if( e == null || e.equals(message) ){
+			return null;
+		}
+		return e;
+	}
+
+	/**
+	 * @return number of occurrences
+	 */
+	public int getCount(){
+		return count;
 	}
 
 	@XmlAttribute
 	public Integer getRepeats(){
-		if( count == 1 ){
+		int c = count;
+		if( c == 1 ){
 			return null;
 		}else{
-			return count;
+			return c;
 		}
 	}
 	@XmlAttribute
 	public Date getTimestamp(){
 		return new Date(timestamp);
 	}
+
+	void writeJson(JsonGenerator json){
+		json.writeStartObject();
+		ImportSummarySnapshot.writeString(json, "message", message);
+		json.write("count", count);
+		ImportSummarySnapshot.writeTime(json, "timestamp", timestamp);
+		ImportSummarySnapshot.writeString(json, "last-example", getDifferentExample());
+		json.writeEnd();
+	}
 }
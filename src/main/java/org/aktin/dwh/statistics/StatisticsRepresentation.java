@@ -0,0 +1,174 @@
+package org.aktin.dwh.statistics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+/**
+ * Precomputed XML and JSON representation of the import statistics,
+ * see {@link ImportSummaryImpl#getRepresentation()}.
+ * <p>
+ * The version increases whenever the content changes. Together with
+ * the start of the summary instance it forms the entity tag, which
+ * allows clients to skip unchanged responses via {@code If-None-Match}.
+ * </p>
+ */
+public final class StatisticsRepresentation {
+	/** media type of the XML representation */
+	public static final String XML_TYPE = "application/xml";
+	/** media type of the JSON representation */
+	public static final String JSON_TYPE = "application/json";
+
+	private static final JAXBContext CONTEXT;
+	static{
+		try{
+			CONTEXT = JAXBContext.newInstance(ImportSummarySnapshot.class);
+		}catch( JAXBException e ){
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final long version;
+	private final String etag;
+	/** {@link ImportSummaryImpl} change count the content is based on */
+	private final long changes;
+	/** creation time in milliseconds */
+	private final long timestamp;
+	/** time at which the time windows may change without new events */
+	private final long expiry;
+	private final byte[] xml;
+	private final byte[] json;
+
+	private StatisticsRepresentation(long version, String instance, long changes, long timestamp, long expiry, byte[] xml, byte[] json){
+		this.version = version;
+		this.etag = "\""+instance+"-"+version+"\"";
+		this.changes = changes;
+		this.timestamp = timestamp;
+		this.expiry = expiry;
+		this.xml = xml;
+		this.json = json;
+	}
+
+	/**
+	 * Marshal a snapshot.
+	 * @param snapshot statistics
+	 * @param instance identifies the summary instance in the entity tag
+	 * @param changes change count of the snapshot
+	 * @param previous previous representation or {@code null}.
+	 *  If the content is unchanged, the version is kept.
+	 * @return representation
+	 */
+	static StatisticsRepresentation create(ImportSummarySnapshot snapshot, String instance, long changes, StatisticsRepresentation previous){
+		long timestamp = System.currentTimeMillis();
+		byte[] xml;
+		byte[] json;
+		try{
+			Marshaller marshaller = CONTEXT.createMarshaller();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+			marshaller.marshal(snapshot, out);
+			xml = out.toByteArray();
+			out.reset();
+			Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+			snapshot.writeJson(writer);
+			writer.flush();
+			json = out.toByteArray();
+		}catch( JAXBException e ){
+			throw new IllegalStateException("Unable to marshal import statistics", e);
+		}catch( IOException e ){
+			throw new UncheckedIOException(e);
+		}
+		long version = 1;
+		if( previous != null ){
+			version = previous.version;
+			if( !Arrays.equals(previous.xml, xml) ){
+				version ++;
+			}
+		}
+		return new StatisticsRepresentation(version, instance, changes, timestamp, snapshot.getRecentActivityExpiry(), xml, json);
+	}
+
+	long getChanges(){
+		return changes;
+	}
+
+	/**
+	 * @return time at which the time windows may change without new events,
+	 *  {@link Long#MAX_VALUE} if there was no recent activity
+	 */
+	long getExpiry(){
+		return expiry;
+	}
+
+	/**
+	 * @return creation time in milliseconds
+	 */
+	public long getTimestamp(){
+		return timestamp;
+	}
+
+	/**
+	 * @return version, increasing with every change of the content
+	 */
+	public long getVersion(){
+		return version;
+	}
+
+	/**
+	 * @return quoted entity tag, e.g. for the {@code ETag} header
+	 */
+	public String getETag(){
+		return etag;
+	}
+
+	/**
+	 * Check whether a client already has this representation.
+	 * @param ifNoneMatch value of the {@code If-None-Match} header, may be {@code null}
+	 * @return {@code true} if the entity tag is listed
+	 */
+	public boolean matches(String ifNoneMatch){
+		if( ifNoneMatch == null ){
+			return false;
+		}
+		for( String tag : ifNoneMatch.split(",") ){
+			tag = tag.trim();
+			if( tag.startsWith("W/") ){
+				tag = tag.substring(2);
+			}
+			if( tag.equals(etag) || tag.equals("*") ){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return copy of the UTF-8 encoded XML
+	 */
+	public byte[] getXml(){
+		return xml.clone();
+	}
+
+	/**
+	 * @return copy of the UTF-8 encoded JSON
+	 */
+	public byte[] getJson(){
+		return json.clone();
+	}
+
+	public void writeXml(OutputStream out) throws IOException{
+		out.write(xml);
+	}
+
+	public void writeJson(OutputStream out) throws IOException{
+		out.write(json);
+	}
+}
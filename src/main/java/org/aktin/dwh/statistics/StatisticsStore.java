@@ -0,0 +1,137 @@
+package org.aktin.dwh.statistics;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Stores the state of an {@link ImportSummaryImpl} in a small binary file.
+ * <p>
+ * The file is written to a temporary file, synced to disk and then
+ * renamed, so that a crash during the write leaves the previous state
+ * intact. A trailing CRC32 checksum detects damaged files, which are
+ * ignored when loading.
+ * </p>
+ */
+final class StatisticsStore {
+	private static final Logger log = Logger.getLogger(StatisticsStore.class.getName());
+	/** {@code AKIS} */
+	private static final int MAGIC = 0x414b4953;
+	/** version 3: counts of the time windows are moved to coarser windows instead of counted in all windows */
+	private static final int VERSION = 3;
+	/** length of the checksum at the end of the file */
+	private static final int CRC_LENGTH = 8;
+
+	private final Path file;
+	private final Path temp;
+
+	StatisticsStore(Path file){
+		this.file = file;
+		this.temp = file.resolveSibling(file.getFileName()+".tmp");
+	}
+
+	Path getFile(){
+		return file;
+	}
+
+	/**
+	 * Write the current state of the summary.
+	 * @param summary summary to store
+	 * @throws IOException write error
+	 */
+	void save(ImportSummaryImpl summary) throws IOException{
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+		DataOutputStream out = new DataOutputStream(buffer);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		summary.writeState(out);
+		CRC32 crc = new CRC32();
+		byte[] data = buffer.toByteArray();
+		crc.update(data);
+		out.writeLong(crc.getValue());
+		out.flush();
+		try( FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING) ){
+			ByteBuffer b = ByteBuffer.wrap(buffer.toByteArray());
+			while( b.hasRemaining() ){
+				channel.write(b);
+			}
+			channel.force(false);
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Restore the summary from the file. Missing or damaged
+	 * files leave the summary unchanged.
+	 * @param summary summary to restore
+	 * @return {@code true} if the state was restored
+	 */
+	boolean load(ImportSummaryImpl summary){
+		if( !Files.isRegularFile(file) ){
+			return false;
+		}
+		try{
+			byte[] data = Files.readAllBytes(file);
+			int length = data.length - CRC_LENGTH;
+			if( length < 8 ){
+				throw new IOException("File truncated");
+			}
+			CRC32 crc = new CRC32();
+			crc.update(data, 0, length);
+			if( crc.getValue() != ByteBuffer.wrap(data, length, CRC_LENGTH).getLong() ){
+				throw new IOException("Checksum mismatch");
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, length));
+			if( in.readInt() != MAGIC || in.readInt() != VERSION ){
+				throw new IOException("Unsupported file format");
+			}
+			summary.readState(in);
+			return true;
+		}catch( IOException e ){
+			log.log(Level.WARNING, "Unable to restore import statistics from "+file+", starting from zero", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Write a string of any length, which may be {@code null}.
+	 * @param out output
+	 * @param s string
+	 * @throws IOException write error
+	 */
+	static void writeString(DataOutput out, String s) throws IOException{
+		if( s == null ){
+			out.writeInt(-1);
+			return;
+		}
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	static String readString(DataInput in) throws IOException{
+		int length = in.readInt();
+		if( length == -1 ){
+			return null;
+		}else if( length < 0 ){
+			throw new IOException("Invalid string length "+length);
+		}
+		byte[] b = new byte[length];
+		in.readFully(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+}
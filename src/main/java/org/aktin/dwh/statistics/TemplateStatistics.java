@@ -0,0 +1,232 @@
+package org.aktin.dwh.statistics;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.json.stream.JsonGenerator;
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlType;
+
+/**
+ * Import statistics for a single CDA template.
+ * Instances returned by {@link ImportSummaryImpl} are copies
+ * and do not change.
+ */
+@XmlAccessorType(XmlAccessType.NONE)
+@XmlType(propOrder={"lastWrite","lastFailure","importedCount","updatedCount","invalidCount","failedCount"})
+public class TemplateStatistics {
+	private static final long NEVER = Long.MIN_VALUE;
+
+	private final String templateId;
+	private final LongAdder created;
+	private final LongAdder updated;
+	private final LongAdder invalid;
+	private final LongAdder failed;
+	private final LongAccumulator lastWrite;
+	private final LongAccumulator lastReject;
+
+	/**
+	 * Constructor for JAXB
+	 */
+	protected TemplateStatistics(){
+		this(null);
+	}
+
+	TemplateStatistics(String templateId){
+		this.templateId = templateId;
+		this.created = new LongAdder();
+		this.updated = new LongAdder();
+		this.invalid = new LongAdder();
+		this.failed = new LongAdder();
+		this.lastWrite = new LongAccumulator(Math::max, NEVER);
+		this.lastReject = new LongAccumulator(Math::max, NEVER);
+	}
+
+	// timestamps are set before counting, see addTo
+
+	void addCreated(long timestamp){
+		lastWrite.accumulate(timestamp);
+		created.increment();
+	}
+
+	void addUpdated(long timestamp){
+		lastWrite.accumulate(timestamp);
+		updated.increment();
+	}
+
+	void addRejected(boolean valid, long timestamp){
+		lastReject.accumulate(timestamp);
+		if( valid ){
+			failed.increment();
+		}else{
+			invalid.increment();
+		}
+	}
+
+	/**
+	 * @return copy of the current values
+	 */
+	TemplateStatistics copy(){
+		TemplateStatistics c = new TemplateStatistics(templateId);
+		addTo(c);
+		return c;
+	}
+
+	/**
+	 * Add the current counts to other statistics and
+	 * advance their timestamps. The counts are read before
+	 * the timestamps, which are set before counting. Thus
+	 * every counted event has a timestamp.
+	 * @param sum statistics which receive the values
+	 */
+	void addTo(TemplateStatistics sum){
+		sum.created.add(created.sum());
+		sum.updated.add(updated.sum());
+		sum.invalid.add(invalid.sum());
+		sum.failed.add(failed.sum());
+		sum.lastWrite.accumulate(lastWrite.get());
+		sum.lastReject.accumulate(lastReject.get());
+	}
+
+	/**
+	 * Subtract the counts of statistics which are included
+	 * in these. The timestamps are not changed.
+	 * @param part included statistics
+	 */
+	void removeCounts(TemplateStatistics part){
+		created.add(-part.created.sum());
+		updated.add(-part.updated.sum());
+		invalid.add(-part.invalid.sum());
+		failed.add(-part.failed.sum());
+	}
+
+	/**
+	 * @return number of events of all types
+	 */
+	long totalCount(){
+		return created.sum() + updated.sum() + invalid.sum() + failed.sum();
+	}
+
+	/**
+	 * Write the current values, see {@link #read(DataInput)}.
+	 * @param out output
+	 * @throws IOException write error
+	 */
+	void write(DataOutput out) throws IOException{
+		StatisticsStore.writeString(out, templateId);
+		writeValues(out);
+	}
+
+	/**
+	 * Write the counts and timestamps without the template id,
+	 * see {@link #readValues(DataInput)}.
+	 * @param out output
+	 * @throws IOException write error
+	 */
+	void writeValues(DataOutput out) throws IOException{
+		out.writeLong(created.sum());
+		out.writeLong(updated.sum());
+		out.writeLong(invalid.sum());
+		out.writeLong(failed.sum());
+		out.writeLong(lastWrite.get());
+		out.writeLong(lastReject.get());
+	}
+
+	static TemplateStatistics read(DataInput in) throws IOException{
+		TemplateStatistics t = new TemplateStatistics(StatisticsStore.readString(in));
+		t.readValues(in);
+		return t;
+	}
+
+	/**
+	 * Add previously written counts and timestamps.
+	 * @param in input
+	 * @throws IOException read error
+	 */
+	void readValues(DataInput in) throws IOException{
+		created.add(in.readLong());
+		updated.add(in.readLong());
+		invalid.add(in.readLong());
+		failed.add(in.readLong());
+		lastWrite.accumulate(in.readLong());
+		lastReject.accumulate(in.readLong());
+	}
+
+	private static Long timeOrNull(LongAccumulator a){
+		long t = a.get();
+		if( t == NEVER ){
+			return null;
+		}
+		return t;
+	}
+
+	private static Date dateOrNull(Long ms){
+		if( ms == null ){
+			return null;
+		}else{
+			return new Date(ms);
+		}
+	}
+
+	@XmlAttribute(name="id")
+	public String getTemplateId(){
+		return templateId;
+	}
+
+	public Long getLastWriteTime(){
+		return timeOrNull(lastWrite);
+	}
+
+	@XmlElement(name="last-write")
+	public Date getLastWrite(){
+		return dateOrNull(getLastWriteTime());
+	}
+
+	public Long getLastRejectTime(){
+		return timeOrNull(lastReject);
+	}
+
+	@XmlElement(name="last-reject")
+	public Date getLastFailure(){
+		return dateOrNull(getLastRejectTime());
+	}
+
+	@XmlElement(name="imported")
+	public int getImportedCount(){
+		return created.intValue();
+	}
+
+	@XmlElement(name="updated")
+	public int getUpdatedCount(){
+		return updated.intValue();
+	}
+
+	@XmlElement(name="invalid")
+	public int getInvalidCount(){
+		return invalid.intValue();
+	}
+
+	@XmlElement(name="failed")
+	public int getFailedCount(){
+		return failed.intValue();
+	}
+
+	void writeJson(JsonGenerator json){
+		json.writeStartObject();
+		ImportSummarySnapshot.writeString(json, "id", templateId);
+		ImportSummarySnapshot.writeTime(json, "last-write", getLastWriteTime());
+		ImportSummarySnapshot.writeTime(json, "last-reject", getLastRejectTime());
+		json.write("imported", created.sum())
+			.write("updated", updated.sum())
+			.write("invalid", invalid.sum())
+			.write("failed", failed.sum())
+			.writeEnd();
+	}
+}
@@ -0,0 +1,119 @@
+package org.aktin.dwh.statistics;
+
+import java.time.Duration;
+
+import javax.json.stream.JsonGenerator;
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+
+/**
+ * Number of import events within a recent period of time,
+ * e.g. the last five minutes.
+ */
+@XmlAccessorType(XmlAccessType.NONE)
+public class WindowStatistics {
+	private Duration span;
+	private long imported;
+	private long updated;
+	private long rejected;
+	/** time in milliseconds covered by the counted buckets */
+	private long covered;
+	/** time at which the oldest bucket leaves the span */
+	private long expiry;
+
+	/**
+	 * Constructor for JAXB
+	 */
+	protected WindowStatistics(){
+		this.span = Duration.ZERO;
+	}
+
+	WindowStatistics(Duration span, long[] counts, long covered, long expiry){
+		this.span = span;
+		this.covered = covered;
+		this.expiry = expiry;
+		this.imported = counts[EventWindow.CREATED];
+		this.updated = counts[EventWindow.UPDATED];
+		this.rejected = counts[EventWindow.REJECTED];
+	}
+
+	public Duration getSpan(){
+		return span;
+	}
+
+	@XmlAttribute(name="span")
+	protected String getSpanText(){
+		return span.toString();
+	}
+
+	@XmlAttribute(name="imported")
+	public long getImportedCount(){
+		return imported;
+	}
+
+	@XmlAttribute(name="updated")
+	public long getUpdatedCount(){
+		return updated;
+	}
+
+	/**
+	 * @return number of invalid or failed documents
+	 */
+	@XmlAttribute(name="rejected")
+	public long getRejectedCount(){
+		return rejected;
+	}
+
+	/**
+	 * Get the time covered by the counts. This is at least the span,
+	 * extended to the start of the oldest bucket, unless limited by the
+	 * size of the window.
+	 * @return covered time
+	 */
+	public Duration getCoveredTime(){
+		return Duration.ofMillis(covered);
+	}
+
+	/**
+	 * @return time at which the counts may change without new events,
+	 *  {@link Long#MAX_VALUE} if there are no events
+	 */
+	long getExpiry(){
+		if( imported + updated + rejected == 0 ){
+			return Long.MAX_VALUE;
+		}
+		return expiry;
+	}
+
+	/**
+	 * @return imported and updated documents per second of the covered time
+	 */
+	@XmlAttribute(name="writes-per-second")
+	public double getWriteRate(){
+		return (imported + updated) * 1000.0 / covered;
+	}
+
+	/**
+	 * @return fraction of rejected documents, {@code 0} if there were no documents
+	 */
+	@XmlAttribute(name="rejection-rate")
+	public double getRejectionRate(){
+		long total = imported + updated + rejected;
+		if( total == 0 ){
+			return 0;
+		}
+		return rejected / (double)total;
+	}
+
+	void writeJson(JsonGenerator json){
+		json.writeStartObject()
+			.write("span", getSpanText())
+			.write("imported", imported)
+			.write("updated", updated)
+			.write("rejected", rejected)
+			.write("writes-per-second", getWriteRate())
+			.write("rejection-rate", getRejectionRate())
+			.writeEnd();
+	}
+}
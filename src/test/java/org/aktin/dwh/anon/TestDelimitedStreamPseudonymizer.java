@@ -0,0 +1,113 @@
+package org.aktin.dwh.anon;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.aktin.dwh.Anonymizer;
+
+import org.aktin.dwh.PreferenceKey;
+import org.aktin.dwh.prefs.impl.PropertyFilePreferences;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestDelimitedStreamPseudonymizer {
+	private OneWayAnonymizer anonymizer;
+
+	@Before
+	public void createAnonymizer(){
+		PropertyFilePreferences prefs = PropertyFilePreferences.empty();
+		prefs.put(PreferenceKey.serverUrl.key(), "http://localhost/");
+		prefs.put(PreferenceKey.pseudonymSalt.key(), "export");
+		anonymizer = new OneWayAnonymizer(prefs);
+	}
+
+	private String p(String value){
+		return anonymizer.calculateAbstractPseudonym(value);
+	}
+
+	@Test
+	public void verifyQuotedFieldsAndHeader() throws IOException{
+		String input = "patient;name;note\r\n"
+				+ "p1;\"Doe; John\";\"said \"\"hi\"\"\"\r\n"
+				+ "\"p\n2\";;\n"
+				+ ";empty\n";
+		StringWriter out = new StringWriter();
+		long count = new DelimitedStreamPseudonymizer(anonymizer, ';', "patient").process(new StringReader(input), out);
+		Assert.assertEquals(3, count);
+		Assert.assertEquals("patient;name;note\n"
+				+ p("p1")+";\"Doe; John\";\"said \"\"hi\"\"\"\n"
+				+ p("p\n2")+";;\n"
+				+ ";empty\n", out.toString());
+	}
+
+	@Test
+	public void verifyLargeInputKeepsOrder() throws IOException{
+		StringBuilder input = new StringBuilder();
+		StringBuilder expected = new StringBuilder();
+		for( int i=0; i<20000; i++ ){
+			input.append("x").append(i).append('\t').append(i).append('\t').append("e").append(i).append('\n');
+			expected.append(p("x"+i)).append('\t').append(i).append('\t').append(p("e"+i)).append('\n');
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try{
+			DelimitedStreamPseudonymizer s = new DelimitedStreamPseudonymizer(anonymizer, '\t', 0, 2);
+			s.setBatchSize(100);
+			s.setQueueCapacity(2);
+			s.setExecutor(executor);
+			StringWriter out = new StringWriter();
+			Assert.assertEquals(20000, s.process(new StringReader(input.toString()), out));
+			Assert.assertEquals(expected.toString(), out.toString());
+			// same result on the calling thread
+			s.setExecutor(null);
+			out = new StringWriter();
+			Assert.assertEquals(20000, s.process(new StringReader(input.toString()), out));
+			Assert.assertEquals(expected.toString(), out.toString());
+		}finally{
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void verifyBatchesDispatchedByInterface() throws IOException{
+		AtomicInteger batches = new AtomicInteger();
+		BatchAnonymizer batch = new BatchAnonymizer() {
+			@Override
+			public String calculateAbstractPseudonym(String... strings) {
+				return anonymizer.calculateAbstractPseudonym(strings);
+			}
+			@Override
+			public List<String> calculateAbstractPseudonyms(List<String[]> tuples) {
+				batches.incrementAndGet();
+				return anonymizer.calculateAbstractPseudonyms(tuples);
+			}
+		};
+		DelimitedStreamPseudonymizer s = new DelimitedStreamPseudonymizer(batch, ',', 0);
+		s.setBatchSize(2);
+		StringWriter out = new StringWriter();
+		Assert.assertEquals(3, s.process(new StringReader("a\nb\nc\n"), out));
+		Assert.assertEquals(2, batches.get());
+		Assert.assertEquals(p("a")+"\n"+p("b")+"\n"+p("c")+"\n", out.toString());
+		// plain anonymizers are called per value
+		Anonymizer plain = anonymizer::calculateAbstractPseudonym;
+		out = new StringWriter();
+		new DelimitedStreamPseudonymizer(plain, ',', 0).process(new StringReader("a\nb\n"), out);
+		Assert.assertEquals(p("a")+"\n"+p("b")+"\n", out.toString());
+	}
+
+	@Test(expected=IOException.class)
+	public void verifyUnterminatedQuoteFails() throws IOException{
+		String input = "a,b\n\"c,d\n";
+		new DelimitedStreamPseudonymizer(anonymizer, ',', 0).process(new StringReader(input), new StringWriter());
+	}
+
+	@Test(expected=IOException.class)
+	public void verifyUnknownColumnFails() throws IOException{
+		new DelimitedStreamPseudonymizer(anonymizer, ',', "id").process(new StringReader("a,b\n"), new StringWriter());
+	}
+}
@@ -0,0 +1,316 @@
+package org.aktin.dwh.anon;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.ejb.Local;
+import javax.ejb.LocalBean;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+
+import org.aktin.dwh.Anonymizer;
+import org.aktin.dwh.PreferenceKey;
+import org.aktin.dwh.prefs.impl.PreferencesChangedEvent;
+import org.aktin.dwh.prefs.impl.PropertyFilePreferences;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestOneWayAnonymizer {
+
+	private static OneWayAnonymizer anonymizer(String algorithm, String salt){
+		return new OneWayAnonymizer(preferences(algorithm, salt));
+	}
+
+	private static PropertyFilePreferences preferences(String algorithm, String salt){
+		PropertyFilePreferences prefs = PropertyFilePreferences.empty();
+		// prevent replacement of the snapshot by the background detection
+		prefs.put(PreferenceKey.serverUrl.key(), "http://localhost/");
+		if( algorithm != null ){
+			prefs.put(PreferenceKey.pseudonymAlgorithm.key(), algorithm);
+		}
+		if( salt != null ){
+			prefs.put(PreferenceKey.pseudonymSalt.key(), salt);
+		}
+		return prefs;
+	}
+
+	/**
+	 * Straightforward calculation of the pseudonym, as implemented
+	 * by previous versions.
+	 */
+	private static String reference(String algorithm, String salt, String... strings) throws NoSuchAlgorithmException{
+		MessageDigest digest = MessageDigest.getInstance(algorithm);
+		ByteBuffer input = StandardCharsets.UTF_8.encode(salt + String.join("/", strings));
+		digest.update(input);
+		return Base64.getUrlEncoder().encodeToString(digest.digest());
+	}
+
+	private static String randomString(Random rand){
+		StringBuilder b = new StringBuilder();
+		int len = rand.nextInt(300);
+		for( int i=0; i<len; i++ ){
+			switch( rand.nextInt(6) ){
+			case 0:
+				b.append((char)(0x80 + rand.nextInt(0x780)));
+				break;
+			case 1:
+				b.append((char)(0x800 + rand.nextInt(0xD000)));
+				break;
+			case 2:
+				// surrogate pair
+				b.appendCodePoint(0x10000 + rand.nextInt(0x10000));
+				break;
+			case 3:
+				// unpaired surrogate
+				b.append((char)(0xD800 + rand.nextInt(0x800)));
+				break;
+			default:
+				b.append((char)(0x20 + rand.nextInt(0x5F)));
+			}
+		}
+		return b.toString();
+	}
+
+	/**
+	 * Assert that the container can call the method through the
+	 * no-interface view of the session bean.
+	 */
+	private static void assertBusinessMethod(String name, Class<?>... parameterTypes) throws NoSuchMethodException{
+		Method m = OneWayAnonymizer.class.getMethod(name, parameterTypes);
+		Assert.assertEquals(OneWayAnonymizer.class, m.getDeclaringClass());
+		Assert.assertFalse(name, Modifier.isStatic(m.getModifiers()));
+		Assert.assertFalse(name, Modifier.isFinal(m.getModifiers()));
+	}
+
+	@Test
+	public void verifyObserverIsBusinessMethod() throws NoSuchMethodException{
+		Assert.assertTrue(OneWayAnonymizer.class.isAnnotationPresent(LocalBean.class));
+		// clients of the Anonymizer view keep working
+		List<Class<?>> views = Arrays.asList(OneWayAnonymizer.class.getAnnotation(Local.class).value());
+		Assert.assertTrue(views.contains(Anonymizer.class));
+		Assert.assertTrue(views.contains(BatchAnonymizer.class));
+		Assert.assertFalse(Modifier.isFinal(OneWayAnonymizer.class.getModifiers()));
+		assertBusinessMethod("preferencesChanged", PreferencesChangedEvent.class);
+	}
+
+	@Test
+	public void verifyPseudonymApiInNoInterfaceView() throws NoSuchMethodException{
+		// injected as @Inject OneWayAnonymizer or @EJB OneWayAnonymizer
+		assertBusinessMethod("calculateAbstractPseudonym", String[].class);
+		assertBusinessMethod("calculateAbstractPseudonyms", List.class);
+		assertBusinessMethod("calculateAbstractPseudonyms", Stream.class);
+		assertBusinessMethod("calculateAbstractPseudonym", CharSequence[].class);
+		assertBusinessMethod("calculateAbstractPseudonym", byte[].class, int.class, CharSequence[].class);
+		assertBusinessMethod("calculateAbstractPseudonym", byte[].class, int.class, byte[][].class);
+		assertBusinessMethod("calculateAbstractPseudonym", byte[].class, int.class);
+		assertBusinessMethod("pseudonymLength");
+		assertBusinessMethod("getCacheHits");
+		assertBusinessMethod("getCacheMisses");
+		assertBusinessMethod("getCacheSize");
+	}
+
+	@Test
+	public void verifyKnownPseudonyms(){
+		OneWayAnonymizer a = anonymizer(null, null);
+		// SHA-1 of the empty string
+		Assert.assertEquals("2jmj7l5rSw0yVb_vlWAYkK_YBwk=", a.calculateAbstractPseudonym());
+		Assert.assertEquals("2jmj7l5rSw0yVb_vlWAYkK_YBwk=", a.calculateAbstractPseudonym(""));
+		// SHA-1 of "abc"
+		Assert.assertEquals("qZk-NkcGgWq6PiVxeFDCbJzQ2J0=", a.calculateAbstractPseudonym("abc"));
+	}
+
+	@Test
+	public void verifyIdenticalToReference() throws NoSuchAlgorithmException{
+		Random rand = new Random(42);
+		String[] algorithms = {"SHA-1", "SHA-256", "SHA-512"};
+		String[] salts = {"", "salt", "sälz€", "😀", "lone\udc00", "high\ud83d"};
+		for( String algorithm : algorithms ){
+			for( String salt : salts ){
+				OneWayAnonymizer a = anonymizer(algorithm, salt);
+				Assert.assertEquals(reference(algorithm, salt, "1.2.276.0.76.4.8", "1234567890"),
+						a.calculateAbstractPseudonym("1.2.276.0.76.4.8", "1234567890"));
+				Assert.assertEquals(reference(algorithm, salt, "a", null),
+						a.calculateAbstractPseudonym("a", null));
+				// surrogates at argument boundaries
+				Assert.assertEquals(reference(algorithm, salt, "\ude00x", "y\ud83d"),
+						a.calculateAbstractPseudonym("\ude00x", "y\ud83d"));
+				for( int i=0; i<200; i++ ){
+					String[] args = new String[rand.nextInt(4)];
+					for( int j=0; j<args.length; j++ ){
+						args[j] = randomString(rand);
+					}
+					Assert.assertEquals(reference(algorithm, salt, args), a.calculateAbstractPseudonym(args));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void verifyOverloadsMatchStringApi(){
+		Random rand = new Random(11);
+		for( String algorithm : new String[]{"SHA-1", "HmacSHA256"} ){
+			for( String salt : new String[]{"salt", "high\ud83d"} ){
+				OneWayAnonymizer a = anonymizer(algorithm, salt);
+				byte[] dest = new byte[a.pseudonymLength() + 3];
+				for( int i=0; i<100; i++ ){
+					String[] args = {randomString(rand), randomString(rand)};
+					String expected = a.calculateAbstractPseudonym(args);
+					Assert.assertEquals(expected.length(), a.pseudonymLength());
+					// slices of a larger buffer
+					String line = "<"+args[0]+"|"+args[1]+">";
+					CharSequence first = CharBuffer.wrap(line, 1, 1+args[0].length());
+					CharSequence second = new StringBuilder(args[1]);
+					Assert.assertEquals(expected, a.calculateAbstractPseudonym(first, second));
+					int len = a.calculateAbstractPseudonym(dest, 3, first, second);
+					Assert.assertEquals(expected, new String(dest, 3, len, StandardCharsets.US_ASCII));
+					// UTF-8 input is compared with the decoded strings,
+					// which have unpaired surrogates replaced
+					byte[][] utf8 = {args[0].getBytes(StandardCharsets.UTF_8), args[1].getBytes(StandardCharsets.UTF_8)};
+					len = a.calculateAbstractPseudonym(dest, 0, utf8);
+					Assert.assertEquals(a.calculateAbstractPseudonym(new String(utf8[0], StandardCharsets.UTF_8), new String(utf8[1], StandardCharsets.UTF_8)),
+							new String(dest, 0, len, StandardCharsets.US_ASCII));
+				}
+				Assert.assertEquals(a.calculateAbstractPseudonym("x", null), a.calculateAbstractPseudonym((CharSequence)"x", null));
+				int len = a.calculateAbstractPseudonym(dest, 0, new byte[]{'x'}, null);
+				Assert.assertEquals(a.calculateAbstractPseudonym("x", null), new String(dest, 0, len, StandardCharsets.US_ASCII));
+				// without segments
+				len = a.calculateAbstractPseudonym(dest, 0);
+				Assert.assertEquals(a.calculateAbstractPseudonym(), new String(dest, 0, len, StandardCharsets.US_ASCII));
+			}
+		}
+		Assert.assertEquals(28, anonymizer("SHA-1", null).pseudonymLength());
+	}
+
+	@Test
+	public void verifyHmacUsesSaltAsKey() throws GeneralSecurityException{
+		Random rand = new Random(3);
+		for( String algorithm : new String[]{"HmacSHA256", "HmacSHA512"} ){
+			OneWayAnonymizer a = anonymizer(algorithm, "sälz");
+			Mac mac = Mac.getInstance(algorithm);
+			mac.init(new SecretKeySpec("sälz".getBytes(StandardCharsets.UTF_8), algorithm));
+			for( int i=0; i<50; i++ ){
+				String[] args = {randomString(rand), randomString(rand)};
+				byte[] expected = mac.doFinal(String.join("/", args).getBytes(StandardCharsets.UTF_8));
+				Assert.assertEquals(Base64.getUrlEncoder().encodeToString(expected), a.calculateAbstractPseudonym(args));
+			}
+		}
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void verifyHmacWithoutSaltFails(){
+		anonymizer("HmacSHA256", null);
+	}
+
+	@Test
+	public void verifyBatchMatchesSingleCalls(){
+		OneWayAnonymizer a = anonymizer("SHA-256", "batch");
+		Random rand = new Random(7);
+		List<String[]> tuples = new ArrayList<>();
+		for( int i=0; i<5000; i++ ){
+			tuples.add(new String[]{"1.2.276.0.76.4.8", Integer.toString(rand.nextInt())});
+		}
+		List<String> pseudonyms = a.calculateAbstractPseudonyms(tuples);
+		Assert.assertEquals(tuples.size(), pseudonyms.size());
+		for( int i=0; i<tuples.size(); i++ ){
+			Assert.assertEquals(a.calculateAbstractPseudonym(tuples.get(i)), pseudonyms.get(i));
+		}
+		Assert.assertEquals(pseudonyms.subList(0, 10), a.calculateAbstractPseudonyms(tuples.stream().limit(10)));
+	}
+
+	@Test
+	public void verifyCacheHitsAndFlush(){
+		PropertyFilePreferences prefs = preferences(null, "salt");
+		prefs.put(OneWayAnonymizer.CACHE_SIZE_KEY, "100");
+		OneWayAnonymizer a = new OneWayAnonymizer(prefs);
+		try{
+			String p = a.calculateAbstractPseudonym("1.2.3", "42");
+			Assert.assertEquals(p, a.calculateAbstractPseudonym("1.2.3", "42"));
+			Assert.assertEquals(p, a.calculateAbstractPseudonyms(Arrays.asList(new String[][]{{"1.2.3","42"}})).get(0));
+			Assert.assertEquals(2, a.getCacheHits());
+			Assert.assertEquals(1, a.getCacheMisses());
+			Assert.assertEquals(1, a.getCacheSize());
+			// salt change discards the cache
+			prefs.put(PreferenceKey.pseudonymSalt.key(), "pepper");
+			String q = a.calculateAbstractPseudonym("1.2.3", "42");
+			Assert.assertNotEquals(p, q);
+			Assert.assertEquals(0, a.getCacheHits());
+			Assert.assertEquals(anonymizer(null, "pepper").calculateAbstractPseudonym("1.2.3", "42"), q);
+		}finally{
+			a.close();
+		}
+	}
+
+	@Test
+	public void verifyCacheEvictionAndExpiry() throws InterruptedException{
+		PropertyFilePreferences prefs = preferences(null, null);
+		prefs.put(OneWayAnonymizer.CACHE_SIZE_KEY, "1");
+		prefs.put(OneWayAnonymizer.CACHE_TTL_KEY, "100");
+		OneWayAnonymizer a = new OneWayAnonymizer(prefs);
+		try{
+			a.calculateAbstractPseudonym("a");
+			a.calculateAbstractPseudonym("b");
+			// evicted by b
+			a.calculateAbstractPseudonym("a");
+			Assert.assertEquals(3, a.getCacheMisses());
+			Assert.assertEquals(1, a.getCacheSize());
+			Thread.sleep(200);
+			a.calculateAbstractPseudonym("a");
+			Assert.assertEquals(0, a.getCacheHits());
+			Assert.assertEquals(4, a.getCacheMisses());
+		}finally{
+			a.close();
+		}
+		Assert.assertEquals(0, a.getCacheSize());
+	}
+
+	@Test
+	public void verifyCacheSizeNeverExceedsMaximum(){
+		Random rand = new Random(42);
+		for( int maxSize : new int[]{1, 7, 20, 33, 100, 1000} ){
+			PseudonymCache cache = new PseudonymCache(maxSize, 60000);
+			for( int i=0; i<maxSize*20; i++ ){
+				cache.put(randomString(rand), "p");
+				Assert.assertTrue("cache size "+maxSize, cache.size() <= maxSize);
+			}
+		}
+	}
+
+	@Test
+	public void verifyReloadAfterInvalidAlgorithm() throws NoSuchMethodException{
+		PropertyFilePreferences prefs = preferences(null, "salt");
+		OneWayAnonymizer a = new OneWayAnonymizer(prefs);
+		String p = a.calculateAbstractPseudonym("42");
+		// reloaded by the container with a write lock
+		Lock lock = OneWayAnonymizer.class.getMethod("preferencesChanged", PreferencesChangedEvent.class).getAnnotation(Lock.class);
+		Assert.assertEquals(LockType.WRITE, lock.value());
+		prefs.put(PreferenceKey.pseudonymAlgorithm.key(), "NO-SUCH-DIGEST");
+		try{
+			a.calculateAbstractPseudonym("42");
+			Assert.fail("Calculation with invalid algorithm");
+		}catch( IllegalStateException e ){
+			// expected
+		}
+		prefs.put(PreferenceKey.pseudonymAlgorithm.key(), "SHA-1");
+		Assert.assertEquals(p, a.calculateAbstractPseudonym("42"));
+		a.close();
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void verifyUnknownAlgorithmFailsDuringInitialization(){
+		anonymizer("NO-SUCH-DIGEST", null);
+	}
+}
@@ -0,0 +1,230 @@
+package org.aktin.dwh.prefs.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import javax.enterprise.event.Event;
+import javax.enterprise.util.TypeLiteral;
+
+import org.aktin.dwh.PreferenceKey;
+import org.hsqldb.jdbc.JDBCDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestJdbcPreferences {
+	private JDBCDataSource ds;
+	private PropertyFilePreferences file;
+
+	@Before
+	public void createDatabase() throws SQLException, IOException{
+		ds = new JDBCDataSource();
+		ds.setUrl("jdbc:hsqldb:mem:prefs");
+		ds.setUser("SA");
+		ds.setPassword("");
+		execute("CREATE TABLE aktin_preferences(pref_key VARCHAR(255) NOT NULL PRIMARY KEY, pref_value VARCHAR(4000), version BIGINT NOT NULL)");
+		execute("INSERT INTO aktin_preferences VALUES('local.cn', 'Database Clinic', 1)");
+		execute("INSERT INTO aktin_preferences VALUES('db.only', 'x', 1)");
+		try( InputStream in = getClass().getResourceAsStream("/aktin.properties") ){
+			file = new PropertyFilePreferences(in);
+		}
+		// no replacement by the background server URL detection during tests
+		file.put(PreferenceKey.serverUrl.key(), "http://localhost/");
+	}
+
+	@After
+	public void dropDatabase() throws SQLException{
+		execute("DROP TABLE aktin_preferences");
+	}
+
+	private void execute(String sql) throws SQLException{
+		try( Connection dbc = ds.getConnection();
+				Statement st = dbc.createStatement() ){
+			st.executeUpdate(sql);
+		}
+	}
+
+	private String queryValue(String key) throws SQLException{
+		try( Connection dbc = ds.getConnection();
+				Statement st = dbc.createStatement();
+				ResultSet rs = st.executeQuery("SELECT pref_value FROM aktin_preferences WHERE pref_key='"+key+"'") ){
+			if( rs.next() ){
+				return rs.getString(1);
+			}
+			return null;
+		}
+	}
+
+	@Test
+	public void verifyDatabaseOverridesFile() throws SQLException{
+		JdbcPreferences prefs = new JdbcPreferences(file, ds);
+		Assert.assertEquals("Database Clinic", prefs.get(PreferenceKey.commonName));
+		Assert.assertEquals("Database Clinic", prefs.get(PreferenceKey.commonName.key()));
+		Assert.assertEquals("x", prefs.get("db.only"));
+		// values only in the file are still available
+		Assert.assertEquals(file.get("mail.smtp.host"), prefs.get("mail.smtp.host"));
+		Assert.assertEquals(10, prefs.forPrefix("mail.", (k,v) -> {}));
+	}
+
+	@Test
+	public void verifyReadsDoNotAccessDatabase() throws SQLException{
+		JdbcPreferences prefs = new JdbcPreferences(file, ds);
+		execute("UPDATE aktin_preferences SET pref_value='changed', version=2 WHERE pref_key='db.only'");
+		// not visible before refresh
+		Assert.assertEquals("x", prefs.get("db.only"));
+		prefs.refresh();
+		Assert.assertEquals("changed", prefs.get("db.only"));
+		// unchanged version does not reload
+		execute("UPDATE aktin_preferences SET pref_value='ignored' WHERE pref_key='db.only'");
+		prefs.refresh();
+		Assert.assertEquals("changed", prefs.get("db.only"));
+		// null value removes the override
+		execute("UPDATE aktin_preferences SET pref_value=NULL, version=3 WHERE pref_key='local.cn'");
+		prefs.refresh();
+		Assert.assertEquals(file.get(PreferenceKey.commonName), prefs.get(PreferenceKey.commonName));
+	}
+
+	@Test
+	public void verifyFileChangesArePropagated() throws SQLException{
+		JdbcPreferences prefs = new JdbcPreferences(file, ds);
+		List<PreferencesChangedEvent> events = new ArrayList<>();
+		prefs.addChangeListener(events::add);
+		file.put("file.only", "1");
+		Assert.assertEquals("1", prefs.get("file.only"));
+		// database overrides file
+		file.put(PreferenceKey.commonName.key(), "File Clinic");
+		Assert.assertEquals("Database Clinic", prefs.get(PreferenceKey.commonName));
+		Assert.assertEquals(1, events.size());
+		Assert.assertEquals(Collections.singleton("file.only"), events.get(0).getChangedKeys());
+	}
+
+	@Test
+	public void verifyWritesAreBatched() throws SQLException{
+		JdbcPreferences prefs = new JdbcPreferences(file, ds);
+		prefs.put("db.only", "y");
+		prefs.put("new.key", "z");
+		// visible immediately
+		Assert.assertEquals("y", prefs.get("db.only"));
+		Assert.assertEquals("z", prefs.get("new.key"));
+		// but not yet written
+		Assert.assertEquals("x", queryValue("db.only"));
+		Assert.assertNull(queryValue("new.key"));
+		prefs.refresh();
+		Assert.assertEquals("y", queryValue("db.only"));
+		Assert.assertEquals("z", queryValue("new.key"));
+		// a new instance sees the written values
+		JdbcPreferences other = new JdbcPreferences(file, ds);
+		Assert.assertEquals("y", other.get("db.only"));
+		Assert.assertEquals("z", other.get("new.key"));
+	}
+
+	@Test
+	public void verifyConcurrentWritersSeeAllValues() throws Exception{
+		JdbcPreferences a = new JdbcPreferences(file, ds);
+		JdbcPreferences b = new JdbcPreferences(file, ds);
+		int count = 50;
+		CountDownLatch start = new CountDownLatch(1);
+		List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+		List<Thread> threads = new ArrayList<>();
+		for( JdbcPreferences prefs : new JdbcPreferences[]{a, b} ){
+			String prefix = (prefs == a) ? "a." : "b.";
+			threads.add(new Thread( () -> {
+				try{
+					start.await();
+					for( int i=0; i<count; i++ ){
+						prefs.put(prefix+i, "v"+i);
+						prefs.refresh();
+					}
+				}catch( Throwable e ){
+					failures.add(e);
+				}
+			}));
+		}
+		threads.forEach(Thread::start);
+		start.countDown();
+		for( Thread t : threads ){
+			t.join();
+		}
+		Assert.assertEquals(Collections.emptyList(), failures);
+		a.refresh();
+		b.refresh();
+		for( int i=0; i<count; i++ ){
+			Assert.assertEquals("v"+i, a.get("b."+i));
+			Assert.assertEquals("v"+i, b.get("a."+i));
+		}
+		Assert.assertNull(a.get(JdbcPreferences.VERSION_ROW));
+	}
+
+	@Test
+	public void verifyMissingDataSourceFailsClearly() throws Exception{
+		PropertyFilePreferences empty = PropertyFilePreferences.empty();
+		empty.put(PreferenceKey.serverUrl.key(), "http://localhost/");
+		JdbcPreferences prefs = new JdbcPreferences();
+		Field f = JdbcPreferences.class.getDeclaredField("file");
+		f.setAccessible(true);
+		f.set(prefs, empty);
+		try{
+			prefs.initialize();
+			Assert.fail("Expected failure without data source");
+		}catch( IllegalStateException e ){
+			Assert.assertTrue(e.getMessage().contains(JdbcPreferences.DATASOURCE_KEY));
+		}
+	}
+
+	/**
+	 * Records fired CDI events
+	 */
+	private static class RecordingEvent implements Event<PreferencesChangedEvent>{
+		final List<PreferencesChangedEvent> fired = new ArrayList<>();
+		@Override
+		public void fire(PreferencesChangedEvent event){
+			fired.add(event);
+		}
+		@Override
+		public Event<PreferencesChangedEvent> select(Annotation... qualifiers){
+			throw new UnsupportedOperationException();
+		}
+		@Override
+		public <U extends PreferencesChangedEvent> Event<U> select(Class<U> subtype, Annotation... qualifiers){
+			throw new UnsupportedOperationException();
+		}
+		@Override
+		public <U extends PreferencesChangedEvent> Event<U> select(TypeLiteral<U> subtype, Annotation... qualifiers){
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private static RecordingEvent injectEvent(SnapshotPreferences prefs) throws ReflectiveOperationException{
+		RecordingEvent event = new RecordingEvent();
+		Field f = SnapshotPreferences.class.getDeclaredField("changeEvent");
+		f.setAccessible(true);
+		f.set(prefs, event);
+		return event;
+	}
+
+	@Test
+	public void verifyOnlyActivePreferencesFireEvents() throws Exception{
+		RecordingEvent fileEvents = injectEvent(file);
+		JdbcPreferences prefs = new JdbcPreferences(file, ds);
+		RecordingEvent dbEvents = injectEvent(prefs);
+		file.put("file.only", "1");
+		Assert.assertTrue(fileEvents.fired.isEmpty());
+		Assert.assertEquals(1, dbEvents.fired.size());
+		Assert.assertSame(prefs, dbEvents.fired.get(0).getSource());
+		// file preferences are active again after close
+		prefs.close();
+		file.put("file.only", "2");
+		Assert.assertEquals(1, fileEvents.fired.size());
+	}
+}
@@ -1,19 +1,47 @@
 package org.aktin.dwh.prefs.impl;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.enterprise.inject.Produces;
+import javax.mail.internet.InternetAddress;
+import javax.management.ObjectName;
 
 import org.aktin.Preferences;
 import org.aktin.dwh.PreferenceKey;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 public class TestPreferences {
 	private PropertyFilePreferences prefs;
-	
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
 	@Before
 	public void loadTestPrefs() throws IOException{
 		try( InputStream in = getClass().getResourceAsStream("/aktin.properties") ){
@@ -21,6 +49,14 @@ public class TestPreferences {
 		}
 	}
 	
+	/**
+	 * Configure the server URL, so that the snapshot is not
+	 * replaced by the background detection during a test.
+	 */
+	private void pinServerUrl(){
+		prefs.put(PreferenceKey.serverUrl.key(), "http://localhost/");
+	}
+
 	@Test
 	public void verifyMandatoryPreferenceKeys() throws IOException{
 		for( PreferenceKey pref : PreferenceKey.values() ){
@@ -35,6 +71,77 @@ public class TestPreferences {
 		Assert.assertNotNull(value);
 	}
 
+	@Test
+	public void verifyServerUrlDetectionReplacesGuess() throws Exception{
+		Path cache = tempFolder.getRoot().toPath().resolve(ServerUrlDetector.CACHE_FILE);
+		Files.write(cache, "http://cached.example/".getBytes(StandardCharsets.UTF_8));
+		CountDownLatch release = new CountDownLatch(1);
+		ServerUrlDetector detector = new ServerUrlDetector(cache, 10, () -> {
+			try{
+				release.await();
+			}catch( InterruptedException e ){
+				throw new IllegalStateException(e);
+			}
+			return "http://detected.example/";
+		});
+		PropertyFilePreferences p = new PropertyFilePreferences(new ByteArrayInputStream(new byte[0]), detector);
+		List<PreferencesChangedEvent> events = new CopyOnWriteArrayList<>();
+		CountDownLatch changed = new CountDownLatch(1);
+		p.addChangeListener( e -> {
+			events.add(e);
+			changed.countDown();
+		});
+		// detection still running, cached value used
+		Assert.assertEquals("http://cached.example/", p.get(PreferenceKey.serverUrl));
+		// late result is used and cached
+		release.countDown();
+		Assert.assertTrue(changed.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals("http://detected.example/", p.get(PreferenceKey.serverUrl));
+		Assert.assertEquals(1, events.size());
+		Assert.assertEquals(Collections.singleton(PreferenceKey.serverUrl.key()), events.get(0).getChangedKeys());
+		Assert.assertEquals("http://detected.example/", detector.cachedOrFallback());
+	}
+
+	@Test
+	public void verifyServerUrlDetectionNeverBlocks() throws Exception{
+		CountDownLatch release = new CountDownLatch(1);
+		ServerUrlDetector detector = new ServerUrlDetector(null, 5000, () -> {
+			try{
+				release.await();
+			}catch( InterruptedException e ){
+				throw new IllegalStateException(e);
+			}
+			return "http://detected.example/";
+		});
+		long start = System.nanoTime();
+		PropertyFilePreferences p = new PropertyFilePreferences(new ByteArrayInputStream(new byte[0]), detector);
+		CountDownLatch changed = new CountDownLatch(1);
+		p.addChangeListener( e -> changed.countDown() );
+		// loopback address used without waiting for the detection
+		Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+		Assert.assertEquals(detector.cachedOrFallback(), p.get(PreferenceKey.serverUrl));
+		release.countDown();
+		Assert.assertTrue(changed.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals("http://detected.example/", p.get(PreferenceKey.serverUrl));
+	}
+
+	@Test
+	public void verifyServerUrlDetectionWithoutHostLookup(){
+		String url = ServerUrlDetector.determineServerURL();
+		Assert.assertTrue(url.startsWith("http://"));
+		Assert.assertFalse(url.contains("%"));
+	}
+
+	@Test
+	public void verifyServerUrlCache() throws IOException{
+		Path cache = tempFolder.getRoot().toPath().resolve(ServerUrlDetector.CACHE_FILE);
+		ServerUrlDetector d = new ServerUrlDetector(cache, ServerUrlDetector.DEFAULT_WARN_MILLIS);
+		// loopback fallback without cache
+		Assert.assertTrue(d.cachedOrFallback().startsWith("http://"));
+		Files.write(cache, "http://cached.example/".getBytes(StandardCharsets.UTF_8));
+		Assert.assertEquals("http://cached.example/", d.cachedOrFallback());
+	}
+
 	@Test
 	public void verifyPrefixedPreferenceLists() {
 		List<String> keys = new ArrayList<>();
@@ -48,6 +155,263 @@ public class TestPreferences {
 		}
 	}
 	
+	@Test
+	public void verifyIndexedPrefixMatchesScan() {
+		pinServerUrl();
+		String[] prefixes = {"", "mail.", "mail.smtp.", "mail.smtp.port", "broker.", "local.", "l", "zzz", "\u0000"};
+		for( String prefix : prefixes ){
+			// scan all keys like the default implementation
+			Map<String,String> expected = new TreeMap<>();
+			for( String key : prefs.keySet() ){
+				if( key.startsWith(prefix) ){
+					expected.put(key, prefs.get(key));
+				}
+			}
+			Map<String,String> actual = new TreeMap<>();
+			int count = prefs.forPrefix(prefix, actual::put);
+			Assert.assertEquals("Prefix "+prefix, expected.size(), count);
+			Assert.assertEquals("Prefix "+prefix, expected, actual);
+		}
+	}
+
+	@Test
+	public void verifyPreferenceKeyLookupMatchesStringLookup() {
+		pinServerUrl();
+		for( PreferenceKey key : PreferenceKey.values() ){
+			Assert.assertEquals(prefs.get(key.key()), prefs.get(key));
+		}
+		// index must follow changes
+		prefs.put(PreferenceKey.languageTag.key(), "en-US");
+		Assert.assertEquals("en-US", prefs.get(PreferenceKey.languageTag));
+	}
+
+	@Test
+	public void verifyTypedPreferences() {
+		Assert.assertEquals(Duration.ofMinutes(1), PreferenceType.DURATION.get(prefs, "broker.intervals"));
+		Assert.assertEquals(Duration.ofMinutes(10), PreferenceType.DURATION.get(prefs, "import.script.timeout"));
+		Assert.assertEquals(Integer.valueOf(587), PreferenceType.INTEGER.get(prefs, "mail.smtp.port"));
+		Assert.assertEquals(Long.valueOf(300000), PreferenceType.LONG.get(prefs, "rscript.timeout"));
+		Assert.assertEquals(Boolean.TRUE, PreferenceType.BOOLEAN.get(prefs, "rscript.debug"));
+		Assert.assertEquals(Locale.GERMANY, PreferenceType.LOCALE.get(prefs, PreferenceKey.languageTag.key()));
+		Assert.assertEquals(2, PreferenceType.STRING_LIST.get(prefs, PreferenceKey.email.key()).size());
+		Assert.assertEquals(2, PreferenceType.INTERNET_ADDRESSES.get(prefs, PreferenceKey.email.key()).length);
+		// blank and missing values
+		Assert.assertNull(PreferenceType.INTEGER.get(prefs, "does.not.exist"));
+		Assert.assertNull(PreferenceType.LONG.get(prefs, PreferenceKey.pseudonymSalt.key()));
+		Assert.assertEquals(0, PreferenceType.STRING_LIST.get(prefs, PreferenceKey.pseudonymSalt.key()).size());
+	}
+
+	@Test
+	public void verifyTypedPreferencesCachedPerSnapshot() {
+		pinServerUrl();
+		Duration d = PreferenceType.DURATION.get(prefs, "broker.intervals");
+		Assert.assertSame(d, PreferenceType.DURATION.get(prefs, "broker.intervals"));
+		prefs.put("broker.intervals", "PT5M");
+		Assert.assertEquals(Duration.ofMinutes(5), PreferenceType.DURATION.get(prefs, "broker.intervals"));
+	}
+
+	@Test
+	public void verifyCachedAddressesNotShared() throws UnsupportedEncodingException {
+		pinServerUrl();
+		InternetAddress[] a = PreferenceType.INTERNET_ADDRESSES.get(prefs, PreferenceKey.email.key());
+		String personal = a[0].getPersonal();
+		a[0].setPersonal("Changed");
+		a[1] = null;
+		InternetAddress[] b = PreferenceType.INTERNET_ADDRESSES.get(prefs, PreferenceKey.email.key());
+		Assert.assertNotNull(b[1]);
+		Assert.assertEquals(personal, b[0].getPersonal());
+	}
+
+	@Test
+	public void verifyProducerTypesAreResolved() {
+		for( Method m : PreferenceProducer.class.getDeclaredMethods() ){
+			if( m.isAnnotationPresent(Produces.class) && m.getReturnType() != String.class ){
+				Assert.assertNotNull(m.getName(), PreferenceType.forType(m.getGenericReturnType()));
+			}
+		}
+	}
+
+	@Test
+	public void verifyInvalidTypedPreferenceFails() {
+		for( int i=0; i<2; i++ ){
+			// second call uses the cached result
+			try{
+				PreferenceType.BOOLEAN.get(prefs, PreferenceKey.commonName.key());
+				Assert.fail("Invalid boolean should throw exception");
+			}catch( IllegalArgumentException e ){
+				Assert.assertTrue(e.getMessage().contains(PreferenceKey.commonName.key()));
+			}
+		}
+	}
+
+	@Test
+	public void verifyChangeListenerReceivesChangedKeys() {
+		pinServerUrl();
+		List<PreferencesChangedEvent> events = new ArrayList<>();
+		prefs.addChangeListener(events::add);
+		prefs.put("mail.smtp.port", "25");
+		// same value does not produce an event
+		prefs.put("mail.smtp.port", "25");
+		prefs.put(PreferenceKey.pseudonymSalt.key(), "salt");
+		Assert.assertEquals(2, events.size());
+		Assert.assertEquals(Collections.singleton("mail.smtp.port"), events.get(0).getChangedKeys());
+		Assert.assertTrue(events.get(0).affects("mail."));
+		Assert.assertTrue(events.get(0).affects("mail.smtp.port"));
+		Assert.assertFalse(events.get(0).affects("mail.x."));
+		Assert.assertFalse(events.get(0).affects(PreferenceKey.pseudonymSalt));
+		Assert.assertTrue(events.get(1).affects(PreferenceKey.pseudonymSalt));
+		Assert.assertSame(prefs, events.get(1).getSource());
+	}
+
+	@Test
+	public void verifyAccessStatistics() throws Exception{
+		Assert.assertNull(prefs.getAccessStatistics());
+		prefs.get("mail.smtp.port");
+		prefs.enableAccessStatistics();
+		PreferenceAccessMXBean stats = prefs.getAccessStatistics();
+		try{
+			prefs.get("mail.smtp.port");
+			prefs.get("mail.smtp.port");
+			prefs.get(PreferenceKey.pseudonymSalt);
+			prefs.get("test.undefined");
+			// typed reads are counted as well
+			Assert.assertEquals(Integer.valueOf(587), PreferenceType.INTEGER.get(prefs, "mail.smtp.port"));
+			prefs.forPrefix("mail.", (k,v) -> {} );
+			// scoped reads are counted with the full key
+			ScopedPreferences mail = prefs.scope("mail");
+			Assert.assertEquals("smtp.gmail.com", mail.get("smtp.host"));
+			Assert.assertEquals(Integer.valueOf(587), PreferenceType.INTEGER.get(mail.scope("smtp"), "port"));
+			Assert.assertEquals(Long.valueOf(4), stats.getReadCounts().get("mail.smtp.port"));
+			Assert.assertEquals(Long.valueOf(1), stats.getReadCounts().get("mail.smtp.host"));
+			Assert.assertEquals(Long.valueOf(1), stats.getReadCounts().get(PreferenceKey.pseudonymSalt.key()));
+			// forPrefix and scope
+			Assert.assertEquals(Long.valueOf(2), stats.getPrefixQueryCounts().get("mail."));
+			Assert.assertEquals(Long.valueOf(1), stats.getPrefixQueryCounts().get("mail.smtp."));
+			// missing keys only in the totals
+			Assert.assertFalse(stats.getReadCounts().containsKey("test.undefined"));
+			Assert.assertEquals(7, stats.getTotalReads());
+			Assert.assertEquals(1, stats.getMissingLookups());
+			// exported via JMX
+			ObjectName name = new ObjectName("org.aktin.dwh:type=PreferenceAccess,name=PropertyFilePreferences");
+			Assert.assertEquals(Long.valueOf(7), ManagementFactory.getPlatformMBeanServer().getAttribute(name, "TotalReads"));
+			stats.reset();
+			Assert.assertEquals(0, stats.getTotalReads());
+		}finally{
+			prefs.close();
+		}
+		Assert.assertNull(prefs.getAccessStatistics());
+		Assert.assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName("org.aktin.dwh:type=PreferenceAccess,name=PropertyFilePreferences")));
+	}
+
+	@Test
+	public void verifyAccessStatisticsLimited(){
+		PreferenceAccessStatistics stats = new PreferenceAccessStatistics();
+		for( int i=0; i<PreferenceAccessStatistics.MAX_KEYS+10; i++ ){
+			stats.recordGet("key."+i, "value");
+			stats.recordPrefix("prefix."+i);
+		}
+		Assert.assertEquals(PreferenceAccessStatistics.MAX_KEYS, stats.getReadCounts().size());
+		Assert.assertEquals(PreferenceAccessStatistics.MAX_KEYS, stats.getPrefixQueryCounts().size());
+		Assert.assertEquals(PreferenceAccessStatistics.MAX_KEYS+10, stats.getTotalReads());
+		// known keys are still counted
+		stats.recordGet("key.0", "value");
+		Assert.assertEquals(Long.valueOf(2), stats.getReadCounts().get("key.0"));
+	}
+
+	@Test
+	public void verifyScopedPreferences() {
+		pinServerUrl();
+		prefs.put("broker.pilot.name", "AKTIN Pilot");
+		prefs.put("broker.pilot.https.interval", "PT1H");
+		prefs.put("broker.pilot.https.broker", "https://broker.example/");
+		prefs.put("broker.test.inbox.port", "993");
+		ScopedPreferences https = prefs.scope("broker.pilot.https");
+		Assert.assertEquals("broker.pilot.https.", https.getPrefix());
+		Assert.assertEquals(new TreeSet<>(Arrays.asList("interval", "broker")), https.keySet());
+		Assert.assertEquals("https://broker.example/", https.get("broker"));
+		Assert.assertEquals(Duration.ofHours(1), PreferenceType.DURATION.get(https, "interval"));
+		// shared per snapshot, also via nested scopes
+		Assert.assertSame(https, prefs.scope("broker.pilot.https."));
+		ScopedPreferences broker = prefs.scope("broker");
+		Assert.assertTrue(broker.childNames().containsAll(Arrays.asList("pilot", "test")));
+		Assert.assertFalse(broker.childNames().contains("name"));
+		Assert.assertEquals(https.keySet(), broker.scope("pilot").scope("https").keySet());
+		Assert.assertEquals("broker.pilot.https.", broker.scope("pilot").scope("https").getPrefix());
+		Assert.assertTrue(prefs.scope("broker.unknown").keySet().isEmpty());
+		// views are immutable
+		prefs.put("broker.pilot.https.pool", "https://pool.example/");
+		Assert.assertNull(https.get("pool"));
+		Assert.assertNotSame(https, prefs.scope("broker.pilot.https"));
+		Assert.assertEquals("https://pool.example/", prefs.scope("broker.pilot.https").get("pool"));
+	}
+
+	@Test
+	public void verifyCompactSnapshotLookup() {
+		Map<String,String> map = new HashMap<>();
+		for( int i=0; i<1000; i++ ){
+			// few distinct values
+			map.put("site."+i+".value", new String("v"+(i%10)));
+		}
+		PreferenceSnapshot s = PreferenceSnapshot.of(map);
+		for( Map.Entry<String,String> e : map.entrySet() ){
+			Assert.assertEquals(e.getValue(), s.get(e.getKey()));
+		}
+		Assert.assertNull(s.get("site.1000.value"));
+		Assert.assertNull(s.get(""));
+		// equal values share one instance
+		Assert.assertSame(s.get("site.1.value"), s.get("site.11.value"));
+		// immutable key view without copy
+		Set<String> keys = s.keySet();
+		Assert.assertEquals(map.keySet(), keys);
+		Assert.assertTrue(keys.contains("site.999.value"));
+		Assert.assertFalse(keys.contains("site.999"));
+		try{
+			keys.remove("site.1.value");
+			Assert.fail("key set must be immutable");
+		}catch( UnsupportedOperationException e ){
+			// expected
+		}
+		// changes produce new snapshots
+		Map<String,String> overrides = new HashMap<>();
+		overrides.put("site.1.value", "x");
+		overrides.put("a.new", "y");
+		PreferenceSnapshot t = s.with("site.0.value", "z").withAll(overrides);
+		Assert.assertEquals("v0", s.get("site.0.value"));
+		Assert.assertEquals("z", t.get("site.0.value"));
+		Assert.assertEquals("x", t.get("site.1.value"));
+		Assert.assertEquals("y", t.get("a.new"));
+		Assert.assertEquals(map.size()+1, t.keySet().size());
+		Assert.assertEquals(new TreeSet<>(Arrays.asList("a.new", "site.0.value", "site.1.value")), s.changedKeys(t));
+	}
+
+	@Test
+	public void verifyPutReplacesValue() {
+		int size = prefs.keySet().size();
+		prefs.put("test.added", "1");
+		Assert.assertEquals("1", prefs.get("test.added"));
+		Assert.assertEquals(size+1, prefs.keySet().size());
+		prefs.put("test.added", "2");
+		Assert.assertEquals("2", prefs.get("test.added"));
+	}
+
+	@Test
+	public void verifyReloadAfterModification() throws IOException, InterruptedException{
+		Path file = tempFolder.newFile("aktin.properties").toPath();
+		Files.write(file, Arrays.asList(PropertyFilePreferences.RELOAD_KEY+"=true", "test.value=a"), StandardCharsets.UTF_8);
+		PropertyFilePreferences p = new PropertyFilePreferences(file);
+		try{
+			Assert.assertEquals("a", p.get("test.value"));
+			Files.write(file, Arrays.asList(PropertyFilePreferences.RELOAD_KEY+"=true", "test.value=b"), StandardCharsets.UTF_8);
+			// wait for the watcher thread to pick up the change
+			for( int i=0; i<100 && !"b".equals(p.get("test.value")); i++ ){
+				Thread.sleep(100);
+			}
+			Assert.assertEquals("b", p.get("test.value"));
+		}finally{
+			p.close();
+		}
+	}
+
 	public Preferences getPreferences(){
 		return prefs;
 	}
@@ -0,0 +1,267 @@
+package org.aktin.dwh.statistics;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Stress tests for {@link ImportSummaryImpl} and {@link ErrorCache}.
+ * Many threads count events while others read, reset and marshal
+ * the statistics. Invariants are checked during and after the run.
+ * Changes to the counting in this package must pass these tests.
+ */
+public class TestImportSummaryConcurrency {
+	private static final int WRITERS = 8;
+	private static final int ITERATIONS = 20000;
+	private static final String[] TEMPLATES = {"T1", "T2", "T3", null};
+
+	private final Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Run workers concurrently until all writers are finished.
+	 * @param writers number of writer threads, each receives its index
+	 * @param writer writer task
+	 * @param readers reader tasks, called repeatedly until the writers are finished
+	 */
+	private void run(int writers, IntConsumer writer, Runnable... readers) throws InterruptedException{
+		CountDownLatch start = new CountDownLatch(1);
+		AtomicBoolean done = new AtomicBoolean();
+		List<Thread> writerThreads = new ArrayList<>();
+		List<Thread> readerThreads = new ArrayList<>();
+		for( int t=0; t<writers; t++ ){
+			final int id = t;
+			writerThreads.add(new Thread( () -> {
+				try{
+					start.await();
+					writer.accept(id);
+				}catch( Throwable e ){
+					failures.add(e);
+				}
+			}));
+		}
+		for( Runnable reader : readers ){
+			readerThreads.add(new Thread( () -> {
+				try{
+					start.await();
+					do{
+						reader.run();
+					}while( !done.get() );
+				}catch( Throwable e ){
+					failures.add(e);
+				}
+			}));
+		}
+		writerThreads.forEach(Thread::start);
+		readerThreads.forEach(Thread::start);
+		start.countDown();
+		for( Thread t : writerThreads ){
+			t.join();
+		}
+		done.set(true);
+		for( Thread t : readerThreads ){
+			t.join();
+		}
+		if( !failures.isEmpty() ){
+			Throwable first = failures.poll();
+			AssertionError e = new AssertionError("Worker failed: "+first, first);
+			failures.forEach(e::addSuppressed);
+			throw e;
+		}
+	}
+
+	private static void verifyErrors(Collection<RepeatableError> errors, int maxSize){
+		Assert.assertTrue("Error cache exceeds maximum size", errors.size() <= maxSize);
+		Set<String> messages = new HashSet<>();
+		for( RepeatableError e : errors ){
+			Assert.assertTrue("Error counted less than once", e.getCount() >= 1);
+			Assert.assertTrue("Duplicate error "+e.getMessage(), messages.add(e.getMessage()));
+		}
+	}
+
+	private static void verifyConsistent(ImportSummarySnapshot s, long maxPerType){
+		Assert.assertTrue(s.getImportedCount() >= 0 && s.getImportedCount() <= maxPerType);
+		Assert.assertTrue(s.getUpdatedCount() >= 0 && s.getUpdatedCount() <= maxPerType);
+		Assert.assertTrue(s.getInvalidCount() + s.getFailedCount() <= maxPerType);
+		// every counted event has a timestamp
+		if( s.getImportedCount() + s.getUpdatedCount() > 0 ){
+			Assert.assertNotNull(s.getLastWriteTime());
+		}
+		if( s.getInvalidCount() + s.getFailedCount() > 0 ){
+			Assert.assertNotNull(s.getLastRejectTime());
+		}
+		// parts never contain more events than the totals
+		long imported = 0;
+		long rejected = 0;
+		for( TemplateStatistics t : s.getTemplates() ){
+			imported += t.getImportedCount();
+			rejected += t.getInvalidCount() + t.getFailedCount();
+		}
+		Assert.assertTrue(imported <= s.getImportedCount());
+		Assert.assertTrue(rejected <= s.getInvalidCount() + s.getFailedCount());
+		for( WindowStatistics w : s.getRecentActivity() ){
+			Assert.assertTrue(w.getImportedCount() <= s.getImportedCount());
+			Assert.assertTrue(w.getRejectedCount() <= s.getInvalidCount() + s.getFailedCount());
+		}
+	}
+
+	@Test
+	public void verifyTotalsWithConcurrentReaders() throws InterruptedException{
+		ImportSummaryImpl s = new ImportSummaryImpl();
+		int maxSize = s.previousErrors.getMaxSize();
+		long[] lastImported = new long[1];
+		run(WRITERS, id -> {
+			for( int i=0; i<ITERATIONS; i++ ){
+				String template = TEMPLATES[i % TEMPLATES.length];
+				s.addCreated(template);
+				s.addUpdated(template);
+				// five distinct causes with variable document numbers
+				s.addRejected(template, (i & 1) == 0, "Error "+(char)('A' + i % 5)+" in document "+(id * ITERATIONS + i));
+			}
+		}, () -> {
+			ImportSummarySnapshot snapshot = s.snapshot();
+			verifyConsistent(snapshot, WRITERS * ITERATIONS);
+			// without reset, errors are not ahead of the totals either
+			long repeats = 0;
+			for( RepeatableError e : snapshot.getLastRepeatedErrors() ){
+				repeats += e.getCount();
+			}
+			Assert.assertTrue(repeats <= snapshot.getInvalidCount() + snapshot.getFailedCount());
+			// counts never decrease without reset
+			Assert.assertTrue(snapshot.getImportedCount() >= lastImported[0]);
+			lastImported[0] = snapshot.getImportedCount();
+			verifyErrors(s.getLastRepeatedErrors(), maxSize);
+		}, () -> {
+			s.getRepresentation();
+			try{
+				s.getMetrics().writePrometheus(new StringWriter());
+			}catch( IOException e ){
+				throw new AssertionError(e);
+			}
+			verifyErrors(s.previousErrors.values(), maxSize);
+		});
+		int total = WRITERS * ITERATIONS;
+		ImportSummarySnapshot snapshot = s.snapshot();
+		Assert.assertEquals(total, snapshot.getImportedCount());
+		Assert.assertEquals(total, snapshot.getUpdatedCount());
+		Assert.assertEquals(total / 2, snapshot.getInvalidCount());
+		Assert.assertEquals(total / 2, snapshot.getFailedCount());
+		// templates sum up to the totals
+		int templateImported = 0;
+		int templateRejected = 0;
+		for( TemplateStatistics t : snapshot.getTemplates() ){
+			templateImported += t.getImportedCount();
+			templateRejected += t.getInvalidCount() + t.getFailedCount();
+		}
+		Assert.assertEquals(total - total / TEMPLATES.length, templateImported);
+		Assert.assertEquals(total - total / TEMPLATES.length, templateRejected);
+		// no repeat lost, since all causes fit into the cache
+		List<RepeatableError> errors = snapshot.getLastRepeatedErrors();
+		Assert.assertEquals(5, errors.size());
+		int repeats = 0;
+		for( RepeatableError e : errors ){
+			repeats += e.getCount();
+		}
+		Assert.assertEquals(total, repeats);
+		Assert.assertEquals(0, s.getMetrics().getErrorCacheEvictions());
+		// time windows count every event
+		WindowStatistics day = s.getWindowStatistics(Duration.ofHours(24));
+		Assert.assertEquals(total, day.getImportedCount());
+		Assert.assertEquals(total, day.getUpdatedCount());
+		Assert.assertEquals(total, day.getRejectedCount());
+	}
+
+	@Test
+	public void verifyEventWindowRolloverLosesNoEvents() throws InterruptedException{
+		EventWindow w = new EventWindow(1, 4);
+		long base = 1000000;
+		// writers move through time together, buckets are reused every 4ms
+		run(WRITERS, id -> {
+			for( int i=0; i<ITERATIONS; i++ ){
+				w.record(EventWindow.CREATED, base + i / 100);
+			}
+		});
+		long last = base + (ITERATIONS - 1) / 100;
+		// the last bucket is complete and never reused
+		Assert.assertEquals(WRITERS * 100, w.sum(last, 1)[EventWindow.CREATED]);
+	}
+
+	@Test
+	public void verifyErrorCacheBoundedDuringEviction() throws InterruptedException{
+		int maxSize = 8;
+		ErrorCache cache = new ErrorCache(maxSize);
+		run(WRITERS, id -> {
+			for( int i=0; i<ITERATIONS; i++ ){
+				cache.add("thread "+id+" error "+i, i);
+			}
+		}, () -> {
+			Assert.assertTrue(cache.size() <= maxSize);
+			verifyErrors(cache.values(), maxSize);
+		});
+		Assert.assertEquals(maxSize, cache.size());
+		Assert.assertEquals(WRITERS * ITERATIONS - maxSize, cache.getEvictionCount());
+	}
+
+	@Test
+	public void verifyRepeatsCountedExactly() throws InterruptedException{
+		ErrorCache cache = new ErrorCache(4);
+		run(WRITERS, id -> {
+			for( int i=0; i<ITERATIONS; i++ ){
+				cache.add("repeated", id * ITERATIONS + i);
+			}
+		});
+		RepeatableError e = cache.values().iterator().next();
+		Assert.assertEquals(WRITERS * ITERATIONS, e.getCount());
+		Assert.assertEquals(WRITERS * ITERATIONS - 1, e.getTimestamp().getTime());
+	}
+
+	@Test
+	public void verifyResetDuringImports() throws InterruptedException{
+		ImportSummaryImpl s = new ImportSummaryImpl();
+		int maxSize = s.previousErrors.getMaxSize();
+		run(WRITERS, id -> {
+			for( int i=0; i<ITERATIONS; i++ ){
+				s.addCreated(TEMPLATES[i % TEMPLATES.length]);
+				s.addUpdated(null);
+				s.addRejected(null, true, "Error "+id+"/"+(char)('A' + i % 26));
+				if( id == 0 && i % 1000 == 0 ){
+					s.reset();
+				}
+			}
+		}, () -> {
+			verifyConsistent(s.snapshot(), WRITERS * ITERATIONS);
+			verifyErrors(s.getLastRepeatedErrors(), maxSize);
+			Assert.assertTrue(s.getStartTime() <= System.currentTimeMillis());
+		});
+		verifyErrors(s.getLastRepeatedErrors(), maxSize);
+		s.reset();
+		ImportSummarySnapshot snapshot = s.snapshot();
+		Assert.assertEquals(0, snapshot.getImportedCount());
+		Assert.assertEquals(0, snapshot.getFailedCount());
+		Assert.assertNull(snapshot.getLastWriteTime());
+		Assert.assertTrue(snapshot.getTemplates().isEmpty());
+		Assert.assertTrue(snapshot.getLastRepeatedErrors().isEmpty());
+
+		// most recent errors are listed last
+		s.addRejected(null, true, "first");
+		s.addRejected(null, true, "second");
+		s.addRejected(null, true, "third");
+		s.addRejected(null, true, "first");
+		List<String> order = new ArrayList<>();
+		s.getLastErrors().forEach(order::add);
+		Assert.assertEquals(Arrays.asList("second", "third", "first"), order);
+	}
+}
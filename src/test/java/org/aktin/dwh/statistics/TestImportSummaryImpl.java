@@ -1,6 +1,22 @@
 package org.aktin.dwh.statistics;
 
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import javax.management.JMX;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
 import javax.xml.bind.JAXB;
 
 import org.aktin.dwh.statistics.ImportSummaryImpl;
@@ -28,11 +44,494 @@ public class TestImportSummaryImpl {
 		s.addCreated(null);
 		s.addRejected(null, false, "Test");
 		for( int i=0; i<s.previousErrors.getMaxSize()+5; i++ ){
-			s.addRejected(null, true, "Failed #"+i);
+			// numbers would be masked to the same fingerprint
+			s.addRejected(null, true, "Failed "+(char)('A'+i));
 			s.addRejected(null, false, "Test");
 		}
 		Assert.assertEquals(s.previousErrors.getMaxSize(), s.previousErrors.size());
 		// newest error should be "Test"
 		Assert.assertEquals("Test", s.getLastRepeatedErrors().get(s.previousErrors.size()-1).message);
 	}
+
+	@Test
+	public void verifyNoCountsLostWithConcurrentThreads() throws InterruptedException{
+		ImportSummaryImpl s = new ImportSummaryImpl();
+		int threads = 8;
+		int iterations = 20000;
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> workers = new ArrayList<>();
+		for( int t=0; t<threads; t++ ){
+			Thread w = new Thread( () -> {
+				try{
+					start.await();
+				}catch( InterruptedException e ){
+					return;
+				}
+				for( int i=0; i<iterations; i++ ){
+					s.addCreated("X");
+					s.addUpdated("X");
+					s.addRejected("X", (i & 1) == 0, "Error "+(char)('A' + i % 3));
+				}
+			});
+			w.start();
+			workers.add(w);
+		}
+		start.countDown();
+		for( Thread w : workers ){
+			w.join();
+		}
+		ImportSummarySnapshot snapshot = s.snapshot();
+		Assert.assertEquals(threads*iterations, snapshot.getImportedCount());
+		Assert.assertEquals(threads*iterations, snapshot.getUpdatedCount());
+		Assert.assertEquals(threads*iterations/2, snapshot.getFailedCount());
+		Assert.assertEquals(threads*iterations/2, snapshot.getInvalidCount());
+		Assert.assertEquals(s.getImportedCount(), snapshot.getImportedCount());
+		Assert.assertNotNull(snapshot.getLastWriteTime());
+		Assert.assertNotNull(snapshot.getLastRejectTime());
+		Assert.assertEquals(3, snapshot.getLastRepeatedErrors().size());
+	}
+
+	@Test
+	public void verifySnapshotMarshalsLikeSummary(){
+		ImportSummaryImpl s = new ImportSummaryImpl();
+		s.addCreated("X");
+		s.addRejected("X", false, "Test");
+		s.addRejected("X", false, "Test");
+		ImportSummarySnapshot snapshot = s.snapshot();
+		Assert.assertEquals(xml(s), xml(snapshot));
+		// snapshot is not affected by later changes
+		s.addRejected("X", false, "Test");
+		s.reset();
+		Assert.assertEquals(1, snapshot.getImportedCount());
+		Assert.assertEquals(Integer.valueOf(2), snapshot.getLastRepeatedErrors().get(0).getRepeats());
+		Assert.assertEquals(0, s.getImportedCount());
+		Assert.assertNull(s.getLastWriteTime());
+	}
+
+	@Test
+	public void verifyConcurrentRepeatsCounted() throws InterruptedException{
+		ErrorCache cache = new ErrorCache(4);
+		AtomicInteger oversized = new AtomicInteger();
+		int threads = 8;
+		int iterations = 10000;
+		List<Thread> workers = new ArrayList<>();
+		for( int t=0; t<threads; t++ ){
+			final int id = t;
+			Thread w = new Thread( () -> {
+				for( int i=0; i<iterations; i++ ){
+					cache.add("repeated", i);
+					// distinct errors cause evictions
+					cache.add("thread "+id+" #"+i, i);
+					if( cache.size() > cache.getMaxSize() ){
+						oversized.incrementAndGet();
+					}
+				}
+			});
+			w.start();
+			workers.add(w);
+		}
+		for( Thread w : workers ){
+			w.join();
+		}
+		Assert.assertEquals(0, oversized.get());
+		Assert.assertEquals(cache.getMaxSize(), cache.size());
+		cache.add("repeated", 0);
+		List<RepeatableError> errors = new ArrayList<>(cache.values());
+		RepeatableError newest = errors.get(errors.size()-1);
+		Assert.assertEquals("repeated", newest.getMessage());
+		// some repeats may be lost while the entry is evicted
+		Assert.assertTrue(newest.getCount() > 1);
+	}
+
+	@Test
+	public void verifyRejectedWithoutMessage(){
+		ImportSummaryImpl s = new ImportSummaryImpl();
+		s.addRejected("X", true, null);
+		s.addRejected("X", false, null);
+		Assert.assertEquals(1, s.getFailedCount());
+		Assert.assertEquals(1, s.getInvalidCount());
+		List<RepeatableError> errors = s.getLastRepeatedErrors();
+		Assert.assertEquals(1, errors.size());
+		Assert.assertEquals(ErrorCache.NO_MESSAGE, errors.get(0).getMessage());
+		Assert.assertEquals(2, errors.get(0).getCount());
+	}
+
+	@Test
+	public void verifyEvictionKeepsRecentErrors(){
+		ErrorCache cache = new ErrorCache(20);
+		for( int i=0; i<1000; i++ ){
+			for( int j=0; j<5; j++ ){
+				cache.add("frequent "+(char)('A'+j), i);
+			}
+			cache.add("rare "+i, i);
+			Assert.assertTrue(cache.size() <= cache.getMaxSize());
+		}
+		Assert.assertEquals(1000 - 15, cache.getEvictionCount());
+		List<RepeatableError> errors = new ArrayList<>(cache.values());
+		Assert.assertEquals("rare 999", errors.get(errors.size()-1).getMessage());
+		for( int j=0; j<5; j++ ){
+			String message = "frequent "+(char)('A'+j);
+			Assert.assertTrue(errors.stream().anyMatch( e -> e.getMessage().equals(message) && e.getCount() == 1000 ));
+		}
+	}
+
+	@Test
+	public void verifyTemplateStatistics(){
+		ImportSummaryImpl s = new ImportSummaryImpl();
+		s.addCreated("T1");
+		s.addCreated("T1");
+		s.addUpdated("T2");
+		s.addRejected("T2", false, "invalid");
+		s.addRejected("T2", true, "failed");
+		s.addCreated(null);
+		Assert.assertEquals(3, s.getImportedCount());
+		List<TemplateStatistics> templates = s.getTemplateStatistics();
+		Assert.assertEquals(2, templates.size());
+		Assert.assertEquals("T1", templates.get(0).getTemplateId());
+		Assert.assertEquals(2, templates.get(0).getImportedCount());
+		Assert.assertNull(templates.get(0).getLastRejectTime());
+		TemplateStatistics t2 = s.getTemplateStatistics("T2");
+		Assert.assertEquals(1, t2.getUpdatedCount());
+		Assert.assertEquals(1, t2.getInvalidCount());
+		Assert.assertEquals(1, t2.getFailedCount());
+		Assert.assertNotNull(t2.getLastWriteTime());
+		// events without template id are not listed
+		Assert.assertNull(s.getTemplateStatistics(null));
+		// copies are not modified
+		s.addUpdated("T2");
+		Assert.assertEquals(1, t2.getUpdatedCount());
+		Assert.assertEquals(2, s.snapshot().getTemplates().get(1).getUpdatedCount());
+		StringWriter xml = new StringWriter();
+		JAXB.marshal(s, xml);
+		Assert.assertTrue(xml.toString().contains("<template id=\"T2\">"));
+		s.reset();
+		Assert.assertNull(s.getTemplateStatistics());
+		Assert.assertNull(s.getTemplateStatistics("T1"));
+	}
+
+	@Test
+	public void verifyTemplateCountLimited(){
+		ImportSummaryImpl s = new ImportSummaryImpl();
+		for( int i=0; i<ImportSummaryImpl.MAX_TEMPLATES + 10; i++ ){
+			s.addCreated("1.2.3."+i);
+		}
+		s.addRejected("1.2.3.0", true, "Test");
+		s.addRejected("1.2.3.999", true, "Test");
+		List<TemplateStatistics> templates = s.getTemplateStatistics();
+		Assert.assertEquals(ImportSummaryImpl.MAX_TEMPLATES + 1, templates.size());
+		Assert.assertEquals(1, s.getTemplateStatistics("1.2.3.0").getFailedCount());
+		Assert.assertNull(s.getTemplateStatistics("1.2.3.999"));
+		TemplateStatistics other = s.getTemplateStatistics(ImportSummaryImpl.OTHER_TEMPLATES);
+		Assert.assertEquals(10, other.getImportedCount());
+		Assert.assertEquals(1, other.getFailedCount());
+		// no events lost
+		int imported = 0;
+		for( TemplateStatistics t : templates ){
+			imported += t.getImportedCount();
+		}
+		Assert.assertEquals(s.getImportedCount(), imported);
+	}
+
+	@Test
+	public void verifyEventWindowBuckets(){
+		EventWindow w = new EventWindow(1000, 60);
+		long t = 1500000000000L;
+		w.record(EventWindow.CREATED, t);
+		w.record(EventWindow.CREATED, t + 10);
+		w.record(EventWindow.REJECTED, t + 1000);
+		w.record(EventWindow.UPDATED, t + 30000);
+		long now = t + 30000;
+		Assert.assertArrayEquals(new long[]{2, 1, 1}, w.sum(now, 60));
+		Assert.assertArrayEquals(new long[]{0, 1, 0}, w.sum(now, 1));
+		Assert.assertArrayEquals(new long[]{0, 1, 1}, w.sum(now, 30));
+		// first bucket is reused after one minute
+		w.record(EventWindow.UPDATED, t + 60000);
+		Assert.assertArrayEquals(new long[]{0, 2, 1}, w.sum(t + 60000, 60));
+		// events older than the reused bucket are dropped
+		w.record(EventWindow.CREATED, t);
+		Assert.assertArrayEquals(new long[]{0, 2, 1}, w.sum(t + 60000, 60));
+		// all buckets expired
+		Assert.assertArrayEquals(new long[]{0, 0, 0}, w.sum(t + 200000, 60));
+	}
+
+	@Test
+	public void verifyWindowStatistics(){
+		ImportSummaryImpl s = new ImportSummaryImpl();
+		s.addCreated("T1");
+		s.addCreated("T1");
+		s.addUpdated(null);
+		s.addRejected(null, false, "invalid");
+		WindowStatistics w = s.getWindowStatistics(Duration.ofMinutes(5));
+		Assert.assertEquals(2, w.getImportedCount());
+		Assert.assertEquals(1, w.getUpdatedCount());
+		Assert.assertEquals(1, w.getRejectedCount());
+		Assert.assertEquals(0.25, w.getRejectionRate(), 0.0001);
+		// covered time extends to the start of the oldest minute
+		long covered = w.getCoveredTime().toMillis();
+		Assert.assertTrue(covered >= 300000 && covered < 360000);
+		Assert.assertEquals(3000.0 / covered, w.getWriteRate(), 0.0001);
+		Assert.assertEquals(4, s.getRecentActivity().size());
+		Assert.assertEquals(2, s.snapshot().getRecentActivity().get(3).getImportedCount());
+		StringWriter xml = new StringWriter();
+		JAXB.marshal(s, xml);
+		Assert.assertTrue(xml.toString().contains("span=\"PT1H\""));
+		s.reset();
+		Assert.assertEquals(0, s.getWindowStatistics(Duration.ofHours(24)).getImportedCount());
+		Assert.assertEquals(0, s.getWindowStatistics(Duration.ofSeconds(1)).getRejectionRate(), 0);
+	}
+
+	private static WindowStatistics statistics(Duration span, long now, EventWindow... windows){
+		return EventWindow.statistics(span, now, windows);
+	}
+
+	@Test
+	public void verifyChainedWindowRatesAtBucketBoundary(){
+		EventWindow hours = new EventWindow(60 * 60 * 1000, 25);
+		EventWindow minutes = new EventWindow(60 * 1000, 61, hours);
+		EventWindow seconds = new EventWindow(1000, 61, minutes);
+		long t = 1500000000000L - 1500000000000L % (60 * 60 * 1000);
+		// one event per second for ten minutes
+		for( int i=0; i<600; i++ ){
+			seconds.record(EventWindow.CREATED, t + i * 1000);
+		}
+		long now = t + 600000;
+		WindowStatistics w = statistics(Duration.ofMinutes(5), now, seconds, minutes, hours);
+		Assert.assertEquals(300, w.getImportedCount());
+		Assert.assertEquals(Duration.ofMinutes(5), w.getCoveredTime());
+		Assert.assertEquals(1.0, w.getWriteRate(), 0.0001);
+		// the minute starting at t+300000 leaves the span one minute later
+		Assert.assertEquals(t + 660000, w.getExpiry());
+		w = statistics(Duration.ofMinutes(1), now, seconds, minutes, hours);
+		Assert.assertEquals(60, w.getImportedCount());
+		Assert.assertEquals(1.0, w.getWriteRate(), 0.0001);
+		Assert.assertEquals(t + 601000, w.getExpiry());
+		// no events to leave the span
+		w = statistics(Duration.ofMinutes(1), now + 3600000, seconds, minutes, hours);
+		Assert.assertEquals(0, w.getImportedCount());
+		Assert.assertEquals(Long.MAX_VALUE, w.getExpiry());
+		// counts moved from the finer windows
+		w = statistics(Duration.ofHours(1), now, seconds, minutes, hours);
+		Assert.assertEquals(600, w.getImportedCount());
+		Assert.assertEquals(Duration.ofHours(1), w.getCoveredTime());
+		w = statistics(Duration.ofHours(24), now, seconds, minutes, hours);
+		Assert.assertEquals(600, w.getImportedCount());
+		// extended to the start of the hour
+		Assert.assertEquals(Duration.ofMinutes(24 * 60 + 10), w.getCoveredTime());
+		Assert.assertEquals(600 * 1000.0 / (24 * 3600000 + 600000), w.getWriteRate(), 0.0001);
+	}
+
+	@Test
+	public void verifyChainedWindowRatesWithinBucket(){
+		EventWindow hours = new EventWindow(60 * 60 * 1000, 25);
+		EventWindow minutes = new EventWindow(60 * 1000, 61, hours);
+		EventWindow seconds = new EventWindow(1000, 61, minutes);
+		long t = 1500000000000L - 1500000000000L % (60 * 60 * 1000);
+		for( int i=0; i<630; i++ ){
+			seconds.record(EventWindow.CREATED, t + i * 1000);
+		}
+		// half a second after the last event, in the middle of a minute
+		long now = t + 629500;
+		WindowStatistics w = statistics(Duration.ofMinutes(5), now, seconds, minutes, hours);
+		// from the start of minute 5 (300s), i.e. 329.5s
+		Assert.assertEquals(330, w.getImportedCount());
+		Assert.assertEquals(Duration.ofMillis(329500), w.getCoveredTime());
+		Assert.assertEquals(1.0, w.getWriteRate(), 0.01);
+		w = statistics(Duration.ofMinutes(1), now, seconds, minutes, hours);
+		Assert.assertEquals(61, w.getImportedCount());
+		Assert.assertEquals(Duration.ofMillis(60500), w.getCoveredTime());
+		Assert.assertEquals(1.0, w.getWriteRate(), 0.01);
+		w = statistics(Duration.ofHours(24), now, seconds, minutes, hours);
+		Assert.assertEquals(630, w.getImportedCount());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void verifyWindowLongerThanDayFails(){
+		new ImportSummaryImpl().getWindowStatistics(Duration.ofHours(25));
+	}
+
+	@Test
+	public void verifyErrorFingerprints(){
+		Assert.assertEquals("Invalid date", ErrorFingerprint.of("Invalid date"));
+		Assert.assertEquals("Document # line #: invalid value '#'",
+				ErrorFingerprint.of("Document 12345 line 17: invalid value '3.5'"));
+		Assert.assertEquals("Encounter # at # rejected.",
+				ErrorFingerprint.of("Encounter 123e4567-e89b-12d3-a456-426614174000 at 2017-03-01T12:00:00Z rejected."));
+		Assert.assertEquals("Hash # - #", ErrorFingerprint.of("Hash deadbeefcafe - x9"));
+		Assert.assertEquals("Encounter # at # rejected.",
+				ErrorFingerprint.of("Encounter 1 at 2017-03-02 rejected."));
+		Assert.assertNull(ErrorFingerprint.of(null));
+	}
+
+	@Test
+	public void verifyFingerprintBufferLimited(){
+		CharSequence buffer = ErrorFingerprint.mask("Document 1");
+		Assert.assertEquals("Document #", buffer.toString());
+		Assert.assertSame(buffer, ErrorFingerprint.mask("Line 2"));
+		// long messages are not masked in the buffer of the thread
+		StringBuilder b = new StringBuilder("Document 3 ");
+		while( b.length() <= ErrorFingerprint.MAX_BUFFER_LENGTH ){
+			b.append("text ");
+		}
+		CharSequence fingerprint = ErrorFingerprint.mask(b.toString());
+		Assert.assertNotSame(buffer, fingerprint);
+		Assert.assertEquals(b.toString().replace('3', '#'), fingerprint.toString());
+	}
+
+	@Test
+	public void verifyFingerprintOnlyForNewMessages(){
+		ErrorCache cache = new ErrorCache(4);
+		AtomicInteger calls = new AtomicInteger();
+		Function<String, CharSequence> fingerprint = m -> {
+			calls.incrementAndGet();
+			return ErrorFingerprint.mask(m);
+		};
+		for( int i=0; i<10; i++ ){
+			cache.add("Invalid date", fingerprint, i);
+		}
+		// message is its own fingerprint, calculated only once
+		Assert.assertEquals(1, calls.get());
+		cache.add("Document 1 rejected", fingerprint, 10);
+		cache.add("Document 2 rejected", fingerprint, 11);
+		Assert.assertEquals(3, calls.get());
+		// found by the content of the buffer
+		RepeatableError document = cache.values().stream().filter( e -> e.getCount() == 2 ).findFirst().get();
+		Assert.assertEquals("Document 1 rejected", document.getMessage());
+		Assert.assertEquals("Document 2 rejected", document.getLastExample());
+		cache.add(null, fingerprint, 12);
+		Assert.assertEquals(3, calls.get());
+		Assert.assertEquals(3, cache.size());
+	}
+
+	@Test
+	public void verifySimilarErrorsCountedOnce(){
+		ImportSummaryImpl s = new ImportSummaryImpl();
+		for( int i=0; i<100; i++ ){
+			s.addRejected(null, false, "Document "+(1000+i)+" has no patient");
+		}
+		s.addRejected(null, true, "Database unavailable");
+		List<RepeatableError> errors = s.getLastRepeatedErrors();
+		Assert.assertEquals(2, errors.size());
+		RepeatableError e = errors.get(0);
+		Assert.assertEquals(100, e.getCount());
+		Assert.assertEquals("Document 1000 has no patient", e.getMessage());
+		Assert.assertEquals("Document 1099 has no patient", e.getLastExample());
+		Assert.assertEquals("Database unavailable", errors.get(1).getLastExample());
+		StringWriter xml = new StringWriter();
+		JAXB.marshal(s.snapshot(), xml);
+		Assert.assertTrue(xml.toString().contains("last-example=\"Document 1099 has no patient\""));
+	}
+
+	/**
+	 * Marshal the statistics without rates, which depend on the time of the call.
+	 */
+	private static String xml(Object statistics){
+		StringWriter xml = new StringWriter();
+		JAXB.marshal(statistics, xml);
+		return xml.toString().replaceAll(" writes-per-second=\"[^\"]*\"", "");
+	}
+
+	@Test
+	public void verifyPersistentStatisticsRestored() throws IOException{
+		Path dir = Files.createTempDirectory("import-statistics");
+		Path file = dir.resolve(ImportSummaryImpl.STATE_FILE);
+		try{
+			ImportSummaryImpl s = new ImportSummaryImpl();
+			s.enablePersistence(file, Duration.ofHours(1));
+			s.addCreated("T1");
+			s.addUpdated(null);
+			s.addRejected("T2", false, "Document 1 has no patient");
+			s.addRejected("T2", false, "Document 2 has no patient");
+			s.addRejected(null, true, "Database unavailable");
+			s.close();
+			Assert.assertTrue(Files.isRegularFile(file));
+
+			ImportSummaryImpl r = new ImportSummaryImpl();
+			r.enablePersistence(file, Duration.ofHours(1));
+			Assert.assertEquals(s.getStartTime(), r.getStartTime());
+			Assert.assertEquals(xml(s.snapshot()), xml(r.snapshot()));
+			Assert.assertEquals(2, r.getLastRepeatedErrors().get(0).getCount());
+			// restored errors are counted by fingerprint
+			r.addRejected(null, false, "Document 3 has no patient");
+			Assert.assertEquals(3, r.getLastRepeatedErrors().get(1).getCount());
+			Assert.assertEquals(1, r.getWindowStatistics(Duration.ofHours(1)).getImportedCount());
+			r.close();
+
+			// damaged files are ignored
+			byte[] data = Files.readAllBytes(file);
+			data[20] ^= 1;
+			Files.write(file, data);
+			ImportSummaryImpl d = new ImportSummaryImpl();
+			d.enablePersistence(file, Duration.ofHours(1));
+			Assert.assertEquals(0, d.getImportedCount());
+			Assert.assertTrue(d.getLastRepeatedErrors().isEmpty());
+			d.close();
+		}finally{
+			Files.deleteIfExists(file);
+			Files.delete(dir);
+		}
+	}
+
+	@Test
+	public void verifyCachedRepresentation() throws IOException{
+		ImportSummaryImpl s = new ImportSummaryImpl();
+		StatisticsRepresentation r1 = s.getRepresentation();
+		Assert.assertSame(r1, s.getRepresentation());
+		Assert.assertTrue(r1.matches(r1.getETag()));
+		Assert.assertFalse(r1.matches(null));
+		s.addCreated("T1");
+		s.addRejected(null, false, "Missing \"id\"\n");
+		StatisticsRepresentation r2 = s.getRepresentation();
+		Assert.assertNotSame(r1, r2);
+		Assert.assertTrue(r2.getVersion() > r1.getVersion());
+		Assert.assertFalse(r2.matches(r1.getETag()));
+		Assert.assertTrue(r2.matches("W/"+r2.getETag()+", \"other\""));
+		String xml = new String(r2.getXml(), StandardCharsets.UTF_8);
+		Assert.assertTrue(xml.contains("<imported>1</imported>"));
+		String json = new String(r2.getJson(), StandardCharsets.UTF_8);
+		Assert.assertTrue(json.startsWith("{\"start\":\""));
+		Assert.assertTrue(json.contains("\"imported\":1,\"updated\":0,\"invalid\":1,\"failed\":0"));
+		Assert.assertTrue(json.contains("\"message\":\"Missing \\\"id\\\"\\n\""));
+		Assert.assertTrue(json.contains("\"templates\":[{\"id\":\"T1\""));
+		Assert.assertTrue(json.endsWith("]}"));
+		// without recent events, only changes invalidate the cache
+		s.reset();
+		StatisticsRepresentation r3 = s.getRepresentation();
+		Assert.assertNotSame(r2, r3);
+		Assert.assertEquals(Long.MAX_VALUE, r3.getExpiry());
+		Assert.assertSame(r3, s.getRepresentation());
+	}
+
+	@Test
+	public void verifyMetricsExport() throws IOException, MalformedObjectNameException{
+		ImportSummaryImpl s = new ImportSummaryImpl();
+		s.initialize();
+		try{
+			s.addCreated("T\"1");
+			s.addUpdated(null);
+			for( int i=0; i<s.previousErrors.getMaxSize()+3; i++ ){
+				s.addRejected(null, true, "Failed "+(char)('A'+i));
+			}
+			ObjectName name = new ObjectName("org.aktin.dwh:type=ImportStatistics");
+			ImportStatisticsMXBean mbean = JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(), name, ImportStatisticsMXBean.class);
+			Assert.assertEquals(1, mbean.getImportedCount());
+			Assert.assertEquals(s.previousErrors.getMaxSize()+3, mbean.getFailedCount());
+			Assert.assertEquals(3, mbean.getErrorCacheEvictions());
+			Assert.assertEquals(s.previousErrors.getMaxSize(), mbean.getErrorCacheSize());
+			Assert.assertTrue(mbean.getLastWriteAgeSeconds() >= 0);
+			Assert.assertTrue(mbean.getRejectionRate() > 0.9);
+
+			StringWriter out = new StringWriter();
+			s.getMetrics().writePrometheus(out);
+			String text = out.toString();
+			Assert.assertTrue(text.contains("# TYPE aktin_import_documents_total counter\n"));
+			Assert.assertTrue(text.contains("aktin_import_documents_total{result=\"imported\"} 1\n"));
+			Assert.assertTrue(text.contains("aktin_import_template_documents_total{template=\"T\\\"1\",result=\"updated\"} 0\n"));
+			Assert.assertTrue(text.contains("aktin_import_error_cache_evictions_total 3\n"));
+			Assert.assertTrue(text.contains("aktin_import_rejection_rate{window=\"PT1M\"} "));
+			Assert.assertTrue(text.contains("aktin_import_last_write_age_seconds "));
+		}finally{
+			s.close();
+		}
+		Assert.assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName("org.aktin.dwh:type=ImportStatistics")));
+	}
 }